@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.bench;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sz.sproxy.impl.BufferPool;
+import org.sz.sproxy.tunnel.Crypto;
+import org.sz.sproxy.tunnel.secure.SecretManagerImpl;
+
+/**
+ * Compares the byte array path of tunnel records, copying through arrays under the lock of the cipher, with the
+ * {@linkplain ByteBuffer} one. Run with
+ * 
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec
+ * </pre>
+ * 
+ * @author Sam Zheng
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+	// header of a data frame
+	private static final int FRAME_HEADER = 11;
+
+	@Param({ "64", "1024", "16384" })
+	int size;
+
+	// of the frames and records, the records encrypted into are pooled direct buffers either way
+	@Param({ "heap", "direct" })
+	String buffers;
+
+	SecretManagerImpl mgr;
+
+	Crypto crypto;
+
+	ByteBuffer header;
+
+	ByteBuffer payload;
+
+	byte[] iv;
+
+	// an encrypted record and the buffer it's read into
+	ByteBuffer record;
+
+	ByteBuffer plain;
+
+	@Setup
+	public void setup() {
+		SecureRandom random = new SecureRandom();
+		byte[] secret = new byte[16];
+		random.nextBytes(secret);
+		mgr = new SecretManagerImpl();
+		crypto = mgr.createCrypto(mgr.getSecretKeySpec(secret));
+		header = allocate(FRAME_HEADER);
+		byte[] b = new byte[size];
+		random.nextBytes(b);
+		payload = allocate(size).put(b).flip();
+		iv = mgr.getIV();
+		ByteBuffer r = crypto.encrypt(new ByteBuffer[] { header.duplicate(), payload.duplicate() }, iv, 0);
+		record = allocate(r.remaining()).put(r).flip();
+		BufferPool.release(r);
+		plain = allocate(crypto.decryptedSize(record.remaining()));
+	}
+
+	private ByteBuffer allocate(int n) {
+		return buffers.equals("direct") ? ByteBuffer.allocateDirect(n) : ByteBuffer.allocate(n);
+	}
+
+	@Benchmark
+	public ByteBuffer encryptArrays() {
+		byte[] frame = new byte[FRAME_HEADER + size];
+		header.duplicate().get(frame, 0, FRAME_HEADER);
+		payload.duplicate().get(frame, FRAME_HEADER, size);
+		byte[] encrypted;
+		synchronized (crypto) {
+			encrypted = crypto.encrypt(frame, mgr.getIV());
+		}
+		return ByteBuffer.allocate(encrypted.length).put(encrypted).flip();
+	}
+
+	@Benchmark
+	public int encryptBuffers() {
+		ByteBuffer r = crypto.encrypt(new ByteBuffer[] { header.duplicate(), payload.duplicate() }, mgr.getIV(), 0);
+		int n = r.remaining();
+		BufferPool.release(r);
+		return n;
+	}
+
+	@Benchmark
+	public ByteBuffer decryptArrays() {
+		byte[] data = new byte[record.remaining()];
+		record.duplicate().get(data);
+		byte[] decrypted;
+		synchronized (crypto) {
+			decrypted = crypto.decrypt(data, iv);
+		}
+		return plain.clear().put(ByteBuffer.wrap(decrypted)).flip();
+	}
+
+	@Benchmark
+	public int decryptBuffers() {
+		return crypto.decrypt(record.duplicate(), iv, plain.clear());
+	}
+
+}
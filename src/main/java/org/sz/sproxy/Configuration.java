@@ -25,12 +25,26 @@ public interface Configuration {
 	
 	String BUF_SIZE_KEY = "packet.buffer.size";
 	
+	String BUF_MAX_SIZE_KEY = "packet.buffer.max";
+	
+	String BUF_MEMORY_KEY = "packet.buffer.memory";
+	
+	String WRITE_HIGH_WATERMARK = "write.watermark.high";
+	
+	String WRITE_LOW_WATERMARK = "write.watermark.low";
+	
 	String TASK_WORKERS_KEY = "task.workers";
 	
 	String DEF_HOST = "localhost";
 	
 	int DEF_BUF_SIZE = 0x400;
 	
+	int DEF_BUF_MAX_SIZE = 0x10000;
+	
+	long DEF_BUF_MEMORY = 64L << 20;
+	
+	int DEF_WRITE_HIGH_WATERMARK = 0x10000;
+	
 	int DEF_PORT = 8888;
 	
 	String SERVER_HOST = "server.host";
@@ -39,6 +53,64 @@ public interface Configuration {
 	
 	String SERVER_IPV6 = "server.ipv6";
 	
+	String SERVER_ACCEPTORS = "server.acceptors";
+	
+	String SERVER_REUSEPORT = "server.reuseport";
+	
+	String SELECTOR_LOOPS = "selector.loops";
+	
+	String SELECTOR_BALANCE = "selector.balance";
+	
+	String EXEC_MODE = "exec.mode";
+	
+	String EXEC_POOL = "pool";
+	
+	String EXEC_EVENTLOOP = "eventloop";
+	
+	String IO_ENGINE = "io.engine";
+	
+	String IO_ENGINE_NIO = "nio";
+	
+	String IO_ENGINE_BLOCKING = "blocking";
+	
+	String TCP_NODELAY = "tcp.nodelay";
+	
+	String CONNECT_TIMEOUT = "connect.timeout";
+	
+	String CONNECT_ATTEMPT_DELAY = "connect.attempt.delay";
+	
+	String IDLE_TIMEOUT = "idle.timeout";
+	
+	String UDP_TIMEOUT = "udp.timeout";
+	
+	String DNS_SERVERS = "dns.servers";
+	
+	String DNS_SYSTEM = "system";
+	
+	String DNS_TIMEOUT = "dns.timeout";
+	
+	String DNS_ATTEMPTS = "dns.attempts";
+	
+	String DNS_CACHE_SIZE = "dns.cache.size";
+	
+	String DNS_CACHE_MIN_TTL = "dns.cache.ttl.min";
+	
+	String DNS_CACHE_MAX_TTL = "dns.cache.ttl.max";
+	
+	String DNS_CACHE_NEGATIVE_TTL = "dns.cache.ttl.negative";
+	
+	String RULES_FILE = "rules.file";
+	
+	String RULES_RELOAD = "rules.reload";
+	
+	String STATS_INTERVAL = "stats.interval";
+	
+	String TASK_EXECUTOR = "task.executor";
+	
+	String TASK_EXECUTOR_PLATFORM = "platform";
+	
+	String TASK_EXECUTOR_VIRTUAL = "virtual";
+	
 	String get(String key, String def);
 	
 	default String get(String key) {
@@ -79,10 +151,274 @@ public interface Configuration {
 		return getInt(SERVER_PORT, DEF_PORT);
 	}
 	
+	/**
+	 * Returns the number of sockets listening on the server port with <code>SO_REUSEPORT</code>, each polled by a
+	 * selector loop of its own, so that the kernel spreads incoming connections among them. There are at least as
+	 * many selector loops as acceptors.
+	 * 
+	 * @return
+	 */
+	default int getAcceptors() {
+		return Math.max(1, getInt(SERVER_ACCEPTORS, 1));
+	}
+	
+	/**
+	 * Returns whether the listening sockets are bound with <code>SO_REUSEPORT</code>, so that several server
+	 * processes can listen on the same port, always true with more than one acceptor.
+	 * 
+	 * @return
+	 */
+	default boolean isReusePort() {
+		return getAcceptors() > 1 || Boolean.parseBoolean(get(SERVER_REUSEPORT, "false"));
+	}
+	
+	/**
+	 * Returns the number of selector loops(reactors) among which channels are distributed.
+	 * 
+	 * @return
+	 */
+	default int getSelectorLoops() {
+		return getInt(SELECTOR_LOOPS, 1);
+	}
+	
+	/**
+	 * Returns how new channels are assigned to selector loops, <code>roundrobin</code> or <code>leastload</code>.
+	 * 
+	 * @return
+	 */
+	default String getSelectorBalance() {
+		return get(SELECTOR_BALANCE, "roundrobin");
+	}
+	
+	/**
+	 * Returns how readiness events are handled, <code>pool</code> to dispatch them to the task executor, or
+	 * <code>eventloop</code> to handle them on the selector loop thread, offloading only blocking work.
+	 * 
+	 * @return
+	 */
+	default String getExecMode() {
+		return get(EXEC_MODE, EXEC_POOL);
+	}
+	
+	default boolean isEventLoop() {
+		return EXEC_EVENTLOOP.equalsIgnoreCase(getExecMode());
+	}
+	
+	/**
+	 * Returns the io engine on which connections run, <code>nio</code> for non-blocking channels polled by selector
+	 * loops, or <code>blocking</code> for blocking channels with a (virtual if supported) thread per direction.
+	 * 
+	 * @return
+	 */
+	default String getIoEngine() {
+		return get(IO_ENGINE, IO_ENGINE_NIO);
+	}
+	
+	/**
+	 * Returns the kind of threads on which handler tasks run, <code>platform</code> for a cached thread pool, or
+	 * <code>virtual</code> for a thread per task executor of virtual threads, which requires java 21+.
+	 * 
+	 * @return
+	 */
+	default String getTaskExecutorType() {
+		return get(TASK_EXECUTOR, TASK_EXECUTOR_PLATFORM);
+	}
+	
+	/**
+	 * Returns whether Nagle's algorithm is disabled on relayed sockets, true by default as relayed data is written as
+	 * soon as it's read, holding back the tail of a write until the previous one is acknowledged only adds latency.
+	 *
+	 * @return
+	 */
+	default boolean isTcpNoDelay() {
+		return Boolean.parseBoolean(get(TCP_NODELAY, "true"));
+	}
+
+	/**
+	 * Returns the milliseconds within which an outgoing connection must be established, 10 seconds by default.
+	 * 
+	 * @return
+	 */
+	default int getConnectTimeout() {
+		return getInt(CONNECT_TIMEOUT, 10 * 1000);
+	}
+	
+	/**
+	 * Returns the milliseconds to wait for an outgoing connection to be established before connecting to the next
+	 * address of the destination at the same time, 250 by default as recommended by RFC 8305.
+	 * 
+	 * @return
+	 */
+	default int getConnectAttemptDelay() {
+		return getInt(CONNECT_ATTEMPT_DELAY, 250);
+	}
+	
+	/**
+	 * Returns the milliseconds without reading or writing after which a connection is closed, 0, the default, to
+	 * never close connections for being idle.
+	 * 
+	 * @return
+	 */
+	default int getIdleTimeout() {
+		return getInt(IDLE_TIMEOUT, 0);
+	}
+
+	/**
+	 * Returns the milliseconds after which a destination of a UDP association that has neither sent nor been sent a
+	 * datagram is forgotten, a minute by default. An association relaying datagrams keeps its control connection
+	 * from being closed for being idle.
+	 * 
+	 * @return
+	 */
+	default int getUdpTimeout() {
+		return getInt(UDP_TIMEOUT, 60 * 1000);
+	}
+
+	/**
+	 * Returns the dns servers to which host names are sent for resolving, comma separated <code>address[:port]</code>s,
+	 * the name servers in <code>/etc/resolv.conf</code> by default, or <code>system</code> to resolve host names with
+	 * the system resolver on the task executor.
+	 * 
+	 * @return
+	 */
+	default String getDnsServers() {
+		return get(DNS_SERVERS, "");
+	}
+	
+	/**
+	 * Returns the milliseconds to wait for a dns answer before asking the next server, 2 seconds by default.
+	 * 
+	 * @return
+	 */
+	default int getDnsTimeout() {
+		return getInt(DNS_TIMEOUT, 2000);
+	}
+	
+	/**
+	 * Returns the number of times a dns query is sent before the name is given up as unknown, 2 by default.
+	 * 
+	 * @return
+	 */
+	default int getDnsAttempts() {
+		return getInt(DNS_ATTEMPTS, 2);
+	}
+	
+	/**
+	 * Returns the max number of host names whose addresses are cached, 4096 by default, 0 to not cache at all.
+	 * 
+	 * @return
+	 */
+	default int getDnsCacheSize() {
+		return getInt(DNS_CACHE_SIZE, 4096);
+	}
+	
+	/**
+	 * Returns the seconds for which addresses are cached at least whatever their ttl, 10 by default.
+	 * 
+	 * @return
+	 */
+	default int getDnsCacheMinTtl() {
+		return getInt(DNS_CACHE_MIN_TTL, 10);
+	}
+	
+	/**
+	 * Returns the seconds for which addresses are cached at most whatever their ttl, an hour by default.
+	 * 
+	 * @return
+	 */
+	default int getDnsCacheMaxTtl() {
+		return getInt(DNS_CACHE_MAX_TTL, 3600);
+	}
+	
+	/**
+	 * Returns the seconds for which unknown host names and failed lookups are cached, 5 by default.
+	 * 
+	 * @return
+	 */
+	default int getDnsCacheNegativeTtl() {
+		return getInt(DNS_CACHE_NEGATIVE_TTL, 5);
+	}
+
+	/**
+	 * Returns the file of the rules deciding which destinations clients may connect to, see
+	 * {@linkplain org.sz.sproxy.impl.CompiledRuleset} for its format, none by default to allow any destination.
+	 * 
+	 * @return
+	 */
+	default String getRulesFile() {
+		return get(RULES_FILE, "");
+	}
+	
+	/**
+	 * Returns the milliseconds between checks of the rules file for changes, 5 seconds by default, 0 to never reload
+	 * it.
+	 * 
+	 * @return
+	 */
+	default int getRulesReloadInterval() {
+		return getInt(RULES_RELOAD, 5000);
+	}
+
+	/**
+	 * Returns the seconds between logs of statistics, such as those of the dns cache and of the routes of the relay,
+	 * which are logged only if changed since last logged, 5 minutes by default, 0 to never log them.
+	 * 
+	 * @return
+	 */
+	default int getStatsInterval() {
+		return getInt(STATS_INTERVAL, 300);
+	}
+
+	/**
+	 * Returns the initial and min size of relay buffers.
+	 *
+	 * @return
+	 */
 	default int getPacketBufferSize() {
 		return getInt(BUF_SIZE_KEY, DEF_BUF_SIZE);
 	}
 	
+	/**
+	 * Returns the size up to which the relay buffers of a connection grow while reads keep filling them, no less
+	 * than {@linkplain #getPacketBufferSize()}, which is equal to it if relay buffers should not grow.
+	 * 
+	 * @return
+	 */
+	default int getPacketBufferMaxSize() {
+		return Math.max(getPacketBufferSize(), getInt(BUF_MAX_SIZE_KEY, DEF_BUF_MAX_SIZE));
+	}
+	
+	/**
+	 * Returns the bytes of pooled buffers in use beyond which relay buffers don't grow.
+	 * 
+	 * @return
+	 */
+	default long getPacketBufferMemory() {
+		String v = get(BUF_MEMORY_KEY);
+		return v == null || v.isEmpty() ? DEF_BUF_MEMORY : Long.parseLong(v);
+	}
+	
+	/**
+	 * Returns the bytes queued for writing on a connection beyond which its writers stop reading, 0 to stop them on
+	 * any partial write.
+	 * 
+	 * @return
+	 */
+	default int getWriteHighWatermark() {
+		return getInt(WRITE_HIGH_WATERMARK, DEF_WRITE_HIGH_WATERMARK);
+	}
+	
+	/**
+	 * Returns the bytes queued for writing on a connection below which writers stopped by the high watermark resume
+	 * reading, half of the high watermark by default and no more than it.
+	 * 
+	 * @return
+	 */
+	default int getWriteLowWatermark() {
+		int high = getWriteHighWatermark();
+		return Math.min(high, getInt(WRITE_LOW_WATERMARK, high >> 1));
+	}
+	
 	String set(String key, String value);
 	
 }
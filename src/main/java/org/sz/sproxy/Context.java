@@ -49,6 +49,13 @@ public interface Context {
 	
 	Configuration getConfiguration();
 	
+	/**
+	 * Returns the selector of the first selector loop, channels are normally registered with
+	 * the loop assigned by the loop group service instead.
+	 * 
+	 * @return the selector
+	 * @throws IOException
+	 */
 	Selector getSelector() throws IOException;
 
 	Context set(String key, Object obj);
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * This interface resolves host names without blocking the caller, it's provided by the context as a service.
+ *
+ * @author Sam Zheng
+ *
+ */
+public interface Resolver {
+
+	/**
+	 * Resolves the given host name or address literal. The future completes with the addresses of the host, IPv4
+	 * ones first, or exceptionally with an {@linkplain UnknownHostException}. It may complete on a selector loop,
+	 * what's chained to it must not block.
+	 *
+	 * @param host
+	 * @return see above
+	 */
+	CompletableFuture<List<InetAddress>> resolve(String host);
+
+}
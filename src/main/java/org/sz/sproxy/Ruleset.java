@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This interface decides which destinations clients may connect to, it's provided by the context as a service.
+ *
+ * @author Sam Zheng
+ *
+ */
+public interface Ruleset {
+
+	/**
+	 * Allows any destination.
+	 */
+	Ruleset ALLOW_ALL = new Ruleset() {
+
+		@Override
+		public Boolean allows(String host, int port) {
+			return null;
+		}
+
+		@Override
+		public boolean allows(InetAddress address, int port) {
+			return true;
+		}
+
+		@Override
+		public boolean allowsByDefault() {
+			return true;
+		}
+	};
+
+	/**
+	 * Returns whether connecting to the given port of the given host name is allowed by the most specific domain rule
+	 * matching it, or null if no domain rule matches it, in which case it's up to the addresses it resolves to.
+	 *
+	 * @param host
+	 * @param port
+	 * @return see above
+	 */
+	Boolean allows(String host, int port);
+
+	/**
+	 * Returns whether connecting to the given address and port is allowed by the most specific address rule matching
+	 * it, or by default if none.
+	 *
+	 * @param address
+	 * @param port
+	 * @return see above
+	 */
+	boolean allows(InetAddress address, int port);
+
+	/**
+	 * Returns whether connecting to destinations matched by no rule is allowed.
+	 *
+	 * @return see above
+	 */
+	boolean allowsByDefault();
+
+	/**
+	 * Returns the given addresses connecting to which is allowed, in their order.
+	 *
+	 * @param addresses
+	 * @param port
+	 * @return see above
+	 */
+	default List<InetAddress> allowed(List<InetAddress> addresses, int port) {
+		List<InetAddress> r = new ArrayList<>(addresses.size());
+		for (InetAddress a : addresses) {
+			if (allows(a, port)) {
+				r.add(a);
+			}
+		}
+		return r;
+	}
+
+}
@@ -15,6 +15,8 @@
  */
 package org.sz.sproxy;
 
+import java.nio.ByteBuffer;
+
 import org.sz.sproxy.Writable.WR;
 
 /**
@@ -25,6 +27,14 @@ import org.sz.sproxy.Writable.WR;
  */
 public interface SocksAuthHandler {
 	
-	WR handleAuth(SocksConnection connection) throws SocksException;
+	/**
+	 * Handles the greeting of the client, the connection moves on to the command state afterwards.
+	 * 
+	 * @param connection
+	 * @param greeting the greeting, <code>VER</code> included
+	 * @return
+	 * @throws SocksException
+	 */
+	WR handleAuth(SocksConnection connection, ByteBuffer greeting) throws SocksException;
 
 }
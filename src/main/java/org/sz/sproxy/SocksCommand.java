@@ -15,6 +15,7 @@
  */
 package org.sz.sproxy;
 
+import java.nio.ByteBuffer;
 import java.util.function.Consumer;
 
 import org.sz.sproxy.Writable.WR;
@@ -27,6 +28,17 @@ import org.sz.sproxy.Writable.WR;
  */
 public interface SocksCommand {
 
-	WR execute(SocksConnection connection, Consumer<Object> onFinish, Object ctx) throws SocksException;
+	/**
+	 * Executes the command, reading from the connection is resumed by the command when it's ready to relay.
+	 * 
+	 * @param connection
+	 * @param request the rest of the request, from <code>RSV</code> on
+	 * @param onFinish
+	 * @param ctx
+	 * @return
+	 * @throws SocksException
+	 */
+	WR execute(SocksConnection connection, ByteBuffer request, Consumer<Object> onFinish, Object ctx)
+			throws SocksException;
 
 }
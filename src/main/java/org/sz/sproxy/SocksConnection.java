@@ -17,7 +17,9 @@ package org.sz.sproxy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 /**
@@ -46,4 +48,36 @@ public interface SocksConnection extends StatefulHandler<SocketChannel, SocksCon
 	void connectRemote(InetSocketAddress address, BiConsumer<ChannelHandler<SocketChannel>, Writable> connected,
 			Object ctx) throws IOException;
 	
+	/**
+	 * Connects to the first of the given addresses of the destination that accepts, by default to the first one.
+	 * 
+	 * @param addresses
+	 * @param connected
+	 * @param ctx
+	 * @throws IOException
+	 */
+	default void connectRemote(List<InetSocketAddress> addresses,
+			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected, Object ctx) throws IOException {
+		connectRemote(addresses.get(0), connected, ctx);
+	}
+	
+	/**
+	 * Pushes back the given bytes to be read before anything else, e.g. what's read along with a handshake. The
+	 * buffer is owned by this connection from then on.
+	 * 
+	 * @param buffer
+	 */
+	void unread(ByteBuffer buffer);
+	
+	/**
+	 * Starts relaying datagrams of the client, as long as this connection is open.
+	 * 
+	 * @param client the address from which the client sends datagrams, its address and port unspecified if unknown
+	 * @return the address to which the client should send datagrams
+	 * @throws IOException
+	 */
+	default InetSocketAddress associate(InetSocketAddress client) throws IOException {
+		throw new SocksException("UDP ASSOCIATE not supported");
+	}
+	
 }
@@ -51,4 +51,14 @@ public interface State<C extends NetworkChannel, H extends StatefulHandler<C, H>
 	 */
 	WR process(H handler) throws IOException;
 	
+	/**
+	 * Returns true if processing in this state may block, e.g. name resolution, handshake crypto or key file io,
+	 * in which case it's never run on a selector loop thread.
+	 * 
+	 * @return
+	 */
+	default boolean isBlocking() {
+		return false;
+	}
+	
 }
@@ -32,6 +32,14 @@ public interface Writable extends Flushable, WriteDoneNotifier {
 		AGAIN
 	}
 
+	/**
+	 * Writes the given buffer, which is owned by this writable from then on: the caller must not touch it again, and
+	 * it's released to the {@linkplain org.sz.sproxy.impl.BufferPool} once consumed if it came from there.
+	 * 
+	 * @param buffer
+	 * @return {@linkplain WR#AGAIN} if not fully written, in which case the rest is written later
+	 * @throws IOException
+	 */
 	WR write(ByteBuffer buffer) throws IOException;
 
 }
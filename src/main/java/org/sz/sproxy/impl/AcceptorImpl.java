@@ -16,22 +16,25 @@
 package org.sz.sproxy.impl;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.sz.sproxy.Acceptor;
 import org.sz.sproxy.BlackListAware;
 import org.sz.sproxy.ChannelHandler;
+import org.sz.sproxy.ChannelHandlerFactory;
 import org.sz.sproxy.Configuration;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.Server;
@@ -40,11 +43,14 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * Accepts on one listening socket, or on {@linkplain Configuration#getAcceptors()} sockets bound to the same address
+ * with <code>SO_REUSEPORT</code>, each registered with a selector loop of its own.
+ * 
  * @author Sam Zheng
  *
  */
 @Slf4j
-public class AcceptorImpl implements Acceptor, NioChannelHandler<ServerSocketChannel>, Runnable, BlackListAware {
+public class AcceptorImpl implements Acceptor, BlackListAware {
 
 	private static final long BL_TIMEOUT = 2 * 60 * 1000;
 
@@ -57,13 +63,15 @@ public class AcceptorImpl implements Acceptor, NioChannelHandler<ServerSocketCha
 	@Getter
 	ServerSocketChannel channel;
 
-	Selector selector;
+	SelectorLoopGroup loops;
 
-	SelectionKey selectionKey;
+	HashedWheelTimer timer;
 
-	Map<InetAddress, Long> blackList = new ConcurrentHashMap<>();
+	List<Listener> listeners = new ArrayList<>();
 
-	AcceptorImpl(Server server) {
+	Set<InetAddress> blackList = ConcurrentHashMap.newKeySet();
+
+	protected AcceptorImpl(Server server) {
 		this.server = server;
 		this.context = server.getContext();
 		if (context instanceof ContextImpl) {
@@ -76,110 +84,127 @@ public class AcceptorImpl implements Acceptor, NioChannelHandler<ServerSocketCha
 		StandardProtocolFamily f = "true".equals(context.getConfiguration().get(Configuration.SERVER_IPV6))
 				? StandardProtocolFamily.INET6
 				: StandardProtocolFamily.INET;
+		int n = context.getConfiguration().getAcceptors();
+		boolean reusePort = context.getConfiguration().isReusePort();
 		channel = ServerSocketChannel.open(f);
-		channel.configureBlocking(false);
-
-		channel.bind(new InetSocketAddress(server.getHost(), server.getPort()));
-		selector = context.getSelector();
-		selectionKey = channel.register(selector, SelectionKey.OP_ACCEPT, this);
-		Thread select = new Thread(this);
-		select.setName("selector");
-		select.start();
-
-		Thread blackListWatcher = new Thread(() -> {
-			while (true) {
-				long t = System.currentTimeMillis();
-				blackList.entrySet().stream().filter(e -> t - e.getValue() > BL_TIMEOUT).map(Entry::getKey).toList()
-						.forEach(k -> blackList.remove(k));
-				try {
-					Thread.sleep(5000);
-				} catch (InterruptedException e1) {
-					Thread.currentThread().interrupt();
-					log.debug("blacklist watcher interrupted", e1);
-				}
-			}
-		});
-		blackListWatcher.setDaemon(true);
-		blackListWatcher.setName("blacklist_watcher");
-		blackListWatcher.start();
-	}
-
-	private void processSelection(SelectionKey key) {
-		NioChannelHandler<?> handler = (NioChannelHandler<?>) key.attachment();
-		if (handler == null) {
-			log.debug("No handler, possibly the channel has been switched");
+		if (reusePort && !channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+			log.warn("SO_REUSEPORT not supported, listening on a single socket");
+			reusePort = false;
+			n = 1;
 		}
-		try {
-			if (!key.isValid()) {
-				log.debug("invalid selection key {}, skip", key);
-				return;
+		loops = context.getService(SelectorLoopGroup.class);
+		timer = context.getService(HashedWheelTimer.class);
+		SocketAddress address = new InetSocketAddress(server.getHost(), server.getPort());
+		for (int i = 0; i < n; i++) {
+			ServerSocketChannel ch = i == 0 ? channel : ServerSocketChannel.open(f);
+			if (reusePort) {
+				ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
 			}
-			int ops = key.readyOps();
-			key.interestOpsAnd(~ops); // reset interest until the handler finishes handling and set it again
-			handler.getExecutor().execute(Utils.EXEC_WITH_TH_NAME.apply(handler.getChannel().toString(), () -> {
-				try {
-					int expectedNext = handler.handle(ops);
-					if (expectedNext == -1) {
-						// closing
-						log.debug("closing in progress");
-					}
-				} catch (Throwable e) {
-					log.debug("Error handling channel {}, close", handler.getChannel(), e);
-					handler.close();
-				}
-			}));
-		} catch (Throwable e) {
-			Optional.ofNullable(handler).ifPresent(t -> t.close());
-			log.debug("Error processing selection key: {}", key);
+			ch.configureBlocking(false);
+			ch.bind(address);
+			address = ch.getLocalAddress(); // the same port for all even if it's ephemeral
+			listeners.add(new Listener(ch, loops.get(i), context.getChannelHandlerFactory()));
 		}
-
+		loops.start();
+		log.info("listening on {} with {} acceptor(s), reuse port: {}", address, n, reusePort);
 	}
 
-	@Override
-	public void run() {
+	/**
+	 * Listens on the given address too, once accepting, the connections accepted there are created by the given
+	 * factory rather than by the one of the context.
+	 * 
+	 * @param address
+	 * @param factory
+	 * @throws IOException
+	 */
+	protected void listen(InetSocketAddress address, ChannelHandlerFactory factory) throws IOException {
+		ServerSocketChannel ch = ServerSocketChannel.open(address.getAddress() instanceof Inet6Address
+				? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
 		try {
-			while (true) {
-				selector.select();
-				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-				while (it.hasNext()) {
-					SelectionKey k = it.next();
-					it.remove(); // must do this
-					processSelection(k);
-
-				}
-			}
+			ch.configureBlocking(false);
+			ch.bind(address);
+			SelectorLoop loop = loops.get(listeners.size());
+			listeners.add(new Listener(ch, loop, factory));
+			loop.wakeup(); // it may be polling already, blocked without the new channel
 		} catch (IOException e) {
-			log.error("Error", e);
+			ch.close();
+			throw e;
 		}
 	}
 
-	@Override
-	public int handle(int ops) throws IOException {
-		if (selectionKey.isAcceptable()) {
-			SocketChannel sc;
-			while ((sc = channel.accept()) != null) {
-				InetAddress addr = ((InetSocketAddress)sc.getRemoteAddress()).getAddress();
-				if (blackList.containsKey(addr)) {
-					sc.close();
-					log.debug("address {} on blacklist, refused", addr);
-					continue;
+	/**
+	 * A listening socket and the loop that polls it.
+	 */
+	class Listener implements NioChannelHandler<ServerSocketChannel> {
+
+		final ServerSocketChannel channel;
+
+		final SelectionKey selectionKey;
+
+		final SelectorLoop.Interest interest;
+
+		final ChannelHandlerFactory factory;
+
+		Listener(ServerSocketChannel channel, SelectorLoop loop, ChannelHandlerFactory factory) throws IOException {
+			this.channel = channel;
+			this.factory = factory;
+			selectionKey = loop.register(channel, SelectionKey.OP_ACCEPT, this);
+			interest = loop.interest(selectionKey);
+		}
+
+		@Override
+		public ServerSocketChannel getChannel() {
+			return channel;
+		}
+
+		@Override
+		public Context getContext() {
+			return context;
+		}
+
+		@Override
+		public boolean isInline() {
+			return context.getConfiguration().isEventLoop();
+		}
+
+		@Override
+		public int handle(int ops) throws IOException {
+			if (selectionKey.isAcceptable()) {
+				SocketChannel sc;
+				while ((sc = channel.accept()) != null) {
+					InetAddress addr = ((InetSocketAddress)sc.getRemoteAddress()).getAddress();
+					if (blackList.contains(addr)) {
+						sc.close();
+						log.debug("address {} on blacklist, refused", addr);
+						continue;
+					}
+					ChannelHandler<SocketChannel> conn = factory.createHandler(context, sc);
+					if (conn instanceof NioChannelHandler) {
+						((NioChannelHandler<?>) conn).start();
+					}
+					log.debug("connection created: {}", conn.getChannel());
 				}
-				ChannelHandler<SocketChannel> conn = context.getChannelHandlerFactory().createHandler(context, sc);
-				log.debug("connection created: {}", conn.getChannel());
+			} else {
+				log.error("Acceptor not acceptable, bug!");
 			}
-		} else {
-			log.error("Acceptor not acceptable, bug!");
+			interest.set(SelectionKey.OP_ACCEPT);
+			return ops;
+		}
+
+		@Override
+		public void close() {
+			AcceptorImpl.this.close();
 		}
-		selectionKey.interestOps(SelectionKey.OP_ACCEPT);
-		selector.wakeup();
-		return ops;
 	}
 
 	@Override
 	public void close() {
 		try {
-			channel.close();
-			selector.close();
+			for (Listener l : listeners) {
+				l.channel.close();
+			}
+			loops.close();
+			timer.stop();
 			log.info("closed");
 		} catch (IOException e) {
 			log.error("Error closing acceptor", e);
@@ -188,8 +213,8 @@ public class AcceptorImpl implements Acceptor, NioChannelHandler<ServerSocketCha
 
 	@Override
 	public void addBlackList(InetAddress address) {
-		if (!blackList.containsKey(address)) {
-			blackList.put(address, System.currentTimeMillis());
+		if (blackList.add(address)) {
+			timer.schedule(() -> blackList.remove(address), BL_TIMEOUT, TimeUnit.MILLISECONDS);
 		}
 	}
 
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import org.sz.sproxy.Configuration;
+
+/**
+ * Predicts the size of the next relay buffer of a connection: it doubles, up to the max, each time a read fills the
+ * buffer, and halves, down to the min, after two reads in a row that use less than a quarter of it, or once the flow
+ * has been idle for a while. Buffers larger than the min are not handed out while the pooled buffers in use exceed
+ * the memory budget.
+ * <p>
+ * Not thread safe, it's expected to be used by the handler of a connection which runs one at a time.
+ *
+ * @author Sam Zheng
+ *
+ */
+public class AdaptiveBufferSize {
+
+	static final long IDLE_NANOS = 1_000_000_000L;
+
+	private final int min;
+
+	private int max;
+
+	private final long memory;
+
+	private int size;
+
+	private boolean shrinking;
+
+	private long lastRead;
+
+	public AdaptiveBufferSize(Configuration config) {
+		this(config.getPacketBufferSize(), config.getPacketBufferMaxSize(), config.getPacketBufferMemory());
+	}
+
+	public AdaptiveBufferSize(int min, int max, long memory) {
+		this.min = min;
+		this.max = Math.max(min, max);
+		this.memory = memory;
+		size = min;
+	}
+
+	/**
+	 * Lowers the max size, e.g. to what fits in a frame.
+	 *
+	 * @param max
+	 */
+	public void limit(int max) {
+		this.max = Math.max(min, Math.min(this.max, max));
+		size = Math.min(size, this.max);
+	}
+
+	/**
+	 * Returns the size of the next buffer to read into.
+	 *
+	 * @return see above
+	 */
+	public int next() {
+		if (size > min) {
+			if (System.nanoTime() - lastRead > IDLE_NANOS) {
+				size = min; // idle, start over
+			} else if (BufferPool.inUse() > memory) {
+				return min;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Records that <code>n</code> bytes were read into a buffer of size <code>capacity</code>.
+	 *
+	 * @param n
+	 * @param capacity
+	 */
+	public void record(int n, int capacity) {
+		if (n >= capacity) {
+			size = Math.min(size << 1, max);
+			shrinking = false;
+		} else if (n < capacity >> 2) {
+			if (shrinking) {
+				size = Math.max(size >> 1, min);
+			}
+			shrinking = !shrinking;
+		} else {
+			shrinking = false;
+		}
+		if (size > min) {
+			lastRead = System.nanoTime();
+		}
+	}
+
+}
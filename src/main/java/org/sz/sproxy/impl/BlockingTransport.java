@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@linkplain Transport} backed by a blocking channel with one thread per direction, virtual threads if supported
+ * by the running jvm.
+ * <p>
+ * It emulates a non-blocking channel so that states run unchanged on top of it: the reader thread blocks reading
+ * into a receive buffer and delivers {@linkplain SelectionKey#OP_READ} when it's interested, reads drain the receive
+ * buffer and return 0 once it's empty; writes are copied into a bounded send queue drained by the writer thread,
+ * which delivers {@linkplain SelectionKey#OP_WRITE} when interested and there's room in the queue.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class BlockingTransport<C extends SelectableChannel & ByteChannel> implements Transport {
+
+	static final int RECV_BUF_SIZE = 4 * Utils.PAGE_SIZE;
+
+	static final int SEND_BUF_SIZE = 16 * Utils.PAGE_SIZE;
+
+	// how long closing waits for the writer thread to write what's queued, as a socket would send its buffer
+	static final long LINGER_MILLIS = 1000;
+
+	private static final ThreadFactory THREADS = Optional.ofNullable(Utils.virtualThreadFactory()).orElse(r -> {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final C channel;
+
+	private volatile NioChannelHandler<?> handler;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition changed = lock.newCondition();
+
+	private int interest = SelectionKey.OP_READ;
+
+	private volatile boolean closed;
+
+	private boolean started;
+
+	private SocketAddress remote;
+
+	// received but not yet read, in read mode, pooled while the reader thread runs and accessed by it only
+	private ByteBuffer in;
+
+	private boolean eof;
+
+	// pushed back, read before in
+	private volatile ByteBuffer unread;
+
+	private final Deque<ByteBuffer> sendQueue = new ArrayDeque<>();
+
+	private int queued;
+
+	private Thread writer;
+
+	public BlockingTransport(C channel, NioChannelHandler<?> handler) throws IOException {
+		this.channel = channel;
+		this.handler = handler;
+		channel.configureBlocking(true);
+	}
+
+	@Override
+	public void start() {
+		lock.lock();
+		try {
+			if (started || closed) {
+				return;
+			}
+			started = true;
+		} finally {
+			lock.unlock();
+		}
+		String name = channel.toString();
+		Thread w = newThread(name + "_writer", this::writeLoop);
+		lock.lock();
+		try {
+			writer = w;
+		} finally {
+			lock.unlock();
+		}
+		newThread(name + "_reader", this::readLoop).start();
+		w.start();
+	}
+
+	private static Thread newThread(String name, Runnable r) {
+		Thread t = THREADS.newThread(r);
+		t.setName(name);
+		return t;
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		ByteBuffer u = unread;
+		if (u != null) {
+			int n = Math.min(buffer.remaining(), u.remaining());
+			buffer.put(buffer.position(), u, u.position(), n);
+			buffer.position(buffer.position() + n);
+			u.position(u.position() + n);
+			if (!u.hasRemaining()) {
+				unread = null;
+				BufferPool.release(u);
+			}
+			return n;
+		}
+		if (in == null || !in.hasRemaining()) {
+			return eof ? -1 : 0;
+		}
+		int n = Math.min(buffer.remaining(), in.remaining());
+		buffer.put(buffer.position(), in, in.position(), n);
+		buffer.position(buffer.position() + n);
+		in.position(in.position() + n);
+		return n;
+	}
+
+	/**
+	 * Delivered by the reader thread once reading is of interest, or along with what's read next if it's already
+	 * blocked reading.
+	 */
+	@Override
+	public void unread(ByteBuffer buffer) {
+		if (unread != null) {
+			throw new IllegalStateException("already pushed back");
+		}
+		unread = buffer;
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws IOException {
+		return (int) write(new ByteBuffer[] { buffer }, 0, 1);
+	}
+
+	/**
+	 * Copies as much as the send queue has room for into one buffer queued for the writer thread.
+	 */
+	@Override
+	public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		lock.lock();
+		try {
+			if (closed) {
+				throw new ClosedChannelException();
+			}
+			long r = 0;
+			for (int i = offset; i < offset + length; i++) {
+				r += buffers[i].remaining();
+			}
+			int n = (int) Math.min(r, SEND_BUF_SIZE - queued);
+			if (n <= 0) {
+				return 0;
+			}
+			ByteBuffer b = BufferPool.acquire(n);
+			for (int i = offset; i < offset + length && b.hasRemaining(); i++) {
+				ByteBuffer src = buffers[i];
+				int m = Math.min(src.remaining(), b.remaining());
+				b.put(b.position(), src, src.position(), m);
+				b.position(b.position() + m);
+				src.position(src.position() + m);
+			}
+			sendQueue.add(b.flip());
+			queued += n;
+			changed.signalAll();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void connect(SocketAddress address) throws IOException {
+		lock.lock();
+		try {
+			remote = address; // connected by the reader thread
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void setHandler(NioChannelHandler<?> handler) {
+		this.handler = handler;
+	}
+
+	@Override
+	public int interestOps() {
+		lock.lock();
+		try {
+			return interest;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void interestOpsOr(int ops) {
+		lock.lock();
+		try {
+			interest |= ops;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void interestOpsAnd(int ops) {
+		lock.lock();
+		try {
+			interest &= ops;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isValid() {
+		return !closed;
+	}
+
+	@Override
+	public void wakeup() {
+		// interest changes take effect immediately
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			closed = true;
+			changed.signalAll();
+			// bytes written before closing are not dropped, unless the peer doesn't take them in time
+			long nanos = TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+			while (!sendQueue.isEmpty() && writer != null && writer != Thread.currentThread() && nanos > 0) {
+				nanos = changed.awaitNanos(nanos);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		BufferPool.release(unread);
+		unread = null;
+		channel.close(); // unblocks pending reads and writes
+	}
+
+	private boolean writable() {
+		return (interest & SelectionKey.OP_WRITE) != 0 && queued < SEND_BUF_SIZE;
+	}
+
+	private void readLoop() {
+		in = BufferPool.acquire(RECV_BUF_SIZE).flip();
+		try {
+			SocketAddress r;
+			lock.lock();
+			try {
+				r = remote;
+			} finally {
+				lock.unlock();
+			}
+			if (r != null) {
+				try {
+					((SocketChannel) channel).connect(r);
+				} catch (IOException e) {
+					log.debug("Error connecting {}: {}", r, e.toString()); // reported by finishConnect()
+				}
+				SelectorLoop.handle(handler, SelectionKey.OP_CONNECT);
+				if (!((SocketChannel) channel).isConnected()) {
+					return; // failed, nothing to read
+				}
+			}
+			while (true) {
+				lock.lock();
+				try {
+					while (!closed && (interest & SelectionKey.OP_READ) == 0) {
+						changed.await();
+					}
+					if (closed) {
+						return;
+					}
+					interest &= ~SelectionKey.OP_READ; // re-armed by the handler
+				} finally {
+					lock.unlock();
+				}
+				if (!in.hasRemaining() && unread == null && !eof) {
+					in.clear();
+					try {
+						eof = channel.read(in) == -1;
+					} finally {
+						in.flip();
+					}
+				}
+				SelectorLoop.handle(handler, SelectionKey.OP_READ);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if (!closed) {
+				log.debug("Error reading {}, close", channel, e);
+				handler.close();
+			}
+		} finally {
+			ByteBuffer b = in;
+			in = null;
+			BufferPool.release(b);
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				ByteBuffer[] batch = null;
+				lock.lock();
+				try {
+					while (!closed && sendQueue.isEmpty() && !writable()) {
+						changed.await();
+					}
+					if (closed && sendQueue.isEmpty()) {
+						return;
+					}
+					if (!closed && writable()) {
+						interest &= ~SelectionKey.OP_WRITE; // re-armed by the handler
+					} else {
+						batch = new ByteBuffer[Math.min(sendQueue.size(), NioConnection.MAX_GATHER)];
+						Iterator<ByteBuffer> it = sendQueue.iterator();
+						for (int i = 0; i < batch.length; i++) {
+							batch[i] = it.next();
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+				if (batch == null) {
+					SelectorLoop.handle(handler, SelectionKey.OP_WRITE);
+					continue;
+				}
+				long n = 0;
+				for (ByteBuffer b : batch) {
+					n += b.remaining();
+				}
+				GatheringByteChannel out = (GatheringByteChannel) channel; // socket channels only
+				for (long w = 0; w < n;) {
+					w += out.write(batch, 0, batch.length);
+				}
+				lock.lock();
+				try {
+					for (int i = 0; i < batch.length; i++) {
+						BufferPool.release(sendQueue.poll());
+					}
+					queued -= (int) n;
+					if (closed) {
+						changed.signalAll(); // to the closing thread
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			if (!closed) {
+				log.debug("Error writing {}, close", channel, e);
+				handler.close();
+			}
+		} finally {
+			lock.lock();
+			try {
+				BufferPool.release(sendQueue);
+				sendQueue.clear();
+				queued = 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A pool of direct buffers in power of 2 size classes from {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes, with a
+ * small per-thread cache in front of a bounded shared pool for each class. Larger requests get unpooled heap
+ * buffers.
+ * <p>
+ * A buffer acquired must be released exactly once and not used afterwards. Releasing heap buffers, such as the
+ * unpooled ones, is a no-op, but any direct buffer of a size class is taken in as if it had been acquired, so direct
+ * buffers not acquired from this pool, duplicates and slices of pooled ones included, must never be released. Buffers
+ * written to a {@linkplain org.sz.sproxy.Writable} are owned by the writable from then on.
+ * <p>
+ * If debug logging is enabled for this class, buffers garbage collected without being released are reported with
+ * the stack trace of where they were acquired, so are buffers released twice.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public final class BufferPool {
+
+	public static final int MIN_SIZE = 1 << 9;
+
+	public static final int MAX_SIZE = 16 * Utils.PAGE_SIZE;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	private static final int THREAD_CACHE_SIZE = 16;
+
+	// bytes kept in the shared pool per size class
+	private static final int SHARED_BYTES = 1 << 22;
+
+	@SuppressWarnings("unchecked")
+	private static final ArrayBlockingQueue<ByteBuffer>[] SHARED = new ArrayBlockingQueue[CLASSES];
+
+	private static final LongAdder IN_USE = new LongAdder();
+
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> CACHE = ThreadLocal.withInitial(() -> {
+		@SuppressWarnings("unchecked")
+		ArrayDeque<ByteBuffer>[] c = new ArrayDeque[CLASSES];
+		for (int i = 0; i < CLASSES; i++) {
+			c[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+		}
+		return c;
+	});
+
+	// virtual threads come and go, they'd strand buffers in their caches
+	private static final MethodHandle IS_VIRTUAL;
+
+	private static final boolean LEAK_DETECTION = log.isDebugEnabled();
+
+	private static final ReferenceQueue<ByteBuffer> COLLECTED = new ReferenceQueue<>();
+
+	// outstanding buffers by identity hash, debug only
+	private static final Map<Integer, List<Tracked>> OUTSTANDING = new HashMap<>();
+
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			SHARED[i] = new ArrayBlockingQueue<>(Math.max(THREAD_CACHE_SIZE, SHARED_BYTES >> (i + MIN_SHIFT)));
+		}
+		MethodHandle h = null;
+		try {
+			h = MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+		} catch (ReflectiveOperationException e) {
+			// java 17, no virtual threads
+		}
+		IS_VIRTUAL = h;
+	}
+
+	private static final class Tracked extends WeakReference<ByteBuffer> {
+
+		final Throwable trace = new Throwable("acquired at");
+
+		final int capacity;
+
+		Tracked(ByteBuffer buffer) {
+			super(buffer, COLLECTED);
+			capacity = buffer.capacity();
+		}
+	}
+
+	private BufferPool() {
+
+	}
+
+	/**
+	 * Acquires a buffer with at least <code>size</code> bytes, its limit set to <code>size</code>.
+	 *
+	 * @param size
+	 * @return see above
+	 */
+	public static ByteBuffer acquire(int size) {
+		if (size > MAX_SIZE) {
+			return ByteBuffer.allocate(size);
+		}
+		int c = sizeClass(size);
+		ByteBuffer b = null;
+		ArrayDeque<ByteBuffer>[] cache = threadCache();
+		if (cache != null) {
+			b = cache[c].poll();
+		}
+		if (b == null) {
+			b = SHARED[c].poll();
+		}
+		if (b == null) {
+			b = ByteBuffer.allocateDirect(MIN_SIZE << c);
+		}
+		b.clear().limit(size);
+		IN_USE.add(b.capacity());
+		if (LEAK_DETECTION) {
+			track(b);
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the given buffer to the pool, null, heap buffers and direct buffers of no size class are ignored. Other
+	 * direct buffers are not checked to be from this pool, unless debug logging is enabled for this class.
+	 *
+	 * @param buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+		int cap = buffer.capacity();
+		if (cap < MIN_SIZE || cap > MAX_SIZE || Integer.bitCount(cap) != 1) {
+			return;
+		}
+		if (LEAK_DETECTION && !untrack(buffer)) {
+			log.warn("buffer released twice or not acquired from the pool", new Throwable("released at"));
+			return;
+		}
+		IN_USE.add(-cap);
+		int c = sizeClass(cap);
+		ArrayDeque<ByteBuffer>[] cache = threadCache();
+		if (cache != null && cache[c].size() < THREAD_CACHE_SIZE) {
+			cache[c].push(buffer);
+		} else {
+			SHARED[c].offer(buffer); // dropped if full
+		}
+	}
+
+	/**
+	 * Releases all the given buffers.
+	 *
+	 * @param buffers
+	 */
+	public static void release(Iterable<ByteBuffer> buffers) {
+		buffers.forEach(BufferPool::release);
+	}
+
+	/**
+	 * Returns the bytes of pooled buffers acquired and not yet released.
+	 *
+	 * @return see above
+	 */
+	public static long inUse() {
+		return IN_USE.sum();
+	}
+
+	static int sizeClass(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	private static ArrayDeque<ByteBuffer>[] threadCache() {
+		if (IS_VIRTUAL != null) {
+			try {
+				if ((boolean) IS_VIRTUAL.invokeExact(Thread.currentThread())) {
+					return null;
+				}
+			} catch (Throwable e) {
+				return null;
+			}
+		}
+		return CACHE.get();
+	}
+
+	private static void track(ByteBuffer buffer) {
+		synchronized (OUTSTANDING) {
+			reportLeaks();
+			OUTSTANDING.computeIfAbsent(System.identityHashCode(buffer), k -> new ArrayList<>(1))
+					.add(new Tracked(buffer));
+		}
+	}
+
+	private static boolean untrack(ByteBuffer buffer) {
+		synchronized (OUTSTANDING) {
+			int h = System.identityHashCode(buffer);
+			List<Tracked> l = OUTSTANDING.get(h);
+			if (l != null) {
+				for (int i = 0; i < l.size(); i++) {
+					if (l.get(i).get() == buffer) {
+						l.remove(i);
+						if (l.isEmpty()) {
+							OUTSTANDING.remove(h);
+						}
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	private static void reportLeaks() {
+		Tracked t;
+		while ((t = (Tracked) COLLECTED.poll()) != null) {
+			boolean leaked = false;
+			for (List<Tracked> l : OUTSTANDING.values()) {
+				if (l.remove(t)) {
+					leaked = true;
+					break;
+				}
+			}
+			OUTSTANDING.values().removeIf(List::isEmpty);
+			if (leaked) {
+				IN_USE.add(-t.capacity);
+				log.warn("LEAK: buffer garbage collected without being released", t.trace);
+			}
+		}
+	}
+
+}
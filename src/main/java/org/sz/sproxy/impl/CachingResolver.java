@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.impl.DnsResolver.Answer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A bounded cache in front of a {@linkplain DnsResolver}. Answers are kept for their time to live, bounded by
+ * {@linkplain Configuration#getDnsCacheMinTtl()} and {@linkplain Configuration#getDnsCacheMaxTtl()}, unknown names
+ * and failures for {@linkplain Configuration#getDnsCacheNegativeTtl()}. Names looked up since they were last
+ * resolved are resolved again in the background shortly before they expire, so that names in use keep being
+ * answered from the cache.
+ * <p>
+ * Beyond {@linkplain Configuration#getDnsCacheSize()} names, the least recently looked up are evicted by a clock
+ * that gives every name looked up since its last pass a second chance.
+ * <p>
+ * Hits, misses, refreshes and evictions are counted, and logged every {@linkplain Configuration#getStatsInterval()}
+ * seconds.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class CachingResolver implements Resolver {
+
+	// the ttl of answers of the system resolver, the default of the jdk's own cache
+	static final int UNKNOWN_TTL = 30;
+
+	// the fraction of the ttl after which names in use are resolved again
+	static final double REFRESH_AHEAD = 0.9;
+
+	private final DnsResolver resolver;
+
+	private final HashedWheelTimer timer;
+
+	private final int maxSize;
+
+	private final int minTtl;
+
+	private final int maxTtl;
+
+	private final int negativeTtl;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	// entries in insertion order, for eviction
+	private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger clockSize = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder refreshes = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	public CachingResolver(Context context, DnsResolver resolver) {
+		this.resolver = resolver;
+		Configuration config = context.getConfiguration();
+		timer = context.getService(HashedWheelTimer.class);
+		maxSize = Math.max(1, config.getDnsCacheSize());
+		minTtl = config.getDnsCacheMinTtl();
+		maxTtl = Math.max(minTtl, config.getDnsCacheMaxTtl());
+		negativeTtl = config.getDnsCacheNegativeTtl();
+		Utils.logStats(context, this, log);
+	}
+
+	private static final class Entry {
+
+		final String name;
+
+		// the answer, or the lookup in flight until the entry is filled
+		volatile CompletableFuture<List<InetAddress>> value = new CompletableFuture<>();
+
+		// nano time, valid once filled
+		volatile long expires;
+
+		volatile boolean filled;
+
+		// looked up since the clock last passed
+		volatile boolean referenced;
+
+		// looked up since last resolved
+		volatile boolean used;
+
+		// removed from the cache
+		volatile boolean dead;
+
+		Entry(String name) {
+			this.name = name;
+		}
+
+		boolean isValid(long now) {
+			return !dead && (!filled || expires - now > 0);
+		}
+	}
+
+	@Override
+	public CompletableFuture<List<InetAddress>> resolve(String host) {
+		String name = DnsResolver.normalize(host);
+		List<InetAddress> known = resolver.known(name);
+		if (known != null) {
+			return CompletableFuture.completedFuture(known);
+		}
+		while (true) {
+			Entry e = entries.get(name);
+			if (e != null && e.isValid(System.nanoTime())) {
+				hits.increment();
+				e.referenced = true;
+				e.used = true;
+				return e.value.copy();
+			}
+			Entry n = new Entry(name);
+			if (e == null ? entries.putIfAbsent(name, n) != null : !entries.replace(name, e, n)) {
+				continue; // raced with another lookup of the name
+			}
+			misses.increment();
+			if (e != null) {
+				e.dead = true;
+			}
+			admit(n);
+			resolver.lookup(name).whenComplete((a, ex) -> fill(n, a, ex));
+			return n.value.copy();
+		}
+	}
+
+	private void fill(Entry e, Answer a, Throwable ex) {
+		CompletableFuture<List<InetAddress>> f = e.value;
+		if (ex != null) {
+			expireIn(e, negativeTtl, TimeUnit.SECONDS);
+			timer.schedule(() -> remove(e), negativeTtl, TimeUnit.SECONDS);
+			f.completeExceptionally(ex);
+		} else if (a.getTtl() == 0) { // a literal or in the hosts file, not worth caching
+			remove(e);
+			f.complete(a.getAddresses());
+		} else {
+			long ttl = ttl(a);
+			expireIn(e, ttl, TimeUnit.MILLISECONDS);
+			timer.schedule(() -> refreshAhead(e), (long) (ttl * REFRESH_AHEAD), TimeUnit.MILLISECONDS);
+			f.complete(a.getAddresses());
+		}
+	}
+
+	// milliseconds
+	private long ttl(Answer a) {
+		int ttl = a.getTtl() < 0 ? UNKNOWN_TTL : a.getTtl();
+		return TimeUnit.SECONDS.toMillis(Math.min(maxTtl, Math.max(minTtl, ttl)));
+	}
+
+	private void expireIn(Entry e, long ttl, TimeUnit unit) {
+		e.expires = System.nanoTime() + unit.toNanos(ttl);
+		e.used = false;
+		e.filled = true;
+	}
+
+	private void refreshAhead(Entry e) {
+		if (e.dead) {
+			return;
+		}
+		long left = e.expires - System.nanoTime();
+		if (!e.used) { // not in use, let it go once expired
+			timer.schedule(() -> remove(e), Math.max(0, left), TimeUnit.NANOSECONDS);
+			return;
+		}
+		refreshes.increment();
+		resolver.lookup(e.name).whenComplete((a, ex) -> {
+			if (e.dead) {
+				return;
+			}
+			if (ex != null || a.getTtl() == 0) {
+				// the answer at hand is good until it expires
+				log.debug("Error refreshing {}: {}", e.name, String.valueOf(ex));
+				timer.schedule(() -> remove(e), Math.max(0, e.expires - System.nanoTime()), TimeUnit.NANOSECONDS);
+				return;
+			}
+			long ttl = ttl(a);
+			e.value = CompletableFuture.completedFuture(a.getAddresses());
+			expireIn(e, ttl, TimeUnit.MILLISECONDS);
+			timer.schedule(() -> refreshAhead(e), (long) (ttl * REFRESH_AHEAD), TimeUnit.MILLISECONDS);
+		});
+	}
+
+	private void remove(Entry e) {
+		if (!e.dead && entries.remove(e.name, e)) {
+			e.dead = true;
+		}
+	}
+
+	private void admit(Entry e) {
+		clock.add(e);
+		if (clockSize.incrementAndGet() <= maxSize) {
+			return;
+		}
+		// removed entries are dropped as the clock passes, so that they count until then
+		Entry c;
+		while (clockSize.get() > maxSize && (c = clock.poll()) != null) {
+			if (!c.dead && c.referenced) {
+				c.referenced = false; // second chance
+				clock.add(c);
+				continue;
+			}
+			clockSize.decrementAndGet();
+			if (!c.dead) {
+				remove(c);
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of names cached, including lookups in flight.
+	 *
+	 * @return see above
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of names resolved again before they expired.
+	 *
+	 * @return see above
+	 */
+	public long getRefreshes() {
+		return refreshes.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "dns cache size: " + size() + ", hits: " + getHits() + ", misses: " + getMisses() + ", refreshes: "
+				+ getRefreshes() + ", evictions: " + getEvictions();
+	}
+
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.sz.sproxy.Ruleset;
+
+/**
+ * A {@linkplain Ruleset} compiled from lines of rules such as
+ * 
+ * <pre>
+ * # comment
+ * default deny
+ * allow 10.0.0.0/8
+ * deny  10.1.2.3 22
+ * allow 2001:db8::/32 443
+ * allow example.com 80,443,8000-8999
+ * deny  *.ads.example.com
+ * </pre>
+ * 
+ * i.e. <code>allow|deny target [ports]</code>, the target being an address, a CIDR block, a domain, which matches its
+ * subdomains too, or <code>*</code> for any domain, the ports a comma separated list of ports and ranges, any port if
+ * omitted. Destinations matched by no rule are allowed unless there's a <code>default deny</code>.
+ * <p>
+ * Address rules are compiled into a binary trie per address family, domain rules into a trie of their labels from the
+ * last, so that evaluating a destination takes a walk down the trie, however many rules there are. The most specific
+ * target matching the destination wins, among the rules of the same target the first one whose ports include the
+ * port of the destination.
+ *
+ * @author Sam Zheng
+ *
+ */
+public final class CompiledRuleset implements Ruleset {
+
+	private final AddressTrie v4 = new AddressTrie();
+
+	private final AddressTrie v6 = new AddressTrie();
+
+	private final DomainNode domains = new DomainNode();
+
+	private final String allowAction;
+
+	private final String denyAction;
+
+	private boolean allowByDefault;
+
+	private int size;
+
+	/**
+	 * A rule of a target.
+	 */
+	private static final class Rule {
+
+		// lower and upper bounds, null for any port
+		final int[] ports;
+
+		final boolean allow;
+
+		Rule(int[] ports, boolean allow) {
+			this.ports = ports;
+			this.allow = allow;
+		}
+
+		boolean matches(int port) {
+			if (ports == null) {
+				return true;
+			}
+			for (int i = 0; i < ports.length; i += 2) {
+				if (port >= ports[i] && port <= ports[i + 1]) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		static Rule first(Rule[] rules, int port) {
+			if (rules != null) {
+				for (Rule r : rules) {
+					if (r.matches(port)) {
+						return r;
+					}
+				}
+			}
+			return null;
+		}
+
+		static Rule[] append(Rule[] rules, Rule r) {
+			if (rules == null) {
+				return new Rule[] { r };
+			}
+			Rule[] a = Arrays.copyOf(rules, rules.length + 1);
+			a[rules.length] = r;
+			return a;
+		}
+	}
+
+	/**
+	 * A binary trie of address prefixes in arrays, node 0 being the root and child 0 meaning none.
+	 */
+	private static final class AddressTrie {
+
+		int[] zero = new int[64];
+
+		int[] one = new int[64];
+
+		// index + 1 into rules, 0 for none
+		int[] ruleIndex = new int[64];
+
+		Rule[][] rules = new Rule[16][];
+
+		int nodes = 1;
+
+		int ruleCount;
+
+		void add(byte[] address, int bits, Rule rule) {
+			int n = 0;
+			for (int i = 0; i < bits; i++) {
+				int b = bit(address, i);
+				int c = b == 0 ? zero[n] : one[n];
+				if (c == 0) {
+					c = node(); // the arrays may grow
+					if (b == 0) {
+						zero[n] = c;
+					} else {
+						one[n] = c;
+					}
+				}
+				n = c;
+			}
+			if (ruleIndex[n] == 0) {
+				if (ruleCount == rules.length) {
+					rules = Arrays.copyOf(rules, ruleCount << 1);
+				}
+				ruleIndex[n] = ++ruleCount;
+			}
+			rules[ruleIndex[n] - 1] = Rule.append(rules[ruleIndex[n] - 1], rule);
+		}
+
+		private int node() {
+			if (nodes == zero.length) {
+				zero = Arrays.copyOf(zero, nodes << 1);
+				one = Arrays.copyOf(one, nodes << 1);
+				ruleIndex = Arrays.copyOf(ruleIndex, nodes << 1);
+			}
+			return nodes++;
+		}
+
+		void trim() {
+			zero = Arrays.copyOf(zero, nodes);
+			one = Arrays.copyOf(one, nodes);
+			ruleIndex = Arrays.copyOf(ruleIndex, nodes);
+			rules = Arrays.copyOf(rules, ruleCount);
+		}
+
+		Rule match(byte[] address, int port) {
+			Rule found = null;
+			int bits = address.length << 3;
+			int n = 0;
+			for (int i = 0;; i++) {
+				int r = ruleIndex[n];
+				if (r != 0) {
+					Rule m = Rule.first(rules[r - 1], port);
+					if (m != null) {
+						found = m;
+					}
+				}
+				if (i == bits || (n = bit(address, i) == 0 ? zero[n] : one[n]) == 0) {
+					return found;
+				}
+			}
+		}
+
+		private static int bit(byte[] address, int i) {
+			return (address[i >> 3] >> (7 - (i & 7))) & 1;
+		}
+	}
+
+	/**
+	 * A node of the domain trie, its children keyed by the next label towards the host.
+	 */
+	private static final class DomainNode {
+
+		Map<String, DomainNode> children;
+
+		Rule[] rules;
+
+		DomainNode child(String label) {
+			if (children == null) {
+				children = new HashMap<>();
+			}
+			return children.computeIfAbsent(label, l -> new DomainNode());
+		}
+	}
+
+	private CompiledRuleset(String allowAction, String denyAction, boolean allowByDefault) {
+		this.allowAction = allowAction;
+		this.denyAction = denyAction;
+		this.allowByDefault = allowByDefault;
+	}
+
+	/**
+	 * Compiles the given lines of rules.
+	 * 
+	 * @param lines
+	 * @return see above
+	 * @throws IllegalArgumentException if a line is not a valid rule
+	 */
+	public static CompiledRuleset compile(List<String> lines) {
+		return compile(lines, "allow", "deny", true);
+	}
+
+	/**
+	 * Compiles the given lines of rules whose actions are named otherwise, e.g. routes of <code>direct</code> and
+	 * <code>tunnel</code> rules.
+	 * 
+	 * @param lines
+	 * @param allowAction in place of <code>allow</code>
+	 * @param denyAction in place of <code>deny</code>
+	 * @param allowByDefault for destinations matched by no rule unless there's a default rule
+	 * @return see above
+	 * @throws IllegalArgumentException if a line is not a valid rule
+	 */
+	public static CompiledRuleset compile(List<String> lines, String allowAction, String denyAction,
+			boolean allowByDefault) {
+		CompiledRuleset r = new CompiledRuleset(allowAction, denyAction, allowByDefault);
+		int n = 0;
+		for (String line : lines) {
+			n++;
+			int c = line.indexOf('#');
+			String l = (c < 0 ? line : line.substring(0, c)).trim();
+			if (l.isEmpty()) {
+				continue;
+			}
+			try {
+				r.add(l.split("\\s+"));
+			} catch (RuntimeException e) {
+				throw new IllegalArgumentException("Invalid rule at line " + n + ": " + line, e);
+			}
+		}
+		r.v4.trim();
+		r.v6.trim();
+		return r;
+	}
+
+	private void add(String[] t) {
+		if (t.length < 2 || t.length > 3) {
+			throw new IllegalArgumentException("expecting " + allowAction + "|" + denyAction + " target [ports]");
+		}
+		boolean allow = action(t[0].equals("default") ? t[1] : t[0]);
+		if (t[0].equals("default")) {
+			if (t.length != 2) {
+				throw new IllegalArgumentException("expecting default " + allowAction + "|" + denyAction);
+			}
+			allowByDefault = allow;
+			return;
+		}
+		Rule rule = new Rule(t.length == 3 ? ports(t[2]) : null, allow);
+		String target = t[1];
+		int slash = target.indexOf('/');
+		InetAddress a = DnsResolver.literal(slash < 0 ? target : target.substring(0, slash));
+		if (a != null) {
+			byte[] b = a.getAddress();
+			int bits = slash < 0 ? b.length << 3 : Integer.parseInt(target.substring(slash + 1));
+			if (bits < 0 || bits > b.length << 3) {
+				throw new IllegalArgumentException("invalid prefix length " + bits);
+			}
+			(a instanceof Inet4Address ? v4 : v6).add(b, bits, rule);
+		} else if (slash >= 0) {
+			throw new IllegalArgumentException("invalid address " + target);
+		} else {
+			DomainNode n = domains;
+			String d = normalize(target.startsWith("*.") ? target.substring(2) : target);
+			if (!d.equals("*")) {
+				for (int end = d.length(); end > 0;) {
+					int dot = d.lastIndexOf('.', end - 1);
+					if (dot == end - 1) {
+						throw new IllegalArgumentException("empty label");
+					}
+					n = n.child(d.substring(dot + 1, end));
+					end = dot;
+				}
+			}
+			n.rules = Rule.append(n.rules, rule);
+		}
+		size++;
+	}
+
+	private boolean action(String s) {
+		if (s.equals(allowAction)) {
+			return true;
+		} else if (s.equals(denyAction)) {
+			return false;
+		}
+		throw new IllegalArgumentException("expecting " + allowAction + " or " + denyAction + " instead of " + s);
+	}
+
+	private static int[] ports(String s) {
+		if (s.equals("*")) {
+			return null;
+		}
+		String[] p = s.split(",");
+		int[] r = new int[p.length << 1];
+		for (int i = 0; i < p.length; i++) {
+			int dash = p[i].indexOf('-');
+			r[i << 1] = port(dash < 0 ? p[i] : p[i].substring(0, dash));
+			r[(i << 1) + 1] = port(dash < 0 ? p[i] : p[i].substring(dash + 1));
+			if (r[i << 1] > r[(i << 1) + 1]) {
+				throw new IllegalArgumentException("invalid port range " + p[i]);
+			}
+		}
+		return r;
+	}
+
+	private static int port(String s) {
+		int p = Integer.parseInt(s);
+		if (p < 0 || p > 0xFFFF) {
+			throw new IllegalArgumentException("invalid port " + s);
+		}
+		return p;
+	}
+
+	private static String normalize(String host) {
+		String h = host.toLowerCase(Locale.ROOT);
+		return h.endsWith(".") ? h.substring(0, h.length() - 1) : h;
+	}
+
+	/**
+	 * Returns the number of rules, the default one excluded.
+	 * 
+	 * @return see above
+	 */
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public Boolean allows(String host, int port) {
+		String h = normalize(host);
+		DomainNode n = domains;
+		Rule found = Rule.first(n.rules, port);
+		for (int end = h.length(); end > 0 && n.children != null;) {
+			int dot = h.lastIndexOf('.', end - 1);
+			n = n.children.get(h.substring(dot + 1, end));
+			if (n == null) {
+				break;
+			}
+			Rule r = Rule.first(n.rules, port);
+			if (r != null) {
+				found = r;
+			}
+			end = dot;
+		}
+		return found == null ? null : found.allow;
+	}
+
+	@Override
+	public boolean allows(InetAddress address, int port) {
+		Rule r = (address instanceof Inet4Address ? v4 : v6).match(address.getAddress(), port);
+		return r == null ? allowByDefault : r.allow;
+	}
+
+	@Override
+	public boolean allowsByDefault() {
+		return allowByDefault;
+	}
+
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Connects a {@linkplain NioConnection} to the first of several addresses that accepts, as of Happy Eyeballs
+ * (RFC 8305). The addresses are ordered so that their families alternate, the own channel of the connection
+ * connects to the first one, and every {@linkplain Configuration#getConnectAttemptDelay()} without a connected
+ * channel, or as soon as an attempt fails, a channel of its own is opened to connect to the next one. The connection
+ * takes over the channel that connects first, the others are closed.
+ * <p>
+ * An unreachable address thus delays connecting by the attempt delay at most, instead of the connect timeout.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+final class ConnectRace {
+
+	private final NioConnection<?, ?> connection;
+
+	// the addresses yet to be attempted
+	private final Deque<SocketAddress> addresses;
+
+	private final long delay;
+
+	private SocketAddress ownAddress;
+
+	// the own channel of the connection is connecting
+	private boolean own;
+
+	// in flight on channels of their own
+	private final List<Attempt> attempts = new ArrayList<>();
+
+	// connected first, until the connection takes it over
+	private Attempt winner;
+
+	// a channel has connected, or the connection has been closed
+	private boolean settled;
+
+	private Timeout next;
+
+	private IOException failure;
+
+	ConnectRace(NioConnection<?, ?> connection, List<? extends SocketAddress> addresses) {
+		this.connection = connection;
+		this.addresses = new ArrayDeque<>(interleave(addresses));
+		delay = connection.getContext().getConfiguration().getConnectAttemptDelay();
+	}
+
+	/**
+	 * Orders the given addresses so that IPv4 and IPv6 ones alternate, starting with the family of the first one.
+	 *
+	 * @param addresses
+	 * @return see above
+	 */
+	static List<SocketAddress> interleave(List<? extends SocketAddress> addresses) {
+		List<SocketAddress> first = new ArrayList<>();
+		List<SocketAddress> other = new ArrayList<>();
+		boolean v6 = isV6(addresses.get(0));
+		addresses.forEach(a -> (isV6(a) == v6 ? first : other).add(a));
+		List<SocketAddress> r = new ArrayList<>(addresses.size());
+		for (int i = 0; i < Math.max(first.size(), other.size()); i++) {
+			if (i < first.size()) {
+				r.add(first.get(i));
+			}
+			if (i < other.size()) {
+				r.add(other.get(i));
+			}
+		}
+		return r;
+	}
+
+	private static boolean isV6(SocketAddress a) {
+		return a instanceof InetSocketAddress && ((InetSocketAddress) a).getAddress() instanceof Inet6Address;
+	}
+
+	/**
+	 * Connects the own channel of the connection to the first address.
+	 *
+	 * @throws IOException if no address could be connected to right away
+	 */
+	synchronized void start() throws IOException {
+		ownAddress = addresses.poll();
+		try {
+			connection.transport.connect(ownAddress);
+			connection.transport.start();
+			own = true;
+		} catch (IOException e) {
+			failed(ownAddress, e);
+			if (attempts.isEmpty()) {
+				throw failure;
+			}
+			return;
+		}
+		scheduleNext();
+	}
+
+	/**
+	 * Called by the connection on {@linkplain SelectionKey#OP_CONNECT}, takes over the channel of the winning attempt
+	 * if any, otherwise finishes connecting the own channel.
+	 *
+	 * @return true if the connection is now connected, false if it's still racing
+	 * @throws IOException if all attempts have failed
+	 */
+	synchronized boolean settle() throws IOException {
+		if (winner != null) {
+			Attempt w = winner;
+			winner = null;
+			w.adopted = true;
+			Transport old = connection.takeOver(w.channel, w.transport);
+			own = false;
+			try {
+				old.close();
+			} catch (IOException e) {
+				log.debug("Error closing {}", ownAddress, e);
+			}
+			return true;
+		}
+		if (!own) {
+			return false; // failed or lost already
+		}
+		try {
+			if (!((SocketChannel) connection.getChannel()).finishConnect()) {
+				connection.transport.interestOpsOr(SelectionKey.OP_CONNECT);
+				return false;
+			}
+		} catch (IOException e) {
+			own = false;
+			if (failed(ownAddress, e)) {
+				throw failure;
+			}
+			return false;
+		}
+		own = false;
+		settled = true;
+		closeAttempts();
+		return true;
+	}
+
+	/**
+	 * Closes the attempts in flight, called once the connection is closed.
+	 */
+	synchronized void close() {
+		settled = true;
+		closeAttempts();
+		if (winner != null) {
+			winner.close();
+			winner = null;
+		}
+	}
+
+	private void closeAttempts() {
+		cancelNext();
+		attempts.forEach(Attempt::close);
+		attempts.clear();
+	}
+
+	private synchronized boolean claim(Attempt t) {
+		attempts.remove(t);
+		if (settled) {
+			t.close();
+			return false;
+		}
+		settled = true;
+		winner = t;
+		closeAttempts();
+		return true;
+	}
+
+	private synchronized boolean failed(Attempt t, IOException e) {
+		attempts.remove(t);
+		t.close();
+		return failed(t.address, e);
+	}
+
+	// returns true if all attempts have failed
+	private boolean failed(SocketAddress address, IOException e) {
+		log.debug("Error connecting {}: {}", address, e.toString());
+		failure = e;
+		launch(); // the next one right away
+		return !settled && !own && attempts.isEmpty();
+	}
+
+	// starts connecting to the next address that can be connected to, if not settled
+	private void launch() {
+		SocketAddress a;
+		while (!settled && (a = addresses.poll()) != null) {
+			try {
+				attempts.add(new Attempt(a));
+				scheduleNext();
+				return;
+			} catch (IOException e) {
+				log.debug("Error connecting {}: {}", a, e.toString());
+				failure = e;
+			}
+		}
+	}
+
+	private void scheduleNext() {
+		cancelNext();
+		if (!addresses.isEmpty()) {
+			next = connection.getTimer().schedule(this::delayed, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void cancelNext() {
+		if (next != null) {
+			next.cancel();
+			next = null;
+		}
+	}
+
+	private void delayed() {
+		boolean failed;
+		synchronized (this) {
+			launch();
+			failed = !settled && !own && attempts.isEmpty();
+		}
+		if (failed) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Connects a channel of its own to an address.
+	 */
+	private final class Attempt implements NioChannelHandler<SocketChannel> {
+
+		final SocketAddress address;
+
+		final SocketChannel channel;
+
+		Transport transport;
+
+		// taken over by the connection
+		volatile boolean adopted;
+
+		private boolean closed;
+
+		Attempt(SocketAddress address) throws IOException {
+			this.address = address;
+			channel = SocketChannel.open();
+			try {
+				transport = connection.createTransport(channel, this);
+				transport.connect(address);
+				transport.start();
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		@Override
+		public int handle(int ops) throws IOException {
+			try {
+				if (!channel.finishConnect()) {
+					transport.interestOpsOr(SelectionKey.OP_CONNECT);
+					return 0;
+				}
+			} catch (IOException e) {
+				if (failed(this, e)) {
+					connection.close();
+				}
+				return 0;
+			}
+			if (claim(this)) {
+				log.debug("Connected {}, racing {}", address, ownAddress);
+				connection.handle(SelectionKey.OP_CONNECT);
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean isInline() {
+			return connection.isInline();
+		}
+
+		@Override
+		public Executor getExecutor() {
+			return connection.getExecutor();
+		}
+
+		@Override
+		public SocketChannel getChannel() {
+			return channel;
+		}
+
+		@Override
+		public Context getContext() {
+			return connection.getContext();
+		}
+
+		@Override
+		public void close() {
+			if (adopted) { // errors handling the connection end up here
+				connection.close();
+				return;
+			}
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			try {
+				if (transport != null) {
+					transport.close();
+				} else {
+					channel.close();
+				}
+			} catch (IOException e) {
+				log.debug("Error closing {}", address, e);
+			}
+		}
+
+	}
+
+}
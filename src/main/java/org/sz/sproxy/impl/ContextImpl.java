@@ -16,6 +16,7 @@
 package org.sz.sproxy.impl;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.nio.channels.Selector;
 import java.util.Arrays;
@@ -32,6 +33,8 @@ import org.sz.sproxy.ChannelHandlerFactory;
 import org.sz.sproxy.Configuration;
 import org.sz.sproxy.ConnectionListener;
 import org.sz.sproxy.Context;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.Ruleset;
 import org.sz.sproxy.Server;
 import org.sz.sproxy.SocksCommandFactory;
 
@@ -57,7 +60,13 @@ public class ContextImpl implements Context, ConnectionListener, BlackListAware
 	
 	protected Executor taskExecutor;
 	
-	protected Selector selector;
+	protected SelectorLoopGroup loops;
+	
+	protected HashedWheelTimer timer;
+	
+	protected Resolver resolver;
+	
+	protected Ruleset ruleset;
 	
 	@Getter
 	protected SocksCommandFactory commandFactory;
@@ -80,18 +89,41 @@ public class ContextImpl implements Context, ConnectionListener, BlackListAware
 	}
 	
 	@Override
-	public Executor getTaskExecutor() {
+	public synchronized Executor getTaskExecutor() {
 		if (taskExecutor == null) {
-			taskExecutor = Executors.newCachedThreadPool(r -> {
-				Thread t = new Thread(r);
-				t.setDaemon(true);
-				t.setName("task_executor");
-				return t;
-			});	
+			if (Configuration.TASK_EXECUTOR_VIRTUAL.equalsIgnoreCase(configuration.getTaskExecutorType())) {
+				taskExecutor = createVirtualThreadExecutor();
+			}
+			if (taskExecutor == null) {
+				taskExecutor = Executors.newCachedThreadPool(r -> {
+					Thread t = new Thread(r);
+					t.setDaemon(true);
+					t.setName("task_executor");
+					return t;
+				});
+			}
 		}
 		return taskExecutor;
 	}
 	
+	/**
+	 * Creates an executor that starts a virtual thread for each task, it's looked up reflectively so that this
+	 * class still compiles and runs on java 17.
+	 * 
+	 * @return the executor or null if virtual threads are not supported by the running jvm
+	 */
+	protected Executor createVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			Executor e = (Executor) m.invoke(null);
+			log.info("running tasks on virtual threads");
+			return e;
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			log.warn("virtual threads not supported by this jvm, falling back to platform threads");
+			return null;
+		}
+	}
+	
 	protected SocksCommandFactory createCommandFactory() {
 		return new SocksCommandFactoryImpl();
 	}
@@ -109,6 +141,14 @@ public class ContextImpl implements Context, ConnectionListener, BlackListAware
 	public <T> T getService(Class<T> clazz) {
 		if (clazz == Selector.class) {
 			return (T) getSelector();
+		} else if (clazz == SelectorLoopGroup.class) {
+			return (T) getLoops();
+		} else if (clazz == HashedWheelTimer.class) {
+			return (T) getTimer();
+		} else if (clazz == Resolver.class) {
+			return (T) getResolver();
+		} else if (clazz == Ruleset.class) {
+			return (T) getRuleset();
 		} else if (clazz.isAssignableFrom(getClass())) {
 			return (T) this;
 		}
@@ -130,16 +170,57 @@ public class ContextImpl implements Context, ConnectionListener, BlackListAware
 		log.debug("Connection being closed: {}", conn.getChannel());
 	}
 	
-	@Override
-	public synchronized Selector getSelector() {
-		if (selector == null) {
-			try {
-				selector = Selector.open();
-			} catch (IOException e) {
-				throw new RuntimeException(e); // fatal
-			}
+	public synchronized SelectorLoopGroup getLoops() {
+		if (loops == null) {
+			loops = new SelectorLoopGroup(configuration);
 		}
-		return selector;
+		return loops;
+	}
+	
+	public synchronized HashedWheelTimer getTimer() {
+		if (timer == null) {
+			timer = new HashedWheelTimer("timer");
+		}
+		return timer;
+	}
+	
+	public synchronized Resolver getResolver() {
+		if (resolver == null) {
+			resolver = createResolver();
+		}
+		return resolver;
+	}
+	
+	protected Resolver createResolver() {
+		try {
+			DnsResolver dns = new DnsResolver(this);
+			return configuration.getDnsCacheSize() > 0 ? new CachingResolver(this, dns) : dns;
+		} catch (IOException e) {
+			throw new RuntimeException(e); // fatal
+		}
+	}
+	
+	public synchronized Ruleset getRuleset() {
+		if (ruleset == null) {
+			ruleset = createRuleset();
+		}
+		return ruleset;
+	}
+	
+	protected Ruleset createRuleset() {
+		if (configuration.getRulesFile().isEmpty()) {
+			return Ruleset.ALLOW_ALL;
+		}
+		try {
+			return new FileRuleset(this);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // fatal
+		}
+	}
+	
+	@Override
+	public Selector getSelector() {
+		return getLoops().get(0).getSelector();
 	}
 
 	@Override
@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.SocksException;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A {@linkplain Resolver} that sends DNS queries over UDP from a {@linkplain DatagramChannel} polled by a selector
+ * loop, so that no thread waits on a lookup. A and AAAA records are queried at the same time, lookups of a name in
+ * flight share its queries, and a query not answered within {@linkplain Configuration#getDnsTimeout()} is sent to
+ * the next server.
+ * <p>
+ * Address literals and names in the hosts file are answered without querying. Names without a dot, which the system
+ * resolver would qualify with search domains, and all names if there's no server to query, are resolved by the
+ * system resolver on the task executor.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class DnsResolver implements Resolver, NioChannelHandler<DatagramChannel> {
+
+	public static final int DNS_PORT = 53;
+
+	static final int TYPE_A = 1;
+
+	static final int TYPE_AAAA = 28;
+
+	static final int CLASS_IN = 1;
+
+	static final int RCODE_OK = 0;
+
+	static final int RCODE_NXDOMAIN = 3;
+
+	static final int MAX_NAME = 253;
+
+	// plenty for answers without EDNS, which are no more than 512 bytes
+	private static final int MAX_MESSAGE = 4096;
+
+	private static final int MAX_POINTERS = 64;
+
+	private static final String RESOLV_CONF = "/etc/resolv.conf";
+
+	private static final String HOSTS = "/etc/hosts";
+
+	private static final Comparator<InetAddress> V4_FIRST = Comparator.comparing(a -> a instanceof Inet6Address);
+
+	@Getter
+	private final Context context;
+
+	private final List<InetSocketAddress> servers;
+
+	private final long timeout;
+
+	private final int attempts;
+
+	private final Map<String, List<InetAddress>> hosts;
+
+	private final HashedWheelTimer timer;
+
+	// lookups in flight by name
+	private final Map<String, CompletableFuture<Answer>> lookups = new ConcurrentHashMap<>();
+
+	// queries waiting for answers by id
+	private final Map<Integer, Query> queries = new ConcurrentHashMap<>();
+
+	// null if there's no server to query
+	private DatagramChannel channel;
+
+	private SelectorLoop.Interest interest;
+
+	// only used by the loop
+	private ByteBuffer in;
+
+	public DnsResolver(Context context) throws IOException {
+		this.context = context;
+		Configuration config = context.getConfiguration();
+		servers = parseServers(config.getDnsServers());
+		timeout = config.getDnsTimeout();
+		attempts = Math.max(1, config.getDnsAttempts());
+		hosts = loadHosts(Paths.get(HOSTS));
+		timer = context.getService(HashedWheelTimer.class);
+		if (!servers.isEmpty()) {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(null);
+			in = ByteBuffer.allocateDirect(MAX_MESSAGE);
+			SelectorLoop loop = context.getService(SelectorLoopGroup.class).next();
+			interest = loop.interest(loop.register(channel, SelectionKey.OP_READ, this));
+			loop.start();
+			loop.wakeup();
+		}
+		log.info("dns servers: {}", servers.isEmpty() ? "system resolver" : servers);
+	}
+
+	@Override
+	public CompletableFuture<List<InetAddress>> resolve(String host) {
+		return lookup(host).thenApply(Answer::getAddresses);
+	}
+
+	/**
+	 * Resolves the given host as {@linkplain #resolve(String)} does, along with the time to live of the addresses.
+	 *
+	 * @param host
+	 * @return see above
+	 */
+	public CompletableFuture<Answer> lookup(String host) {
+		String name = normalize(host);
+		List<InetAddress> known = known(name);
+		if (known != null) {
+			return CompletableFuture.completedFuture(new Answer(known, 0));
+		}
+		if (channel == null || name.indexOf('.') < 0) {
+			return CompletableFuture.supplyAsync(() -> resolveBlocking(host), context.getTaskExecutor());
+		}
+		try {
+			name = IDN.toASCII(name);
+			if (name.isEmpty() || name.length() > MAX_NAME) {
+				throw new IllegalArgumentException("name too long");
+			}
+		} catch (IllegalArgumentException e) {
+			return CompletableFuture.failedFuture(new UnknownHostException(host + ": " + e.getMessage()));
+		}
+		CompletableFuture<Answer> f = new CompletableFuture<>();
+		CompletableFuture<Answer> inFlight = lookups.putIfAbsent(name, f);
+		if (inFlight != null) {
+			return inFlight.copy();
+		}
+		String n = name;
+		f.whenComplete((r, e) -> lookups.remove(n, f));
+		Lookup lookup = new Lookup(name, f);
+		send(lookup, TYPE_A, 0);
+		send(lookup, TYPE_AAAA, 0);
+		return f.copy();
+	}
+
+	static String normalize(String host) {
+		String name = host.toLowerCase(Locale.ROOT);
+		return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+	}
+
+	/**
+	 * Returns the addresses of the given normalized name if it's an address literal or in the hosts file.
+	 *
+	 * @param name
+	 * @return see above, or null if it has to be looked up
+	 */
+	List<InetAddress> known(String name) {
+		List<InetAddress> known = hosts.get(name);
+		if (known == null) {
+			InetAddress a = literal(name);
+			known = a == null ? null : Collections.singletonList(a);
+		}
+		return known;
+	}
+
+	private static Answer resolveBlocking(String host) {
+		try {
+			List<InetAddress> r = new ArrayList<>(Arrays.asList(InetAddress.getAllByName(host)));
+			r.sort(V4_FIRST);
+			return new Answer(r, -1);
+		} catch (UnknownHostException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * The addresses of a host and the seconds for which they may be cached, 0 for addresses that are not looked up
+	 * and -1 if unknown.
+	 */
+	@Getter
+	public static final class Answer {
+
+		private final List<InetAddress> addresses;
+
+		private final int ttl;
+
+		Answer(List<InetAddress> addresses, int ttl) {
+			this.addresses = addresses;
+			this.ttl = ttl;
+		}
+	}
+
+	// the records of a single query
+	static final class Decoded {
+
+		final int rcode;
+
+		final List<InetAddress> addresses = new ArrayList<>(1);
+
+		// the least of the records answered, CNAMEs included
+		int ttl = Integer.MAX_VALUE;
+
+		Decoded(int rcode) {
+			this.rcode = rcode;
+		}
+	}
+
+	// both A and AAAA records of a name, completed once both queries are done
+	private static class Lookup {
+
+		final String name;
+
+		final CompletableFuture<Answer> future;
+
+		// guarded by this
+		final List<InetAddress> v4 = new ArrayList<>(1);
+
+		final List<InetAddress> v6 = new ArrayList<>(1);
+
+		int ttl = Integer.MAX_VALUE;
+
+		int remaining = 2;
+
+		Lookup(String name, CompletableFuture<Answer> future) {
+			this.name = name;
+			this.future = future;
+		}
+
+		void done(int type, Decoded d) {
+			List<InetAddress> all;
+			int t;
+			synchronized (this) {
+				if (d != null && !d.addresses.isEmpty()) {
+					(type == TYPE_A ? v4 : v6).addAll(d.addresses);
+					ttl = Math.min(ttl, d.ttl);
+				}
+				if (--remaining > 0) {
+					return;
+				}
+				all = new ArrayList<>(v4.size() + v6.size());
+				all.addAll(v4);
+				all.addAll(v6);
+				t = ttl;
+			}
+			// completed outside of the monitor, what's chained runs right away
+			if (all.isEmpty()) {
+				future.completeExceptionally(new UnknownHostException(name));
+			} else {
+				future.complete(new Answer(Collections.unmodifiableList(all), t));
+			}
+		}
+	}
+
+	// one attempt of a query, whoever removes it from the queries answers or retries it
+	private static class Query {
+
+		final int id;
+
+		final Lookup lookup;
+
+		final int type;
+
+		final int attempt;
+
+		final InetSocketAddress server;
+
+		volatile Timeout timeout;
+
+		Query(int id, Lookup lookup, int type, int attempt, InetSocketAddress server) {
+			this.id = id;
+			this.lookup = lookup;
+			this.type = type;
+			this.attempt = attempt;
+			this.server = server;
+		}
+	}
+
+	private void send(Lookup lookup, int type, int attempt) {
+		if (attempt == attempts) {
+			log.debug("no answer for {}, type {}", lookup.name, type);
+			lookup.done(type, null);
+			return;
+		}
+		InetSocketAddress server = servers.get(attempt % servers.size());
+		Query q;
+		do {
+			q = new Query(ThreadLocalRandom.current().nextInt(0x10000), lookup, type, attempt, server);
+		} while (queries.putIfAbsent(q.id, q) != null);
+		Query query = q;
+		q.timeout = timer.schedule(() -> timedOut(query), timeout, TimeUnit.MILLISECONDS);
+		ByteBuffer buf = encodeQuery(q.id, lookup.name, type);
+		try {
+			channel.send(buf, server); // lost if the socket buffer is full, resent once timed out
+		} catch (IOException e) {
+			log.debug("Error sending dns query to {}: {}", server, e.toString());
+		} finally {
+			BufferPool.release(buf);
+		}
+	}
+
+	private void timedOut(Query q) {
+		if (queries.remove(q.id, q)) {
+			send(q.lookup, q.type, q.attempt + 1);
+		}
+	}
+
+	private void received(SocketAddress from, ByteBuffer msg) throws UnknownHostException {
+		Query q = queries.get(msg.getShort(0) & 0xFFFF);
+		if (q == null || !q.server.equals(from)) {
+			log.debug("unexpected dns answer from {}", from);
+			return;
+		}
+		Decoded d = decodeAnswer(msg, q.lookup.name, q.type);
+		if (d == null || !queries.remove(q.id, q)) {
+			return; // not an answer to the query, or the query has timed out meanwhile
+		}
+		Timeout t = q.timeout;
+		if (t != null) {
+			t.cancel();
+		}
+		if (d.rcode == RCODE_OK || d.rcode == RCODE_NXDOMAIN) {
+			q.lookup.done(q.type, d);
+		} else {
+			log.debug("dns server {} failed {}, rcode: {}", from, q.lookup.name, d.rcode);
+			send(q.lookup, q.type, q.attempt + 1);
+		}
+	}
+
+	static ByteBuffer encodeQuery(int id, String name, int type) {
+		ByteBuffer buf = BufferPool.acquire(12 + name.length() + 2 + 4);
+		buf.putShort((short) id);
+		buf.putShort((short) 0x0100); // standard query, recursion desired
+		buf.putShort((short) 1); // QDCOUNT
+		buf.putShort((short) 0);
+		buf.putShort((short) 0);
+		buf.putShort((short) 0);
+		for (String label : name.split("\\.")) {
+			buf.put((byte) label.length());
+			buf.put(label.getBytes(StandardCharsets.US_ASCII));
+		}
+		buf.put((byte) 0);
+		buf.putShort((short) type);
+		buf.putShort((short) CLASS_IN);
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * Decodes the given message as an answer to the given question.
+	 *
+	 * @param msg
+	 * @param name
+	 * @param type
+	 * @return the answer, or null if it's not an answer to the question
+	 * @throws UnknownHostException
+	 */
+	static Decoded decodeAnswer(ByteBuffer msg, String name, int type) throws UnknownHostException {
+		int flags = msg.getShort(2) & 0xFFFF;
+		if ((flags & 0x8000) == 0 || (msg.getShort(4) & 0xFFFF) != 1) {
+			return null; // not a response, or not to a single question
+		}
+		int answers = msg.getShort(6) & 0xFFFF;
+		msg.position(12);
+		if (!name.equalsIgnoreCase(readName(msg)) || (msg.getShort() & 0xFFFF) != type
+				|| (msg.getShort() & 0xFFFF) != CLASS_IN) {
+			return null;
+		}
+		Decoded d = new Decoded(flags & 0xF);
+		int len = type == TYPE_A ? 4 : 16;
+		for (int i = 0; i < answers; i++) {
+			readName(msg); // the owner, an alias of the name if there're CNAMEs
+			int t = msg.getShort() & 0xFFFF;
+			int c = msg.getShort() & 0xFFFF;
+			int ttl = Math.max(0, msg.getInt()); // with the top bit set, it's taken as 0 as of RFC 2181
+			int rdlen = msg.getShort() & 0xFFFF;
+			d.ttl = Math.min(d.ttl, ttl);
+			if (t == type && c == CLASS_IN && rdlen == len) {
+				byte[] a = new byte[len];
+				msg.get(a);
+				d.addresses.add(InetAddress.getByAddress(name, a));
+			} else {
+				msg.position(msg.position() + rdlen);
+			}
+		}
+		return d;
+	}
+
+	static String readName(ByteBuffer msg) {
+		StringBuilder sb = new StringBuilder();
+		int pos = msg.position();
+		int end = -1; // right after the name, once a pointer is followed
+		int pointers = 0;
+		while (true) {
+			int len = msg.get(pos++) & 0xFF;
+			if (len == 0) {
+				break;
+			}
+			if ((len & 0xC0) == 0xC0) { // compressed, the rest is elsewhere
+				if (++pointers > MAX_POINTERS) {
+					throw new IllegalArgumentException("dns name pointer loop");
+				}
+				if (end < 0) {
+					end = pos + 1;
+				}
+				pos = (len & 0x3F) << 8 | (msg.get(pos) & 0xFF);
+				continue;
+			}
+			if (sb.length() > 0) {
+				sb.append('.');
+			}
+			for (int i = 0; i < len; i++) {
+				sb.append((char) (msg.get(pos++) & 0xFF));
+			}
+		}
+		msg.position(end < 0 ? pos : end);
+		return sb.toString();
+	}
+
+	// address literals are parsed, never looked up
+	static InetAddress literal(String host) {
+		if (host.isEmpty()) {
+			return null;
+		}
+		if (host.indexOf(':') < 0 && !host.chars().allMatch(c -> c == '.' || Character.isDigit(c))) {
+			return null;
+		}
+		try {
+			return InetAddress.getByName(host);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+
+	static List<InetSocketAddress> parseServers(String spec) {
+		if (Configuration.DNS_SYSTEM.equalsIgnoreCase(spec.trim())) {
+			return Collections.emptyList();
+		}
+		if (spec.isBlank()) {
+			return systemServers(Paths.get(RESOLV_CONF));
+		}
+		List<InetSocketAddress> r = new ArrayList<>();
+		for (String s : spec.trim().split("[,\\s]+")) {
+			String h = s;
+			int port = DNS_PORT;
+			int colon = s.lastIndexOf(':');
+			if (s.startsWith("[")) { // [v6]:port
+				int i = s.indexOf(']');
+				h = s.substring(1, i);
+				if (colon > i) {
+					port = Integer.parseInt(s.substring(colon + 1));
+				}
+			} else if (colon > 0 && s.indexOf(':') == colon) { // v4:port
+				h = s.substring(0, colon);
+				port = Integer.parseInt(s.substring(colon + 1));
+			}
+			InetAddress a = literal(h);
+			if (a == null) {
+				throw new SocksException("Invalid dns server: " + s);
+			}
+			r.add(new InetSocketAddress(a, port));
+		}
+		return r;
+	}
+
+	private static List<InetSocketAddress> systemServers(Path file) {
+		List<InetSocketAddress> r = new ArrayList<>();
+		if (!Files.isReadable(file)) {
+			return r;
+		}
+		try {
+			for (String line : Files.readAllLines(file)) {
+				String[] t = line.trim().split("\\s+");
+				InetAddress a;
+				if (t.length > 1 && "nameserver".equals(t[0]) && (a = literal(t[1])) != null) {
+					r.add(new InetSocketAddress(a, DNS_PORT));
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Error reading {}: {}", file, e.toString());
+		}
+		return r;
+	}
+
+	private static Map<String, List<InetAddress>> loadHosts(Path file) {
+		Map<String, List<InetAddress>> r = new HashMap<>();
+		if (Files.isReadable(file)) {
+			try {
+				for (String line : Files.readAllLines(file)) {
+					int i = line.indexOf('#');
+					String[] t = (i < 0 ? line : line.substring(0, i)).trim().split("\\s+");
+					InetAddress a = t.length > 1 ? literal(t[0]) : null;
+					for (int j = 1; a != null && j < t.length; j++) {
+						String name = t[j].toLowerCase(Locale.ROOT);
+						InetAddress named = InetAddress.getByAddress(name, a.getAddress());
+						r.computeIfAbsent(name, k -> new ArrayList<>(1)).add(named);
+					}
+				}
+			} catch (IOException e) {
+				log.warn("Error reading {}: {}", file, e.toString());
+			}
+		}
+		r.values().forEach(l -> l.sort(V4_FIRST));
+		r.putIfAbsent("localhost", Collections.singletonList(InetAddress.getLoopbackAddress()));
+		return r;
+	}
+
+	@Override
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public boolean isInline() {
+		return true; // answers are short and decoded on the loop
+	}
+
+	@Override
+	public int handle(int ops) throws IOException {
+		try {
+			SocketAddress from;
+			while ((from = channel.receive(in.clear())) != null) {
+				in.flip();
+				try {
+					received(from, in);
+				} catch (RuntimeException | UnknownHostException e) {
+					log.debug("Malformed dns answer from {}: {}", from, e.toString());
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Error receiving dns answers: {}", e.toString());
+		}
+		interest.or(SelectionKey.OP_READ);
+		return 0;
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			log.debug("Error closing dns channel", e);
+		}
+	}
+
+}
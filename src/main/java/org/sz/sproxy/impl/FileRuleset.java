@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.Ruleset;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The {@linkplain Ruleset} of a file, {@linkplain Configuration#getRulesFile()} by default, which is checked for
+ * changes every {@linkplain Configuration#getRulesReloadInterval()} and compiled again on the task executor once changed. The new
+ * rules replace the old ones all at once, so that a destination is evaluated by either, while a file that fails to
+ * compile or is missing is logged once and leaves the old ones in place until it's changed again.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class FileRuleset implements Ruleset {
+
+	private final Context context;
+
+	private final Path file;
+
+	private final long interval;
+
+	private final Function<List<String>, CompiledRuleset> compiler;
+
+	private volatile CompiledRuleset rules;
+
+	// of the file last compiled, or failed to
+	private long modified;
+
+	private long size;
+
+	private boolean missing;
+
+	private boolean closed;
+
+	private Timeout reloading;
+
+	/**
+	 * Compiles the rules of the configured file.
+	 *
+	 * @param context
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if it's not valid
+	 */
+	public FileRuleset(Context context) throws IOException {
+		this(context, context.getConfiguration().getRulesFile(), context.getConfiguration().getRulesReloadInterval(),
+				CompiledRuleset::compile);
+	}
+
+	/**
+	 * Compiles the rules of the given file with the given compiler.
+	 *
+	 * @param context
+	 * @param file
+	 * @param interval in milliseconds between checks for changes, 0 for never
+	 * @param compiler
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if it's not valid
+	 */
+	public FileRuleset(Context context, String file, long interval, Function<List<String>, CompiledRuleset> compiler)
+			throws IOException {
+		this.context = context;
+		this.file = Paths.get(file);
+		this.interval = interval;
+		this.compiler = compiler;
+		load();
+		log.info("{} rules loaded from {}", rules.size(), file);
+		scheduleReload();
+	}
+
+	// returns false if the file is being written
+	private boolean load() throws IOException {
+		BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+		modified = a.lastModifiedTime().toMillis();
+		size = a.size();
+		CompiledRuleset r = compiler.apply(Files.readAllLines(file, StandardCharsets.UTF_8));
+		if (rules != null && changed(Files.readAttributes(file, BasicFileAttributes.class), a)) {
+			modified = -1; // try again later
+			return false;
+		}
+		rules = r;
+		return true;
+	}
+
+	private static boolean changed(BasicFileAttributes a, BasicFileAttributes b) {
+		return a.lastModifiedTime().toMillis() != b.lastModifiedTime().toMillis() || a.size() != b.size();
+	}
+
+	private synchronized void scheduleReload() {
+		if (interval > 0 && !closed) {
+			reloading = context.getService(HashedWheelTimer.class).schedule(
+					() -> context.getTaskExecutor().execute(this::reload), interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Compiles the file again if it's changed since last compiled, or failed to.
+	 */
+	synchronized void reload() {
+		if (closed) {
+			return;
+		}
+		try {
+			BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+			missing = false;
+			if (a.lastModifiedTime().toMillis() != modified || a.size() != size) {
+				if (load()) {
+					log.info("{} rules reloaded from {}", rules.size(), file);
+				}
+			}
+		} catch (NoSuchFileException e) {
+			if (!missing) {
+				missing = true;
+				log.warn("Rules file {} not found, the old rules stay in place", file);
+			}
+		} catch (IOException | RuntimeException e) {
+			log.error("Error reloading rules from {}, the old ones stay in place", file, e);
+		} finally {
+			scheduleReload();
+		}
+	}
+
+	/**
+	 * Stops checking the file for changes.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (reloading != null) {
+			reloading.cancel();
+		}
+	}
+
+	@Override
+	public Boolean allows(String host, int port) {
+		return rules.allows(host, port);
+	}
+
+	@Override
+	public boolean allows(InetAddress address, int port) {
+		return rules.allows(address, port);
+	}
+
+	@Override
+	public boolean allowsByDefault() {
+		return rules.allowsByDefault();
+	}
+
+}
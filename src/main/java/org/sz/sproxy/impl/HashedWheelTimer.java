@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A hashed timing wheel: timeouts are hashed by their deadline into a ring of buckets that a single thread visits one
+ * per tick, so scheduling and cancelling are O(1) and the precision is one tick. The thread parks while nothing is
+ * scheduled.
+ * <p>
+ * Expired tasks run on the timer thread, they must be short and not block, e.g. {@linkplain NioConnection#close()}.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class HashedWheelTimer {
+
+	public static final long DEF_TICK_MILLIS = 100;
+
+	public static final int DEF_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	// scheduled, not yet in a bucket
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	// cancelled, to be unlinked from their buckets
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	// scheduled and neither expired nor cancelled
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final String name;
+
+	private volatile Thread worker;
+
+	// the worker is parked until something is scheduled
+	private volatile boolean idle;
+
+	private volatile boolean stopped;
+
+	private long startTime;
+
+	private long tick;
+
+	public HashedWheelTimer(String name) {
+		this(name, DEF_TICK_MILLIS, TimeUnit.MILLISECONDS, DEF_WHEEL_SIZE);
+	}
+
+	public HashedWheelTimer(String name, long tick, TimeUnit unit, int wheelSize) {
+		this.name = name;
+		tickNanos = Math.max(1, unit.toNanos(tick));
+		int n = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+		wheel = new Bucket[n];
+		for (int i = 0; i < n; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = n - 1;
+	}
+
+	/**
+	 * Schedules the given task to run once after the given delay.
+	 *
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 * @return the timeout, with which the task can be cancelled
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+		pending.incrementAndGet();
+		added.add(t);
+		if (idle) {
+			LockSupport.unpark(worker);
+		}
+		return t;
+	}
+
+	/**
+	 * Returns the number of tasks scheduled and neither expired nor cancelled.
+	 *
+	 * @return see above
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the timer thread, tasks pending are dropped.
+	 */
+	public void stop() {
+		stopped = true;
+		Thread w = worker;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	private void start() {
+		if (worker == null) {
+			synchronized (this) {
+				if (worker == null) {
+					Thread t = new Thread(this::run, name);
+					t.setDaemon(true);
+					startTime = System.nanoTime();
+					worker = t;
+					t.start();
+				}
+			}
+		}
+	}
+
+	private void run() {
+		while (!stopped) {
+			awaitTick();
+			if (stopped) {
+				break;
+			}
+			transferAdded();
+			unlinkCancelled();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+		log.debug("timer {} stopped", name);
+	}
+
+	// waits until the end of the current tick, or, while nothing's scheduled, until something is
+	private void awaitTick() {
+		while (!stopped) {
+			if (pending.get() == 0) {
+				// drop what's cancelled, not to hold on to the tasks while parked
+				transferAdded();
+				unlinkCancelled();
+				idle = true;
+				if (pending.get() == 0) {
+					LockSupport.park(this);
+				}
+				idle = false;
+				// nothing was due meanwhile, skip the ticks passed
+				tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+				if (pending.get() == 0) {
+					continue;
+				}
+			}
+			long wait = startTime + (tick + 1) * tickNanos - System.nanoTime();
+			if (wait <= 0) {
+				return;
+			}
+			LockSupport.parkNanos(this, wait);
+		}
+	}
+
+	private void transferAdded() {
+		Timeout t;
+		while ((t = added.poll()) != null) {
+			if (t.state != Timeout.INIT) {
+				continue; // cancelled before it got here
+			}
+			long ticks = (t.deadline - startTime) / tickNanos; // its bucket is expired at the end of the tick
+			t.rounds = (ticks - tick) / wheel.length;
+			wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+		}
+	}
+
+	private void unlinkCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null) {
+				t.bucket.remove(t);
+			}
+		}
+	}
+
+	/**
+	 * A task scheduled with a {@linkplain HashedWheelTimer}.
+	 */
+	public final class Timeout {
+
+		static final int INIT = 0;
+
+		static final int CANCELLED = 1;
+
+		static final int EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final Runnable task;
+
+		private final long deadline;
+
+		private volatile int state;
+
+		// the rest is owned by the timer thread
+		private long rounds;
+
+		private Bucket bucket;
+
+		private Timeout prev;
+
+		private Timeout next;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task if it hasn't run.
+		 *
+		 * @return true if cancelled by this call
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+				return false;
+			}
+			pending.decrementAndGet();
+			cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, INIT, EXPIRED)) {
+				return;
+			}
+			pending.decrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.warn("Error running timer task {}", task, e);
+			}
+		}
+	}
+
+	// a doubly linked list of timeouts, only touched by the timer thread
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			if (head == null) {
+				head = tail = t;
+			} else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		void remove(Timeout t) {
+			Timeout n = t.next;
+			if (t.prev != null) {
+				t.prev.next = n;
+			}
+			if (n != null) {
+				n.prev = t.prev;
+			}
+			if (t == head) {
+				head = n;
+			}
+			if (t == tail) {
+				tail = t.prev;
+			}
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+
+		void expire() {
+			Timeout t = head;
+			while (t != null) {
+				Timeout n = t.next;
+				if (t.rounds <= 0) {
+					remove(t);
+					t.expire();
+				} else if (t.isCancelled()) {
+					remove(t);
+				} else {
+					t.rounds--;
+				}
+				t = n;
+			}
+		}
+	}
+
+}
@@ -33,8 +33,25 @@ public interface NioChannelHandler<T extends SelectableChannel & NetworkChannel>
 
 	int handle(int ops) throws IOException;
 	
+	/**
+	 * Starts handling events of the channel, called once this handler is fully constructed.
+	 */
+	default void start() {
+		
+	}
+	
 	default Executor getExecutor() {
 		return getContext().getTaskExecutor();
 	}
 	
+	/**
+	 * Returns true if the next readiness event should be handled directly on the selector loop thread instead of
+	 * being dispatched to the {@linkplain #getExecutor() executor}.
+	 * 
+	 * @return
+	 */
+	default boolean isInline() {
+		return false;
+	}
+	
 }
@@ -16,22 +16,25 @@
 package org.sz.sproxy.impl;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.NetworkChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.sz.sproxy.Configuration;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.Flushable;
 import org.sz.sproxy.Readable;
@@ -40,6 +43,7 @@ import org.sz.sproxy.StateManager;
 import org.sz.sproxy.StatefulHandler;
 import org.sz.sproxy.Writable;
 import org.sz.sproxy.WriteDoneNoticeable;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -53,19 +57,59 @@ import lombok.extern.slf4j.Slf4j;
 public abstract class NioConnection<C extends SelectableChannel & ByteChannel & NetworkChannel, H extends StatefulHandler<C, H>>
 		implements NioChannelHandler<C>, StatefulHandler<C, H>, Readable, Writable, Flushable {
 
-	ConcurrentHashMap<Thread, Thread> workers = new ConcurrentHashMap<>();
+	/**
+	 * The max number of buffers flushed by one gathering write.
+	 */
+	public static final int MAX_GATHER = 64;
 
-	AtomicBoolean closing = new AtomicBoolean(false);
+	// lifecycle word, the state in the high bits and the number of handlers in flight in the low bits
+	static final int CLOSING = 1 << 29;
 
-	protected Queue<ByteBuffer> outBuffers;
+	static final int CLOSED = 1 << 30;
+
+	private final AtomicInteger lifecycle = new AtomicInteger();
+
+	protected Deque<ByteBuffer> outBuffers;
+
+	// bytes remaining in outBuffers, guarded by this
+	private long queued;
+
+	protected final int highWatermark;
+
+	protected final int lowWatermark;
+
+	// writers have been told to stop reading and not yet to resume, guarded by this
+	private boolean jammed;
+
+	// jammed has been lifted and writers are yet to be notified, guarded by this
+	private boolean drained;
+
+	// scratch array for gathering writes, guarded by this
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	// 0 if idle connections are not closed
+	private final long idleNanos;
+
+	// nano time of the last read or write, only maintained with idleNanos
+	private volatile long lastActive;
+
+	private volatile Timeout idleTimeout;
+
+	private volatile Timeout connectTimeout;
+
+	// set before the channel is polled if connecting to several addresses
+	private ConnectRace race;
 
 	protected Context context;
 
 	protected C channel;
 
-	protected SelectionKey key;
+	protected Transport transport;
 
-	protected Selector selector;
+	@Getter
+	protected SelectorLoop loop;
+
+	protected boolean eventLoop;
 
 	@Getter
 	@Setter
@@ -95,16 +139,194 @@ public abstract class NioConnection<C extends SelectableChannel & ByteChannel &
 	}
 
 	public NioConnection(Context context, C channel) throws IOException {
+		this(context, channel, null);
+	}
+
+	/**
+	 * Creates a connection whose channel is registered with the given selector loop, or with the loop assigned by
+	 * the {@linkplain SelectorLoopGroup} of the context if <code>loop</code> is null. With the blocking io engine
+	 * the channel is served by a {@linkplain BlockingTransport} instead, and no loop is assigned.
+	 * 
+	 * @param context
+	 * @param channel
+	 * @param loop
+	 * @throws IOException
+	 */
+	public NioConnection(Context context, C channel, SelectorLoop loop) throws IOException {
 		this.context = context;
 		this.channel = channel;
 		stateManager = createStateManager();
-		outBuffers = new LinkedList<>();
-		selector = context.getSelector();
-		channel.configureBlocking(false);
-		key = channel.register(selector, SelectionKey.OP_READ, this);
+		outBuffers = new ArrayDeque<>();
+		highWatermark = context.getConfiguration().getWriteHighWatermark();
+		lowWatermark = context.getConfiguration().getWriteLowWatermark();
+		eventLoop = context.getConfiguration().isEventLoop();
+		if (!Configuration.IO_ENGINE_BLOCKING.equalsIgnoreCase(context.getConfiguration().getIoEngine())) {
+			this.loop = loop != null ? loop : context.getService(SelectorLoopGroup.class).next();
+		}
+		transport = createTransport(channel, this);
+		idleNanos = TimeUnit.MILLISECONDS.toNanos(getIdleTimeout());
+		if (idleNanos > 0) {
+			lastActive = System.nanoTime();
+			idleTimeout = getTimer().schedule(this::checkIdle, idleNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Creates the transport of the given channel, served by the selector loop of this connection, or by a
+	 * {@linkplain BlockingTransport} if there's none.
+	 * 
+	 * @param channel
+	 * @param handler the handler to which readiness events are delivered
+	 * @return see above
+	 * @throws IOException
+	 */
+	<T extends SelectableChannel & ByteChannel & NetworkChannel> Transport createTransport(T channel,
+			NioChannelHandler<?> handler) throws IOException {
+		if (channel instanceof SocketChannel && context.getConfiguration().isTcpNoDelay()) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+		return loop == null ? new BlockingTransport<>(channel, handler) : new SelectorTransport<>(channel, loop, handler);
+	}
+
+	@Override
+	public void start() {
+		transport.start();
+	}
+
+	/**
+	 * Takes over the given channel connected by a {@linkplain ConnectRace}, along with its transport.
+	 * 
+	 * @param channel
+	 * @param transport
+	 * @return the transport of the channel replaced
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized Transport takeOver(SocketChannel channel, Transport transport) {
+		Transport old = this.transport;
+		this.channel = (C) channel;
+		this.transport = transport;
+		transport.setHandler(this);
+		return old;
+	}
+
+	/**
+	 * Connects the channel to the given address, {@linkplain #handleConnect()} is called once it finishes. It's
+	 * expected to be called at the end of the constructor of a connection that connects out.
+	 * 
+	 * @param address
+	 * @throws IOException
+	 */
+	protected void connect(SocketAddress address) throws IOException {
+		connect(Collections.singletonList(address));
+	}
+
+	/**
+	 * Connects to the first of the given addresses that accepts, {@linkplain #handleConnect()} is called once
+	 * connected. With more than one address, connection attempts are raced as of Happy Eyeballs, see
+	 * {@linkplain ConnectRace}, and this connection takes over the channel of the attempt that succeeds first.
+	 * 
+	 * @param addresses
+	 * @throws IOException if none of the addresses could be connected to right away
+	 */
+	protected void connect(List<? extends SocketAddress> addresses) throws IOException {
+		int timeout = context.getConfiguration().getConnectTimeout();
+		if (timeout > 0) {
+			connectTimeout = getTimer().schedule(() -> {
+				log.debug("Connecting {} timed out", addresses);
+				close();
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+		if (addresses.size() > 1) {
+			race = new ConnectRace(this, addresses);
+			race.start();
+		} else {
+			transport.connect(addresses.get(0));
+			transport.start();
+		}
+	}
+
+	/**
+	 * Reads from the underlying channel, bypassing any decoding done by {@linkplain #read(ByteBuffer)}.
+	 * 
+	 * @param buffer
+	 * @return
+	 * @throws IOException
+	 */
+	protected int readChannel(ByteBuffer buffer) throws IOException {
+		return transport.read(buffer);
+	}
+
+	/**
+	 * Returns the selector loop of the given handler if it's a {@linkplain NioConnection}, so that peers could be
+	 * pinned to the same loop.
+	 * 
+	 * @param handler
+	 * @return the loop or null
+	 */
+	protected static SelectorLoop loopOf(Object handler) {
+		return handler instanceof NioConnection ? ((NioConnection<?, ?>) handler).getLoop() : null;
 	}
 	
 	protected abstract StateManager createStateManager();
+
+	protected HashedWheelTimer getTimer() {
+		return context.getService(HashedWheelTimer.class);
+	}
+
+	/**
+	 * Returns the milliseconds without reading or writing after which this connection is closed, 0 to never close it
+	 * for being idle. It's called by the constructor, {@linkplain Configuration#getIdleTimeout()} by default.
+	 * 
+	 * @return see above
+	 */
+	protected long getIdleTimeout() {
+		return context.getConfiguration().getIdleTimeout();
+	}
+
+	/**
+	 * Returns true if this connection, having neither read nor written for {@linkplain #getIdleTimeout()}, can be
+	 * closed, true by default.
+	 * 
+	 * @return see above
+	 */
+	protected boolean isIdle() {
+		return true;
+	}
+
+	// checked once per idle timeout rather than rescheduled on every read or write
+	private void checkIdle() {
+		if (isClosing()) {
+			return;
+		}
+		long left = lastActive + idleNanos - System.nanoTime();
+		if (left <= 0 && isIdle()) {
+			log.debug("{} idle for {} ms, close", channel, TimeUnit.NANOSECONDS.toMillis(idleNanos - left));
+			close();
+			return;
+		}
+		idleTimeout = getTimer().schedule(this::checkIdle, left > 0 ? left : idleNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void touch() {
+		if (idleNanos > 0) {
+			lastActive = System.nanoTime();
+		}
+	}
+
+	@Override
+	public boolean isInline() {
+		return eventLoop && !isBlocking();
+	}
+
+	/**
+	 * Returns true if handling the next readiness event may block, by default it's decided by the current state.
+	 * 
+	 * @return
+	 */
+	protected boolean isBlocking() {
+		State<C, H> s = state;
+		return s != null && s.isBlocking();
+	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
@@ -124,78 +346,199 @@ public abstract class NioConnection<C extends SelectableChannel & ByteChannel &
 
 	@Override
 	public int read(ByteBuffer buffer) throws IOException {
-		return getChannel().read(buffer);
+		return readChannel(buffer);
+	}
+
+	/**
+	 * Pushes back the given bytes, they're read before anything else from the channel, and make this connection
+	 * readable whenever reading is of interest until they're all read.
+	 */
+	public void unread(ByteBuffer buffer) {
+		transport.unread(buffer);
 	}
 
+	/**
+	 * Writes the given buffer, straight to the channel if nothing is queued, the remaining of it is queued if not fully
+	 * written. The buffer must not be reused by the caller once handed over, it's released to the
+	 * {@linkplain BufferPool} once written.
+	 * <p>
+	 * {@linkplain WR#AGAIN} is returned once the queued bytes exceed {@linkplain #highWatermark}, and keeps being
+	 * returned until the queue drains to {@linkplain #lowWatermark}, at which point the writers are notified by
+	 * {@linkplain WriteDoneNoticeable#writeDone(Writable)}.
+	 */
 	@Override
 	public synchronized WR write(ByteBuffer buffer) throws IOException {
+		touch();
+		if (outBuffers.isEmpty()) { // write through
+			if (buffer.hasRemaining()) {
+				try {
+					transport.write(buffer);
+				} catch (IOException e) {
+					BufferPool.release(buffer);
+					throw e;
+				}
+			}
+			if (!buffer.hasRemaining()) {
+				BufferPool.release(buffer);
+				return watermark();
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("NOT fully written to {}, remaining: {}", channel, buffer.remaining());
+			}
+			outBuffers.add(buffer);
+			queued = buffer.remaining();
+			setWriteInterest();
+			return watermark();
+		}
 		outBuffers.add(buffer);
+		queued += buffer.remaining();
+		return flushOutput();
+	}
+
+	/**
+	 * Writes the given buffers with gathering writes, behind any queued ones, see {@linkplain #write(ByteBuffer)}.
+	 * 
+	 * @param buffers
+	 * @return see {@linkplain #write(ByteBuffer)}
+	 * @throws IOException
+	 */
+	public synchronized WR write(ByteBuffer[] buffers) throws IOException {
+		touch();
+		for (ByteBuffer b : buffers) {
+			outBuffers.add(b);
+			queued += b.remaining();
+		}
 		return flushOutput();
 	}
 
+	/**
+	 * Flushes the queued buffers with gathering writes, at most {@value #MAX_GATHER} buffers at a time.
+	 * 
+	 * @return {@linkplain WR#AGAIN} if the queued bytes are above the watermarks, see {@linkplain #write(ByteBuffer)}
+	 * @throws IOException
+	 */
 	protected synchronized WR flushOutput() throws IOException {
-		WR ret = WR.DONE;
+		boolean partial = false;
 		while (!outBuffers.isEmpty()) {
-			ByteBuffer b = outBuffers.peek();
-			int r = b.remaining();
-			if (r > 0) {
-				int n = channel.write(b);
-				if (n < r) {
-					if (log.isDebugEnabled()) {
-						StringWriter sw = new StringWriter();
-						PrintWriter pw = new PrintWriter(sw);
-						new Throwable().printStackTrace(pw);
-						log.debug("NOT fully written to {}: out: {}, remaining: {}, trace:\n{}",
-								channel, n, r - n, sw.toString());
-					}
-					ret = WR.AGAIN;
+			int n = 0;
+			long r = 0;
+			for (ByteBuffer b : outBuffers) {
+				if (n == gather.length) {
 					break;
 				}
-				outBuffers.remove(); // fully written
-			} else {
+				gather[n++] = b;
+				r += b.remaining();
+			}
+			long w = r > 0 ? transport.write(gather, 0, n) : 0;
+			Arrays.fill(gather, 0, n, null);
+			queued -= w;
+			while (!outBuffers.isEmpty() && !outBuffers.peek().hasRemaining()) {
+				BufferPool.release(outBuffers.poll()); // fully written
+			}
+			if (w < r) {
 				if (log.isDebugEnabled()) {
-					log.debug("b.remaining <= 0, BUG!");
+					log.debug("NOT fully written to {}: out: {}, remaining: {}", channel, w, r - w);
 				}
-				outBuffers.remove(); // bug
+				partial = true;
+				break;
 			}
 		}
-		if (ret == WR.AGAIN) {
+		if (partial) {
 			setWriteInterest();
 		}
-		return ret;
+		return watermark();
+	}
+
+	private WR watermark() {
+		if (queued > highWatermark) {
+			jammed = true;
+		} else if (jammed && queued <= lowWatermark) {
+			jammed = false;
+			drained = true;
+		}
+		return jammed ? WR.AGAIN : WR.DONE;
 	}
 
-	private Runnable closeThis() {
-		return Utils.EXEC_WITH_TH_NAME.apply("closing_" + getChannel().toString(), () -> {
-			// wait until all workers finish
-			while (!workers.isEmpty()) {
-				synchronized (workers) {
+	/**
+	 * Returns true if bytes are queued for writing as the socket can't take them yet.
+	 *
+	 * @return see above
+	 */
+	public synchronized boolean isWriteQueued() {
+		return queued > 0;
+	}
+
+	// notified outside of the monitor, writers take their own while being woken up
+	private synchronized boolean takeDrained() {
+		boolean d = drained;
+		drained = false;
+		return d;
+	}
+
+	// runs exactly once, by whoever moves the lifecycle from closing with no handler in flight to closed
+	private void closeThis() {
+		cancel(idleTimeout);
+		cancel(connectTimeout);
+		if (race != null) {
+			race.close();
+		}
+		try {
+			synchronized (this) {
+				if (!outBuffers.isEmpty() && transport.isValid()) {
 					try {
-						workers.wait();
-					} catch (InterruptedException e) {
-						Thread.currentThread().interrupt();
-						log.debug("Interrupted while waiting for workers to shutdown for " + getChannel());
+						flushOutput(); // what the socket takes right away, e.g. a reply before refusing
+					} catch (IOException e) {
+						log.debug("Error flushing {} on close: {}", getChannel(), e.toString());
 					}
 				}
+				BufferPool.release(outBuffers);
+				outBuffers.clear();
+				queued = 0;
 			}
-			// now close
-			try {
-				channel.close();
-				closeInternal();
-			} catch (IOException e) {
-				log.error("Error closing channel " + getChannel(), e);
-			} finally {
-				closing.compareAndSet(true, false);
-			}
-		});
+			transport.close();
+			closeInternal();
+		} catch (Exception e) {
+			log.error("Error closing channel " + getChannel(), e);
+		}
 	}
 
+	private static void cancel(Timeout timeout) {
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	/**
+	 * Starts closing this connection. If no handler is in flight, it's closed by the selector loop of this connection
+	 * (or the task executor if there's none), otherwise by the last handler in flight as it exits.
+	 */
 	@Override
 	public void close() {
-		if (!closing.getAndSet(true)) { // initiate closing
-			this.getExecutor().execute(closeThis());
+		int s;
+		do {
+			s = lifecycle.get();
+			if (s >= CLOSING) {
+				return; // already closing
+			}
+		} while (!lifecycle.compareAndSet(s, s | CLOSING));
+		if (s == 0 && lifecycle.compareAndSet(CLOSING, CLOSED)) {
+			// not called from a handler, so close later without whatever locks the caller may hold
+			SelectorLoop l = loop;
+			if (l != null) {
+				l.execute(this::closeThis);
+			} else {
+				getExecutor().execute(Utils.EXEC_WITH_TH_NAME.apply("closing_" + getChannel(), this::closeThis));
+			}
 		}
+	}
 
+	/**
+	 * Returns true once this connection has started closing.
+	 *
+	 * @return see above
+	 */
+	public boolean isClosing() {
+		return lifecycle.get() >= CLOSING;
 	}
 
 	protected void closeInternal() throws IOException {
@@ -203,55 +546,59 @@ public abstract class NioConnection<C extends SelectableChannel & ByteChannel &
 	}
 
 	private synchronized void setWriteInterest() {
-		if (!key.isValid()) {
+		if (!transport.isValid()) {
 			return;
 		}
 		if (outBuffers.isEmpty()) {
-			key.interestOpsAnd(~SelectionKey.OP_WRITE);
-		} else if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
-			key.interestOpsOr(SelectionKey.OP_WRITE);
+			transport.interestOpsAnd(~SelectionKey.OP_WRITE);
+		} else if ((transport.interestOps() & SelectionKey.OP_WRITE) == 0) {
+			transport.interestOpsOr(SelectionKey.OP_WRITE);
 		}
 	}
 
 	@Override
 	public int handle(int ops) throws IOException {
-		if (closing.get()) {
+		if (lifecycle.getAndIncrement() >= CLOSING) {
+			exit();
 			return -1; // closing
 		}
-		Thread cur = Thread.currentThread();
-		workers.put(cur, cur);
+		touch();
 		try {
 			int seq = nseq;
 			WR wr = handleInternal(ops);
 			wakeup(wr, seq);
 			return 0; // other code not defined
 		} finally {
-			workers.remove(cur);
-			synchronized (workers) {
-				workers.notifyAll();
-			}
+			exit();
+		}
+	}
+
+	private void exit() {
+		// the last handler out of a closing connection closes it
+		if (lifecycle.decrementAndGet() == CLOSING && lifecycle.compareAndSet(CLOSING, CLOSED)) {
+			closeThis();
 		}
 	}
 
 	private synchronized void wakeup(WR wr, int seq) {
-		if (!key.isValid()) {
+		if (!transport.isValid()) {
 			return;
 		}
 		if (wr != null) {
 			if (wr == WR.AGAIN && seq == nseq) { // write end jam, don't read until further notice
-				key.interestOpsAnd(~SelectionKey.OP_READ);
+				transport.interestOpsAnd(~SelectionKey.OP_READ);
 			} else {
 				if (log.isDebugEnabled() && seq!=nseq) {
 					log.debug("wakeup: WR: {}, seq:{}, nseq: {}", wr, seq, nseq);
 				}
-				key.interestOpsOr(SelectionKey.OP_READ);
+				transport.interestOpsOr(SelectionKey.OP_READ);
 			}
 		} else {
 			if (log.isDebugEnabled()) {
 				log.debug("NOT woken up to handle READ");
 			}
 		}
-		selector.wakeup();
+		transport.wakeup();
 	}
 	
 	protected static class ConnectionNotFinished extends IOException {
@@ -269,8 +616,8 @@ public abstract class NioConnection<C extends SelectableChannel & ByteChannel &
 			if (log.isDebugEnabled()) {
 				log.debug("flush remaining from last time");
 			}
-			WR wr = flushOutput();
-			if (wr == WR.DONE) { // there was remaining, try flush first
+			flushOutput();
+			if (takeDrained()) { // drained to the low watermark
 				if (log.isDebugEnabled()) {
 					log.debug("flushed remaining from last time, notifying {}", wns);
 				}
@@ -282,11 +629,16 @@ public abstract class NioConnection<C extends SelectableChannel & ByteChannel &
 			}
 		}
 		if ((ops & SelectionKey.OP_CONNECT) > 0) {
+			if (race != null && !race.settle()) {
+				return null; // still racing
+			}
 			try {
 				handleConnect();
+				cancel(connectTimeout);
+				transport.interestOpsOr(SelectionKey.OP_READ);
 			} catch (ConnectionNotFinished e) {
-				if (key.isValid()) {
-					key.interestOpsOr(SelectionKey.OP_CONNECT);
+				if (transport.isValid()) {
+					transport.interestOpsOr(SelectionKey.OP_CONNECT);
 				}
 				return WR.DONE;
 			}
@@ -33,14 +33,8 @@ public class NoAuthHandler implements SocksAuthHandler {
 	static final byte CODE = 0x0;
 	
 	@Override
-	public WR handleAuth(SocksConnection connection) throws SocksException {
-		ByteBuffer buf = ByteBuffer.allocate(257);
+	public WR handleAuth(SocksConnection connection, ByteBuffer greeting) throws SocksException {
 		try {
-			int n = connection.getChannel().read(buf);
-			if (n < 3 || buf.get(0) != Context.SOCKS_VERSION) {
-				throw new SocksException("Invalid socks header");
-			}
-			connection.moveTo(SocksStateCmd.NAME, null);
 			return connection.write(ByteBuffer.wrap(new byte[] {Context.SOCKS_VERSION, CODE}));
 		} catch (IOException e) {
 			throw new SocksException(e);
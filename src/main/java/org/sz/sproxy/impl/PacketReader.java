@@ -35,6 +35,7 @@ public class PacketReader extends Reader {
     
     public void reset() {
     	Optional.ofNullable(lenReader).ifPresent(r -> r.reset(PACKET_SIZE_SIZE));
+    	Optional.ofNullable(packetReader).ifPresent(Reader::release); // don't hold a pooled buffer between packets
     }
     
     @Override
@@ -46,13 +47,18 @@ public class PacketReader extends Reader {
 	public ByteBuffer getPacket() throws IOException {
 		return packetReader.getPacket();
 	}
+
+	@Override
+	public ByteBuffer detach() throws IOException {
+		return packetReader.detach();
+	}
 	
 	public boolean read(Readable channel) throws IOException {
 		if (!lenReader.isComplete()) {
 			lenReader.read(channel);
 			if (lenReader.isComplete()) {
 				if (packetReader == null) {
-					packetReader = new Reader(lenReader.getPacket().getInt());
+					packetReader = new Reader(lenReader.getPacket().getInt(), true);
 				} else {
 					packetReader.reset(lenReader.getPacket().getInt());
 				}
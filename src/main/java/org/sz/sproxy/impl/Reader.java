@@ -27,12 +27,22 @@ import org.sz.sproxy.Readable;
 public class Reader {
 	protected ByteBuffer buf;
 	protected boolean complete;
+	protected boolean pooled;
 	
 	public Reader() {
 		this(0);
 	}
 	
 	public Reader(int len) {
+		this(len, false);
+	}
+	
+	/**
+	 * @param len
+	 * @param pooled whether to read into buffers from the {@linkplain BufferPool}
+	 */
+	public Reader(int len, boolean pooled) {
+		this.pooled = pooled;
 		reset(len);
 	}
 	
@@ -42,11 +52,35 @@ public class Reader {
 			buf.limit(len);
 		} else {
 			Utils.sanitizePacketSize(len);
-			buf = ByteBuffer.allocate(len); 
+			release();
+			buf = pooled ? BufferPool.acquire(len) : ByteBuffer.allocate(len); 
 		}
 		complete = false;
 	}
 	
+	/**
+	 * Returns the buffer to the pool if pooled, a new one is acquired on the next {@linkplain #reset(int)}.
+	 */
+	public void release() {
+		if (pooled) {
+			BufferPool.release(buf);
+			buf = null;
+			complete = false;
+		}
+	}
+	
+	/**
+	 * Hands over the packet read to the caller, who is then responsible for releasing it.
+	 * 
+	 * @return the packet
+	 * @throws IOException
+	 */
+	public ByteBuffer detach() throws IOException {
+		ByteBuffer b = getPacket();
+		buf = null;
+		return b;
+	}
+	
 	public ByteBuffer getPacket() throws IOException {
 		if (!complete) {
 			throw new IOException("Packet not completely read");
@@ -55,7 +89,7 @@ public class Reader {
 	}
 	
 	public boolean isPending() {
-		return buf.position() > 0;
+		return buf != null && buf.position() > 0;
 	}
 	
 	public boolean isComplete() {
@@ -17,8 +17,9 @@ package org.sz.sproxy.impl;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 import org.sz.sproxy.ChannelHandler;
@@ -39,13 +40,33 @@ public class RemoteConnection extends NioConnection<SocketChannel, RemoteConnect
 
 	protected SocksConnectionImpl local;
 
+	protected AdaptiveBufferSize relayBufferSize;
+
 	public RemoteConnection(SocksConnectionImpl local, Context context, InetSocketAddress address,
 			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected) throws IOException {
-		super(context, SocketChannel.open());
+		this(local, context, Collections.singletonList(address), connected);
+	}
+
+	/**
+	 * Connects to the first of the given addresses that accepts, see {@linkplain #connect(List)}.
+	 * 
+	 * @param local
+	 * @param context
+	 * @param addresses
+	 * @param connected
+	 * @throws IOException
+	 */
+	public RemoteConnection(SocksConnectionImpl local, Context context, List<InetSocketAddress> addresses,
+			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected) throws IOException {
+		super(context, SocketChannel.open(), local.getLoop()); // pinned to the loop of the local end
 		this.local = local;
-		key.interestOpsOr(SelectionKey.OP_CONNECT);
 		this.connected = connected;
-		channel.connect(address);
+		relayBufferSize = new AdaptiveBufferSize(context.getConfiguration());
+		// each end resumes reading once the other drains
+		addWN(local);
+		local.addWN(this);
+		local.remote = this; // before the local end may be relaying, right as connected
+		connect(addresses);
 	}
 	
 	@Override
@@ -55,7 +76,7 @@ public class RemoteConnection extends NioConnection<SocketChannel, RemoteConnect
 	
 	@Override
 	protected WR handleRead(int ops) throws IOException {
-		return Utils.pump(context, this, local, this::close);
+		return Utils.pump(context, this, local, this::close, relayBufferSize);
 	}
 
 	@Override
@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A selector loop(reactor) that owns a {@linkplain Selector} and the thread that polls it, channels registered
+ * with this loop have their events dispatched by this loop only.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SelectorLoop implements Runnable {
+
+	@Getter
+	private final int index;
+
+	@Getter
+	private final Selector selector;
+
+	private final AtomicInteger load = new AtomicInteger();
+
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	private final Queue<Interest> changes = new ConcurrentLinkedQueue<>();
+
+	// true while the loop is, or is about to be, blocked in select() and hasn't been woken up
+	private final AtomicBoolean blocked = new AtomicBoolean();
+
+	private final LongAdder wakeupsAvoided = new LongAdder();
+
+	private volatile Thread thread;
+
+	SelectorLoop(int index) throws IOException {
+		this.index = index;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Registers the given channel with this loop, the caller is responsible for waking up this loop once the
+	 * channel is ready to be polled.
+	 *
+	 * @param channel
+	 * @param ops
+	 * @param handler
+	 * @return the selection key
+	 * @throws ClosedChannelException
+	 */
+	public SelectionKey register(SelectableChannel channel, int ops, NioChannelHandler<?> handler)
+			throws ClosedChannelException {
+		SelectionKey key = channel.register(selector, ops, handler);
+		load.incrementAndGet();
+		return key;
+	}
+
+	/**
+	 * Notifies this loop that a channel registered with it has been closed.
+	 */
+	public void deregistered() {
+		load.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of channels currently registered with this loop.
+	 *
+	 * @return see above
+	 */
+	public int getLoad() {
+		return load.get();
+	}
+
+	/**
+	 * Returns true if the current thread is the thread of this loop.
+	 *
+	 * @return see above
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Wakes up the selector of this loop if it's blocked, calls from this loop or while a wakeup is already on its way
+	 * are no-ops.
+	 */
+	public void wakeup() {
+		if (!inLoop()) {
+			if (blocked.compareAndSet(true, false)) {
+				selector.wakeup();
+			} else {
+				wakeupsAvoided.increment();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of wakeups from outside of this loop that were suppressed as the loop was not blocked.
+	 *
+	 * @return see above
+	 */
+	public long getWakeupsAvoided() {
+		return wakeupsAvoided.sum();
+	}
+
+	/**
+	 * Returns the interest set of the given key, which must be registered with this loop, to be changed from any
+	 * thread.
+	 *
+	 * @param key
+	 * @return see above
+	 */
+	public Interest interest(SelectionKey key) {
+		return new Interest(key);
+	}
+
+	/**
+	 * The interest set of a key, changes to which are queued and applied by the loop before it polls again, changes
+	 * made in the meantime are coalesced into one.
+	 */
+	public final class Interest {
+
+		// the pending change, ops and'ed in the high half and or'ed in the low half
+		private static final long NONE = 0xFFFFFFFF00000000L;
+
+		private final SelectionKey key;
+
+		private final AtomicLong pending = new AtomicLong(NONE);
+
+		private Interest(SelectionKey key) {
+			this.key = key;
+		}
+
+		/**
+		 * Returns the interest set once the pending change is applied.
+		 *
+		 * @return see above
+		 */
+		public int get() {
+			long p = pending.get();
+			return (key.interestOps() & (int) (p >>> 32)) | (int) p;
+		}
+
+		public void or(int ops) {
+			change(-1, ops);
+		}
+
+		public void and(int ops) {
+			change(ops, 0);
+		}
+
+		public void set(int ops) {
+			change(0, ops);
+		}
+
+		private void change(int and, int or) {
+			long p;
+			long n;
+			do {
+				p = pending.get();
+				int a = (int) (p >>> 32) & and;
+				int o = ((int) p & and) | or;
+				n = ((long) a << 32) | (o & 0xFFFFFFFFL);
+			} while (!pending.compareAndSet(p, n));
+			if (p == NONE && n != NONE) { // not queued yet
+				changes.add(this);
+				wakeup();
+			}
+		}
+
+		private void apply() {
+			long p = pending.getAndSet(NONE);
+			if (p != NONE && key.isValid()) {
+				key.interestOps((key.interestOps() & (int) (p >>> 32)) | (int) p);
+			}
+		}
+	}
+
+	/**
+	 * Runs the given task on this loop once the current round of selection has been processed.
+	 *
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		wakeup();
+	}
+
+	synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		Thread t = new Thread(this);
+		t.setName("selector-" + index);
+		thread = t;
+		t.start();
+	}
+
+	void close() throws IOException {
+		selector.close();
+	}
+
+	private void processSelection(SelectionKey key) {
+		NioChannelHandler<?> handler = (NioChannelHandler<?>) key.attachment();
+		if (handler == null) {
+			log.debug("No handler, possibly the channel has been switched");
+		}
+		try {
+			if (!key.isValid()) {
+				log.debug("invalid selection key {}, skip", key);
+				return;
+			}
+			int ops = key.readyOps();
+			key.interestOpsAnd(~ops); // reset interest until the handler finishes handling and set it again
+			dispatch(handler, ops);
+		} catch (Throwable e) {
+			Optional.ofNullable(handler).ifPresent(t -> t.close());
+			log.debug("Error processing selection key: {}", key);
+		}
+
+	}
+
+	/**
+	 * Delivers the given ready ops to the handler, on this thread if it handles them inline, otherwise on its
+	 * executor. The ops must have been removed from the interest set of its channel beforehand.
+	 *
+	 * @param handler
+	 * @param ops
+	 */
+	static void dispatch(NioChannelHandler<?> handler, int ops) {
+		if (handler.isInline()) {
+			handle(handler, ops);
+		} else {
+			handler.getExecutor().execute(
+					Utils.EXEC_WITH_TH_NAME.apply(handler.getChannel().toString(), () -> handle(handler, ops)));
+		}
+	}
+
+	static void handle(NioChannelHandler<?> handler, int ops) {
+		try {
+			int expectedNext = handler.handle(ops);
+			if (expectedNext == -1) {
+				// closing
+				log.debug("closing in progress");
+			}
+		} catch (Throwable e) {
+			log.debug("Error handling channel {}, close", handler.getChannel(), e);
+			handler.close();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.debug("Error running task on selector loop {}", index, e);
+			}
+		}
+	}
+
+	private void applyChanges() {
+		Interest i;
+		while ((i = changes.poll()) != null) {
+			try {
+				i.apply();
+			} catch (CancelledKeyException e) {
+				// closed meanwhile
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (selector.isOpen()) {
+				applyChanges();
+				blocked.set(true);
+				if (changes.isEmpty() && tasks.isEmpty()) {
+					selector.select();
+				} else {
+					selector.selectNow(); // queued after the drain, don't block on them
+				}
+				blocked.set(false);
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey k = it.next();
+					it.remove(); // must do this
+					processSelection(k);
+				}
+				runTasks();
+			}
+		} catch (IOException e) {
+			log.error("Error", e);
+		} catch (ClosedSelectorException e) {
+			log.debug("selector closed");
+		}
+		log.debug("selector loop {} stopped, wakeups avoided: {}", index, wakeupsAvoided.sum());
+	}
+
+}
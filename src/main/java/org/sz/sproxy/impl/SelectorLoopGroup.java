@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sz.sproxy.Configuration;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A group of {@linkplain SelectorLoop}s among which channels are distributed, either round-robin or to the loop
+ * with the least channels registered.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SelectorLoopGroup {
+
+	public static final String ROUND_ROBIN = "roundrobin";
+
+	public static final String LEAST_LOAD = "leastload";
+
+	private final SelectorLoop[] loops;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final boolean leastLoad;
+
+	public SelectorLoopGroup(Configuration config) {
+		int n = Math.max(config.getAcceptors(), config.getSelectorLoops()); // a loop of its own for each acceptor
+		leastLoad = LEAST_LOAD.equalsIgnoreCase(config.getSelectorBalance());
+		loops = new SelectorLoop[n];
+		try {
+			for (int i = 0; i < n; i++) {
+				loops[i] = new SelectorLoop(i);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e); // fatal
+		}
+		log.debug("selector loops: {}, least load: {}", n, leastLoad);
+	}
+
+	public int size() {
+		return loops.length;
+	}
+
+	public SelectorLoop get(int index) {
+		return loops[index % loops.length];
+	}
+
+	/**
+	 * Returns the loop to which the next channel should be assigned.
+	 *
+	 * @return see above
+	 */
+	public SelectorLoop next() {
+		if (loops.length == 1) {
+			return loops[0];
+		}
+		if (leastLoad) {
+			SelectorLoop min = loops[0];
+			for (int i = 1; i < loops.length; i++) {
+				if (loops[i].getLoad() < min.getLoad()) {
+					min = loops[i];
+				}
+			}
+			return min;
+		}
+		return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+	}
+
+	public void start() {
+		for (SelectorLoop l : loops) {
+			l.start();
+		}
+	}
+
+	public void close() throws IOException {
+		for (SelectorLoop l : loops) {
+			l.close();
+		}
+	}
+
+}
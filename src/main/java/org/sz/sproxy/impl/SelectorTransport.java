@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A {@linkplain Transport} backed by a non-blocking channel registered with a {@linkplain SelectorLoop}.
+ *
+ * @author Sam Zheng
+ *
+ */
+public class SelectorTransport<C extends SelectableChannel & ByteChannel> implements Transport {
+
+	private final C channel;
+
+	private final SelectorLoop loop;
+
+	private final SelectionKey key;
+
+	private final SelectorLoop.Interest interest;
+
+	// pushed back, read before the channel
+	private volatile ByteBuffer unread;
+
+	public SelectorTransport(C channel, SelectorLoop loop, NioChannelHandler<?> handler) throws IOException {
+		this.channel = channel;
+		this.loop = loop;
+		channel.configureBlocking(false);
+		// an unconnected socket polls readable, don't read until connected
+		boolean unconnected = channel instanceof SocketChannel && !((SocketChannel) channel).isConnected();
+		key = loop.register(channel, unconnected ? 0 : SelectionKey.OP_READ, handler);
+		interest = loop.interest(key);
+	}
+
+	@Override
+	public void start() {
+		loop.wakeup(); // let the loop poll the channel
+	}
+
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		ByteBuffer u = unread;
+		if (u == null) {
+			return channel.read(buffer);
+		}
+		int n = Math.min(buffer.remaining(), u.remaining());
+		buffer.put(buffer.position(), u, u.position(), n);
+		buffer.position(buffer.position() + n);
+		u.position(u.position() + n);
+		if (!u.hasRemaining()) {
+			unread = null;
+			BufferPool.release(u);
+		}
+		return n;
+	}
+
+	@Override
+	public void unread(ByteBuffer buffer) {
+		if (unread != null) {
+			throw new IllegalStateException("already pushed back");
+		}
+		unread = buffer;
+		loop.execute(this::readUnread);
+	}
+
+	// delivers the bytes pushed back, which the selector doesn't know about
+	private void readUnread() {
+		if (unread != null && key.isValid() && (interest.get() & SelectionKey.OP_READ) != 0) {
+			interest.and(~SelectionKey.OP_READ); // as the loop does for ready ops
+			SelectorLoop.dispatch((NioChannelHandler<?>) key.attachment(), SelectionKey.OP_READ);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer buffer) throws IOException {
+		return channel.write(buffer);
+	}
+
+	@Override
+	public long write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+		if (channel instanceof GatheringByteChannel) {
+			return ((GatheringByteChannel) channel).write(buffers, offset, length);
+		}
+		long n = 0;
+		for (int i = offset; i < offset + length; i++) {
+			n += channel.write(buffers[i]);
+			if (buffers[i].hasRemaining()) {
+				break;
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public void connect(SocketAddress address) throws IOException {
+		((SocketChannel) channel).connect(address);
+		interest.or(SelectionKey.OP_CONNECT); // applied by the loop right away, must follow connect()
+	}
+
+	@Override
+	public void setHandler(NioChannelHandler<?> handler) {
+		key.attach(handler);
+	}
+
+	@Override
+	public int interestOps() {
+		return interest.get();
+	}
+
+	@Override
+	public void interestOpsOr(int ops) {
+		interest.or(ops);
+		if ((ops & SelectionKey.OP_READ) != 0 && unread != null) {
+			loop.execute(this::readUnread);
+		}
+	}
+
+	@Override
+	public void interestOpsAnd(int ops) {
+		interest.and(ops);
+	}
+
+	@Override
+	public boolean isValid() {
+		return key.isValid();
+	}
+
+	@Override
+	public void wakeup() {
+		loop.wakeup();
+	}
+
+	@Override
+	public void close() throws IOException {
+		BufferPool.release(unread);
+		unread = null;
+		channel.close();
+		loop.deregistered();
+	}
+
+}
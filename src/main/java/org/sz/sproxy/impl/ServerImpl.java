@@ -21,6 +21,7 @@ import java.util.concurrent.Executor;
 import org.sz.sproxy.Acceptor;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.ContextConfiguration;
+import org.sz.sproxy.Ruleset;
 import org.sz.sproxy.Server;
 
 import lombok.extern.slf4j.Slf4j;
@@ -65,6 +66,7 @@ public class ServerImpl implements Server {
 	
 	@Override
 	public void start() throws IOException {
+		context.getService(Ruleset.class); // a broken rules file fails the start rather than the connections
 		acceptor = context.getAcceptorFactory().createAcceptor(this);
 		acceptor.startAccepting();
 	}
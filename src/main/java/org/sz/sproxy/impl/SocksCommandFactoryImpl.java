@@ -29,6 +29,8 @@ public class SocksCommandFactoryImpl implements SocksCommandFactory {
 		switch (cmd) {
 		case 1:
 			return createConnectCmd();
+		case 3:
+			return createUdpAssociateCmd();
 		}
 		throw new IllegalArgumentException("Unimplemented command: " + cmd);
 	}
@@ -36,5 +38,9 @@ public class SocksCommandFactoryImpl implements SocksCommandFactory {
 	protected SocksCommand createConnectCmd() {
 		return new SocksConnectCommand();
 	}
+	
+	protected SocksCommand createUdpAssociateCmd() {
+		return new SocksUdpAssociateCommand();
+	}
 
 }
@@ -24,22 +24,29 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.Context;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.Ruleset;
 import org.sz.sproxy.SocksCommand;
 import org.sz.sproxy.SocksConnection;
 import org.sz.sproxy.SocksException;
+import org.sz.sproxy.State;
 import org.sz.sproxy.Writable;
 import org.sz.sproxy.Writable.WR;
 
+import lombok.extern.slf4j.Slf4j;
+
 /**
  * @author Sam Zheng
  *
  */
+@Slf4j
 public class SocksConnectCommand implements SocksCommand {
 
 //	  +----+-----+-------+------+----------+----------+
@@ -79,16 +86,13 @@ public class SocksConnectCommand implements SocksCommand {
 
 	public static final byte DN = 3;
 
+	public static final byte NOT_ALLOWED = 2;
+
 	@Override
-	public WR execute(SocksConnection connection, Consumer<Object> onFinish,
+	public WR execute(SocksConnection connection, ByteBuffer request, Consumer<Object> onFinish,
 			Object ctx) throws SocksException {
 		try {
-			ByteBuffer buf = ByteBuffer.allocate(256);
-			if (connection.read(buf) == -1) {
-				throw new SocksException("peer closed");
-			}
-			buf.flip();
-			connect(buf, connection, onFinish, ctx);
+			connect(request, connection, onFinish, ctx);
 			return WR.DONE;
 		} catch (IOException e) {
 			throw new SocksException(e);
@@ -96,13 +100,51 @@ public class SocksConnectCommand implements SocksCommand {
 	}
 
 	protected InetSocketAddress getAddress(ByteBuffer buf) throws UnknownHostException {
-		return getTargetAddress(buf);
+		return getTargetAddress(buf, false);
 	}
 
 	protected void connect(ByteBuffer buffer, SocksConnection connection,
 			Consumer<Object> onFinish, Object ctx) throws IOException {
 		InetSocketAddress addr = getAddress(buffer);
-		connection.connectRemote(addr, getConnectedCallback(connection, onFinish, ctx), ctx);
+		Ruleset rules = connection.getContext().getService(Ruleset.class);
+		if (!addr.isUnresolved()) {
+			if (!rules.allows(addr.getAddress(), addr.getPort())) {
+				log.debug("Connecting {} not allowed", addr);
+				refuse(connection, NOT_ALLOWED);
+				return;
+			}
+			connection.connectRemote(addr, getConnectedCallback(connection, onFinish, ctx), ctx);
+			return;
+		}
+		Boolean allowed = rules.allows(addr.getHostString(), addr.getPort());
+		if (Boolean.FALSE.equals(allowed)) {
+			log.debug("Connecting {} not allowed", addr);
+			refuse(connection, NOT_ALLOWED);
+			return;
+		}
+		// the connect goes on once the name is resolved, without holding up this thread meanwhile
+		connection.getContext().getService(Resolver.class).resolve(addr.getHostString()).whenComplete((r, e) -> {
+			if (!connection.getChannel().isOpen()) {
+				return;
+			}
+			try {
+				if (e != null) {
+					throw new SocksException("Unable to resolve " + addr.getHostString(), e);
+				}
+				// up to the addresses if no domain rule has decided
+				List<InetAddress> a = allowed == null ? rules.allowed(r, addr.getPort()) : r;
+				if (a.isEmpty()) {
+					log.debug("Connecting {} at {} not allowed", addr, r);
+					refuse(connection, NOT_ALLOWED);
+					return;
+				}
+				connection.connectRemote(Utils.withPort(a, addr.getPort()),
+						getConnectedCallback(connection, onFinish, ctx), ctx);
+			} catch (Exception ex) {
+				log.debug("Error connecting {}", addr, ex);
+				connection.close();
+			}
+		});
 	}
 
 	protected BiConsumer<ChannelHandler<SocketChannel>, Writable> getConnectedCallback(
@@ -115,25 +157,16 @@ public class SocksConnectCommand implements SocksCommand {
 			Consumer<Object> onFinish, Object ctx) {
 		return (c, sink) -> {
 			try {
+				// in the protocol of the state which has executed the request
+				State<SocketChannel, SocksConnection> executing = connection.getState();
+				InetSocketAddress bound = (InetSocketAddress) c.getChannel().getLocalAddress();
+				ByteBuffer reply = executing instanceof SocksState ? ((SocksState) executing).connectedReply(bound)
+						: reply(bound);
 				Optional.ofNullable(connectedState).ifPresent(s -> connection.moveTo(connectedState, null));
-				InetSocketAddress local = (InetSocketAddress) c.getChannel().getLocalAddress();
-				InetAddress a = local.getAddress();
-				ByteBuffer buf = ByteBuffer.allocate(22);
-				buf.clear();
-				buf.put(Context.SOCKS_VERSION); // VER
-				buf.put((byte) 0); // REP
-				buf.put((byte) 0); // RSV
-				if (a instanceof Inet4Address) {
-					buf.put(IPV4);
-				} else if (a instanceof Inet6Address) {
-					buf.put(IPV6);
+				if (reply != null) {
+					sink.write(reply);
 				}
-				buf.put(a.getAddress());
-				int port = local.getPort();
-				buf.put((byte)((port >> 8) & 0xFF));
-				buf.put((byte)(port & 0xFF));
-				buf.flip();
-				sink.write(buf);
+				connection.writeDone(null); // the remote takes writes now, resume reading
 				Optional.ofNullable(onFinish).ifPresent(f -> f.accept(ctx));
 			} catch (IOException e) {
 				throw new SocksException(e);
@@ -141,7 +174,94 @@ public class SocksConnectCommand implements SocksCommand {
 		};
 	}
 	
+	/**
+	 * Refuses the request of the given connection with the given reply code, in the protocol of the state which has
+	 * executed it, the connection is closed shortly after.
+	 * 
+	 * @param connection
+	 * @param rep
+	 */
+	public static void refuse(SocksConnection connection, byte rep) {
+		State<SocketChannel, SocksConnection> executing = connection.getState();
+		SocksState.refuse(connection,
+				executing instanceof SocksState ? ((SocksState) executing).failedReply(rep) : reply(rep));
+	}
+
+	/**
+	 * Returns a failed reply with the given reply code.
+	 * 
+	 * @param rep
+	 * @return
+	 */
+	public static ByteBuffer reply(byte rep) {
+		return ByteBuffer.wrap(new byte[] { Context.SOCKS_VERSION, rep, 0, IPV4, 0, 0, 0, 0, 0, 0 });
+	}
+
+	/**
+	 * Returns a succeeded reply with the given bound address.
+	 * 
+	 * @param bound
+	 * @return
+	 */
+	public static ByteBuffer reply(InetSocketAddress bound) {
+		InetAddress a = bound.getAddress();
+		ByteBuffer buf = ByteBuffer.allocate(22);
+		buf.clear();
+		buf.put(Context.SOCKS_VERSION); // VER
+		buf.put((byte) 0); // REP
+		buf.put((byte) 0); // RSV
+		if (a instanceof Inet4Address) {
+			buf.put(IPV4);
+		} else if (a instanceof Inet6Address) {
+			buf.put(IPV6);
+		}
+		buf.put(a.getAddress());
+		int port = bound.getPort();
+		buf.put((byte)((port >> 8) & 0xFF));
+		buf.put((byte)(port & 0xFF));
+		buf.flip();
+		return buf;
+	}
+	
+	/**
+	 * Returns a request, from RSV, to connect to the given port of the given host, an address literal or a domain
+	 * name.
+	 * 
+	 * @param host
+	 * @param port
+	 * @return see above
+	 * @throws IllegalArgumentException if the host is not a valid domain name
+	 */
+	public static ByteBuffer request(String host, int port) {
+		ByteBuffer r = ByteBuffer.allocate(4 + 255 + 2);
+		r.put((byte) 0); // RSV
+		InetAddress a = DnsResolver.literal(host);
+		if (a != null) {
+			r.put(a instanceof Inet4Address ? IPV4 : IPV6).put(a.getAddress());
+		} else {
+			byte[] name = host.getBytes(StandardCharsets.UTF_8);
+			if (name.length == 0 || name.length > 255) {
+				throw new IllegalArgumentException("Invalid host name: " + host);
+			}
+			r.put(DN).put((byte) name.length).put(name);
+		}
+		r.putShort((short) port);
+		return r.flip();
+	}
+
 	public static InetSocketAddress getTargetAddress(ByteBuffer buf) throws UnknownHostException {
+		return getTargetAddress(buf, true);
+	}
+
+	/**
+	 * Parses the target address, domain names are left unresolved if <code>resolve</code> is false.
+	 * 
+	 * @param buf
+	 * @param resolve
+	 * @return
+	 * @throws UnknownHostException
+	 */
+	public static InetSocketAddress getTargetAddress(ByteBuffer buf, boolean resolve) throws UnknownHostException {
 		InetSocketAddress addr;
 		int port;
 		buf.get(); // remove the reserved byte
@@ -158,7 +278,7 @@ public class SocksConnectCommand implements SocksCommand {
 			buf.get(a);
 			String name = new String(a, StandardCharsets.UTF_8);
 			port = (buf.get() & 0xFF) << 8 | (buf.get() & 0xFF);
-			addr = new InetSocketAddress(name, port);
+			addr = resolve ? new InetSocketAddress(name, port) : InetSocketAddress.createUnresolved(name, port);
 			break;
 		case IPV6: // ipv6
 			a = new byte[16];
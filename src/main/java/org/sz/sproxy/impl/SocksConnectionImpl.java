@@ -18,6 +18,7 @@ package org.sz.sproxy.impl;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 import org.sz.sproxy.ChannelHandler;
@@ -40,6 +41,9 @@ public class SocksConnectionImpl extends NioConnection<SocketChannel, SocksConne
 	@Getter
 	protected Object attachment;
 
+	@Getter
+	protected volatile SocksUdpRelay udpRelay;
+
 	public SocksConnectionImpl(Context context, SocketChannel channel) throws IOException {
 		super(context, channel);
 		moveTo(stateManager.getInitState(), null);
@@ -55,6 +59,14 @@ public class SocksConnectionImpl extends NioConnection<SocketChannel, SocksConne
 		if (remote != null) {
 			remote.close();
 		}
+		if (udpRelay != null) {
+			udpRelay.close();
+		}
+	}
+
+	@Override
+	protected boolean isIdle() {
+		return udpRelay == null || udpRelay.isIdle();
 	}
 
 	@Override
@@ -63,6 +75,27 @@ public class SocksConnectionImpl extends NioConnection<SocketChannel, SocksConne
 		remote = new RemoteConnection(this, context, address, connected);
 	}
 
+	@Override
+	public void connectRemote(List<InetSocketAddress> addresses,
+			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected, Object ctx) throws IOException {
+		remote = new RemoteConnection(this, context, addresses, connected);
+	}
+
+	@Override
+	public InetSocketAddress associate(InetSocketAddress client) throws IOException {
+		SocksUdpRelay relay = createUdpRelay(client);
+		relay.open();
+		udpRelay = relay;
+		if (isClosing()) { // closed meanwhile
+			udpRelay.close();
+		}
+		return udpRelay.getAddress();
+	}
+
+	protected SocksUdpRelay createUdpRelay(InetSocketAddress client) throws IOException {
+		return new SocksUdpRelay(this, client);
+	}
+
 	@Override
 	public void attach(Object attachment) {
 		this.attachment = attachment;
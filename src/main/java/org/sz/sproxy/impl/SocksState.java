@@ -15,19 +15,41 @@
  */
 package org.sz.sproxy.impl;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 
+import org.sz.sproxy.Context;
 import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.SocksException;
 import org.sz.sproxy.State;
 
 /**
+ * Base of the handshake states, which parse the messages of the handshake out of the bytes received so far, however
+ * they're fragmented or pipelined.
+ * 
  * @author Sam Zheng
  *
  */
 public abstract class SocksState implements State<SocketChannel, SocksConnection> {
 
+	// more than the longest handshake message, a request with a domain name of 255 bytes
+	static final int HANDSHAKE_SIZE = 1 << 10;
+
+	// milliseconds for the client to read a refusal before the connection is closed
+	static final int REFUSAL_LINGER = 1000;
+
 	String name;
 
+	/**
+	 * The bytes received but not parsed yet, pooled while processing, a heap copy of an incomplete message between
+	 * reads so that nothing pooled is held by a connection that never completes the handshake.
+	 */
+	protected ByteBuffer buffer;
+
 	public SocksState(String name) {
 		this.name = name;
 	}
@@ -36,4 +58,103 @@ public abstract class SocksState implements State<SocketChannel, SocksConnection
 	public String getName() {
 		return name;
 	}
+
+	/**
+	 * Returns the next message, reading more bytes unless it's already been received.
+	 * 
+	 * @param handler
+	 * @param length returns the length of the message at the position of the given buffer, or -1 if more bytes are
+	 *               needed to tell
+	 * @return a slice of {@linkplain #buffer} holding the message, which is positioned after it, or null if the
+	 *         message is incomplete
+	 * @throws IOException
+	 */
+	protected ByteBuffer next(SocksConnection handler, ToIntFunction<ByteBuffer> length) throws IOException {
+		if (buffer == null || length.applyAsInt(buffer) < 0) {
+			ByteBuffer b = BufferPool.acquire(getBufferSize());
+			if (buffer != null) {
+				b.put(buffer);
+				release();
+			}
+			buffer = b;
+			int n = handler.read(b);
+			b.flip();
+			if (n == -1) {
+				release();
+				throw new SocksException("peer closed");
+			}
+		}
+		int len = length.applyAsInt(buffer);
+		if (len < 0) {
+			ByteBuffer h = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+			release();
+			buffer = h;
+			return null;
+		}
+		// too small to be taken for a pooled buffer if released
+		ByteBuffer m = buffer.slice(buffer.position(), len);
+		buffer.position(buffer.position() + len);
+		return m;
+	}
+
+	/**
+	 * Returns the size of the buffer into which the handshake is read, more than its longest message.
+	 * 
+	 * @return see above
+	 */
+	protected int getBufferSize() {
+		return HANDSHAKE_SIZE;
+	}
+
+	/**
+	 * Returns the reply telling the client that the destination of its request is connected, null if there's none.
+	 * 
+	 * @param bound the address from which the destination is connected
+	 * @return see above
+	 */
+	public ByteBuffer connectedReply(InetSocketAddress bound) {
+		return SocksConnectCommand.reply(bound);
+	}
+
+	/**
+	 * Returns the reply telling the client that its request has failed.
+	 * 
+	 * @param rep the SOCKS5 reply code
+	 * @return see above
+	 */
+	public ByteBuffer failedReply(byte rep) {
+		return SocksConnectCommand.reply(rep);
+	}
+
+	/**
+	 * Writes the given refusal to the client and closes the connection shortly after, not to drop the refusal if it's
+	 * still queued.
+	 * 
+	 * @param handler
+	 * @param reply
+	 */
+	static void refuse(SocksConnection handler, ByteBuffer reply) {
+		try {
+			handler.write(reply);
+		} catch (IOException e) {
+			handler.close();
+			return;
+		}
+		handler.getContext().getService(HashedWheelTimer.class).schedule(handler::close, REFUSAL_LINGER,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Releases {@linkplain #buffer}.
+	 */
+	protected void release() {
+		BufferPool.release(buffer);
+		buffer = null;
+	}
+
+	protected static void checkVersion(ByteBuffer b) {
+		if (b.get(b.position()) != Context.SOCKS_VERSION) {
+			throw new SocksException("Invalid socks version: " + b.get(b.position()));
+		}
+	}
 }
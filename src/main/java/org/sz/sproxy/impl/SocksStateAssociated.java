@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.Writable.WR;
+
+/**
+ * The state of a connection with a UDP association, which ends when the connection is closed, anything read is
+ * discarded.
+ * 
+ * @author Sam Zheng
+ *
+ */
+public class SocksStateAssociated extends SocksState {
+
+	public static final String NAME = "ASSOCIATED";
+
+	public SocksStateAssociated() {
+		super(NAME);
+	}
+
+	@Override
+	public WR process(SocksConnection handler) throws IOException {
+		ByteBuffer b = BufferPool.acquire(BufferPool.MIN_SIZE);
+		try {
+			int n;
+			while ((n = handler.read(b.clear())) > 0) {
+				// discarded
+			}
+			if (n == -1) {
+				handler.close();
+			}
+			return WR.DONE;
+		} finally {
+			BufferPool.release(b);
+		}
+	}
+
+}
@@ -16,6 +16,7 @@
 package org.sz.sproxy.impl;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.sz.sproxy.SocksAuthHandler;
 import org.sz.sproxy.SocksConnection;
@@ -35,9 +36,54 @@ public class SocksStateAuth extends SocksState {
 		super(NAME);
 	}
 
+//	  +----+----------+----------+
+//    |VER | NMETHODS | METHODS  |
+//    +----+----------+----------+
+//    | 1  |    1     | 1 to 255 |
+//    +----+----------+----------+
+
 	@Override
 	public WR process(SocksConnection handler) throws IOException {
-		return getAuthHandler().handleAuth(handler);
+		try {
+			ByteBuffer greeting = next(handler, SocksStateAuth::length);
+			if (greeting == null) {
+				return WR.DONE;
+			}
+			if (!greeting.hasRemaining()) { // an HTTP request, read again by its own state
+				ByteBuffer rest = buffer;
+				buffer = null;
+				handler.unread(rest);
+				handler.moveTo(SocksStateHttpConnect.NAME, null);
+				return WR.DONE;
+			}
+			WR wr = getAuthHandler().handleAuth(handler, greeting);
+			ByteBuffer rest = buffer;
+			buffer = null;
+			if (rest.hasRemaining()) {
+				// the request is pipelined, read once in the command state, which may not process inline
+				handler.unread(rest);
+			} else {
+				BufferPool.release(rest);
+			}
+			handler.moveTo(SocksStateCmd.NAME, null);
+			return wr;
+		} catch (IOException | RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	// 0 if it's not a greeting but an HTTP request
+	static int length(ByteBuffer b) {
+		if (b.hasRemaining() && SocksStateHttpConnect.isHttp(b.get(b.position()))) {
+			return 0;
+		}
+		if (b.remaining() < 2) {
+			return -1;
+		}
+		checkVersion(b);
+		int len = 2 + (b.get(b.position() + 1) & 0xFF);
+		return b.remaining() < len ? -1 : len;
 	}
 	
 	protected SocksAuthHandler getAuthHandler() {
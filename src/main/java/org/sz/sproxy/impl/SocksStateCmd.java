@@ -18,14 +18,14 @@ package org.sz.sproxy.impl;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import org.sz.sproxy.Context;
 import org.sz.sproxy.SocksCommand;
 import org.sz.sproxy.SocksConnection;
 import org.sz.sproxy.SocksException;
 import org.sz.sproxy.Writable.WR;
 
 /**
- * Authenticated state, expecting commands in this state.
+ * Authenticated state, expecting commands in this state. Reading stops once the request is parsed, bytes pipelined
+ * after it are pushed back to be relayed once the command has connected and resumed reading.
  * 
  * @author Sam Zheng
  *
@@ -40,27 +40,62 @@ public class SocksStateCmd extends SocksState {
 		super(NAME);
 	}
 
+	@Override
+	public boolean isBlocking() {
+		return true; // waiting for a tunnel when relayed
+	}
+
 	@Override
 	public WR process(SocksConnection handler) {
-		if (cmdHandler == null) {
-			try {
-				ByteBuffer buf = ByteBuffer.allocate(2);
-				int n = handler.read(buf);
-				if (n == -1) {
-					throw new SocksException("channel closed");
-				}
-				if (n != 2) {
-					throw new SocksException("Invalid header");
-				}
-				if (buf.get(0) != Context.SOCKS_VERSION) {
-					throw new SocksException("Invalid socks version: " + buf.get(0));
-				}
-				cmdHandler = handler.getContext().getCommandFactory().createCmdHandler(buf.get(1));
-			} catch (IOException e) {
-				throw new SocksException(e);
+		if (cmdHandler != null) {
+			return null; // executing
+		}
+		try {
+			ByteBuffer request = next(handler, SocksStateCmd::length);
+			if (request == null) {
+				return WR.DONE;
+			}
+			request.get(); // VER
+			cmdHandler = handler.getContext().getCommandFactory().createCmdHandler(request.get());
+			// pushed back before executing, which may resume reading any time, the request is a slice of it
+			if (buffer.hasRemaining()) {
+				ByteBuffer rest = buffer;
+				buffer = null;
+				handler.unread(rest);
 			}
+			cmdHandler.execute(handler, request, null, handler);
+			release();
+			return null;
+		} catch (IOException e) {
+			release();
+			throw new SocksException(e);
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	static int length(ByteBuffer b) {
+		if (b.remaining() < 5) {
+			return -1;
+		}
+		checkVersion(b);
+		int p = b.position();
+		int len;
+		switch (b.get(p + 3)) {
+		case SocksConnectCommand.IPV4:
+			len = 10;
+			break;
+		case SocksConnectCommand.IPV6:
+			len = 22;
+			break;
+		case SocksConnectCommand.DN:
+			len = 7 + (b.get(p + 4) & 0xFF);
+			break;
+		default:
+			throw new SocksException("Invalid address type: " + b.get(p + 3));
 		}
-		return cmdHandler.execute(handler, null, handler);
+		return b.remaining() < len ? -1 : len;
 	}
 	
 }
\ No newline at end of file
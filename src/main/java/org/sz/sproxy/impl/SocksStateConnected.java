@@ -31,15 +31,28 @@ public class SocksStateConnected extends SocksState {
 	
 	public static final String NAME = "CONNECTED";
 	
+	protected AdaptiveBufferSize relayBufferSize;
+	
 	public SocksStateConnected() {
 		super(NAME);
 	}
 
+	protected SocksStateConnected(String name) {
+		super(name);
+	}
+
+	@Override
+	public SocksStateConnected init(SocksConnection handler, Object info) throws IOException {
+		relayBufferSize = new AdaptiveBufferSize(handler.getContext().getConfiguration());
+		return this;
+	}
+
 	@Override
 	public WR process(SocksConnection handler) {
 		Objects.requireNonNull(handler);
 		try {
-			return Utils.pump(handler.getContext(), handler, (Writable)handler.getRemote(), handler::close);
+			return Utils.pump(handler.getContext(), handler, (Writable)handler.getRemote(), handler::close,
+					relayBufferSize);
 		} catch (IOException e) {
 			throw new SocksException(e);
 		}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.sz.sproxy.SocksCommand;
+import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.SocksException;
+import org.sz.sproxy.Writable.WR;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The HTTP/1.1 CONNECT frontend, entered instead of {@linkplain SocksStateAuth} if the client starts with an HTTP
+ * method rather than the SOCKS version. The request line is translated into a SOCKS5 CONNECT request executed by
+ * the same command, the headers are ignored, and the client is told the destination is connected with a 200
+ * response instead of a SOCKS5 reply, or that it's refused with the status matching the SOCKS5 reply code. Other
+ * methods are refused.
+ * 
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksStateHttpConnect extends SocksState {
+
+	public static final String NAME = "HTTP_CONNECT";
+
+	// the longest request header accepted
+	static final int HEADER_SIZE = 8 << 10;
+
+	private static final byte[] ESTABLISHED = "HTTP/1.1 200 Connection Established\r\n\r\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	protected SocksCommand cmdHandler;
+
+	// bytes of the request searched for the end of its header so far
+	private int scanned;
+
+	public SocksStateHttpConnect() {
+		super(NAME);
+	}
+
+	@Override
+	public boolean isBlocking() {
+		return true; // waiting for a tunnel when relayed
+	}
+
+	/**
+	 * Returns true if the given first byte of a connection starts an HTTP method.
+	 * 
+	 * @param b
+	 * @return see above
+	 */
+	static boolean isHttp(byte b) {
+		return b >= 'A' && b <= 'Z';
+	}
+
+	@Override
+	protected int getBufferSize() {
+		return HEADER_SIZE;
+	}
+
+	@Override
+	public WR process(SocksConnection handler) {
+		if (cmdHandler != null) {
+			return null; // executing
+		}
+		try {
+			ByteBuffer header = next(handler, this::length);
+			if (header == null) {
+				return WR.DONE;
+			}
+			ByteBuffer request = parse(handler, StandardCharsets.ISO_8859_1.decode(header).toString());
+			if (request == null) {
+				release();
+				return null; // refused
+			}
+			cmdHandler = handler.getContext().getCommandFactory().createCmdHandler((byte) 1);
+			// pushed back before executing, which may resume reading any time
+			if (buffer.hasRemaining()) {
+				ByteBuffer rest = buffer;
+				buffer = null;
+				handler.unread(rest);
+			}
+			cmdHandler.execute(handler, request, null, handler);
+			release();
+			return null;
+		} catch (IOException e) {
+			release();
+			throw new SocksException(e);
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	@Override
+	public ByteBuffer connectedReply(InetSocketAddress bound) {
+		return ByteBuffer.wrap(ESTABLISHED);
+	}
+
+	@Override
+	public ByteBuffer failedReply(byte rep) {
+		return response(rep == SocksConnectCommand.NOT_ALLOWED ? "403 Forbidden" : "502 Bad Gateway");
+	}
+
+	// the request header up to the empty line, -1 if it's yet to be received
+	private int length(ByteBuffer b) {
+		int p = b.position();
+		int n = b.remaining();
+		for (int i = Math.max(scanned, 1); i < n; i++) {
+			if (b.get(p + i) == '\n' && (b.get(p + i - 1) == '\n'
+					|| (i > 1 && b.get(p + i - 1) == '\r' && b.get(p + i - 2) == '\n'))) {
+				return i + 1;
+			}
+		}
+		scanned = n;
+		if (n >= HEADER_SIZE) {
+			throw new SocksException("HTTP request header too large");
+		}
+		return -1;
+	}
+
+	// translates the request line into a socks request from RSV, null if refused
+	private ByteBuffer parse(SocksConnection handler, String header) throws IOException {
+		int eol = header.indexOf('\n');
+		String[] line = header.substring(0, eol).trim().split(" ");
+		if (line.length != 3 || !line[2].startsWith("HTTP/")) {
+			return refuse(handler, "400 Bad Request", "Invalid HTTP request line: " + header.substring(0, eol));
+		}
+		if (!"CONNECT".equals(line[0])) {
+			return refuse(handler, "405 Method Not Allowed\r\nAllow: CONNECT", "HTTP method not supported: " + line[0]);
+		}
+		String target = line[1];
+		int colon = target.lastIndexOf(':');
+		int port;
+		try {
+			port = Integer.parseInt(target.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			port = -1;
+		}
+		if (colon <= 0 || port < 0 || port > 0xFFFF) {
+			return refuse(handler, "400 Bad Request", "Invalid CONNECT target: " + target);
+		}
+		String host = target.substring(0, colon);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		try {
+			return SocksConnectCommand.request(host, port);
+		} catch (IllegalArgumentException e) {
+			return refuse(handler, "400 Bad Request", "Invalid CONNECT target: " + target);
+		}
+	}
+
+	private static ByteBuffer refuse(SocksConnection handler, String status, String message) {
+		log.debug("{}, refused with {}", message, status);
+		refuse(handler, response(status));
+		return null;
+	}
+
+	private static ByteBuffer response(String status) {
+		return ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+	}
+
+}
@@ -25,6 +25,8 @@ public class SocksStateManager extends AbstractStateManager {
 		addState(SocksStateAuth.NAME, SocksStateAuth::new);
 		addState(SocksStateCmd.NAME, SocksStateCmd::new);
 		addState(SocksStateConnected.NAME, SocksStateConnected::new);
+		addState(SocksStateAssociated.NAME, SocksStateAssociated::new);
+		addState(SocksStateHttpConnect.NAME, SocksStateHttpConnect::new);
 	}
 
 	@Override
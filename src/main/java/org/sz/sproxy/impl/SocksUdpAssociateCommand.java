@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import org.sz.sproxy.SocksCommand;
+import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.SocksException;
+import org.sz.sproxy.Writable.WR;
+
+/**
+ * UDP ASSOCIATE, which replies with the address of a {@linkplain SocksUdpRelay} relaying datagrams of the client for
+ * as long as the connection is open.
+ * 
+ * @author Sam Zheng
+ *
+ */
+public class SocksUdpAssociateCommand implements SocksCommand {
+
+	@Override
+	public WR execute(SocksConnection connection, ByteBuffer request, Consumer<Object> onFinish, Object ctx)
+			throws SocksException {
+		try {
+			// where the client sends from, zeros if unknown
+			InetSocketAddress client = SocksConnectCommand.getTargetAddress(request, false);
+			InetSocketAddress bound = connection.associate(client);
+			connection.moveTo(SocksStateAssociated.NAME, null);
+			WR wr = connection.write(SocksConnectCommand.reply(bound));
+			connection.writeDone(null); // reading on only to tell when the client is gone
+			Optional.ofNullable(onFinish).ifPresent(f -> f.accept(ctx));
+			return wr;
+		} catch (IOException e) {
+			throw new SocksException(e);
+		}
+	}
+
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.Ruleset;
+import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The relay of a UDP association of a {@linkplain SocksConnection}, a {@linkplain DatagramChannel} polled by a
+ * selector loop, to which the client sends datagrams prefixed with the header below to be forwarded to their
+ * destinations, and on which datagrams from the destinations are received to be returned to the client, prefixed
+ * likewise.
+ * <p>
+ * Datagrams are received into one pooled buffer with room for the header in front, up to {@linkplain #BATCH} per
+ * wakeup, and sent right from it, or dropped if the socket buffer is full. The destinations the client has sent to
+ * are kept in a table, only datagrams from them are returned to the client, and they're forgotten once idle for
+ * {@linkplain Configuration#getUdpTimeout()}. Datagrams to a host name are dropped while it's being resolved, so are
+ * datagrams to destinations the {@linkplain org.sz.sproxy.Ruleset} doesn't allow.
+ * <p>
+ * Subclasses relaying through a tunnel take datagrams of the client from {@linkplain #fromClient(ByteBuffer, long)}
+ * and return datagrams to it from {@linkplain #toClient(ByteBuffer)}.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksUdpRelay implements NioChannelHandler<DatagramChannel> {
+
+//    +----+------+------+----------+----------+----------+
+//    |RSV | FRAG | ATYP | DST.ADDR | DST.PORT |   DATA   |
+//    +----+------+------+----------+----------+----------+
+//    | 2  |  1   |  1   | Variable |    2     | Variable |
+//    +----+------+------+----------+----------+----------+
+
+	// the longest header of the datagrams returned to the client, with an ipv6 address
+	static final int HEADROOM = 4 + 16 + 2;
+
+	// datagrams received per wakeup at most, so that the other channels of the loop get their turn
+	static final int BATCH = 64;
+
+	// destinations of an association at most
+	static final int MAX_MAPPINGS = 4096;
+
+	protected final Context context;
+
+	protected final DatagramChannel channel;
+
+	protected final SelectorLoop loop;
+
+	private SelectorLoop.Interest interest;
+
+	private final long timeout;
+
+	private volatile Timeout expiry;
+
+	// the address from which the client sends, its port learned from the first datagram if not given
+	private InetAddress clientAddress;
+
+	private int clientPort;
+
+	private volatile InetSocketAddress client;
+
+	// the destinations the client has sent to, only used by the loop
+	private final Map<InetSocketAddress, Mapping> mappings = new HashMap<>();
+
+	// host names the client has sent to, only used by the loop
+	private final Map<InetSocketAddress, Mapping> names = new HashMap<>();
+
+	// the header of the last datagram from the client and its destination, not to parse the header again
+	private final byte[] lastHeader = new byte[4 + 1 + 255 + 2];
+
+	private int lastHeaderLength;
+
+	private Mapping last;
+
+	private ByteBuffer in;
+
+	protected volatile long lastActive = System.nanoTime();
+
+	protected volatile boolean closed;
+
+	/**
+	 * A destination.
+	 */
+	private static final class Mapping {
+
+		// null while the host name is being resolved
+		InetSocketAddress address;
+
+		// not allowed by the rules, datagrams to and from it are dropped
+		boolean refused;
+
+		// the header of the datagrams from the destination
+		byte[] header;
+
+		long lastActive;
+
+		Mapping(InetSocketAddress address, long now) {
+			lastActive = now;
+			if (address != null) {
+				resolved(address);
+			}
+		}
+
+		void resolved(InetSocketAddress address) {
+			this.address = address;
+			byte[] a = address.getAddress().getAddress();
+			header = ByteBuffer.allocate(4 + a.length + 2).putShort((short) 0).put((byte) 0)
+					.put(a.length == 4 ? SocksConnectCommand.IPV4 : SocksConnectCommand.IPV6).put(a)
+					.putShort((short) address.getPort()).array();
+		}
+	}
+
+	/**
+	 * Binds a relay for the given client on the address at which the control connection was accepted, to be
+	 * {@linkplain #open()}ed.
+	 *
+	 * @param control
+	 * @param client the address from which the client is going to send datagrams, its address and port unspecified
+	 *               if unknown
+	 * @throws IOException
+	 */
+	public SocksUdpRelay(SocksConnection control, InetSocketAddress client) throws IOException {
+		this(control.getContext(), loopOf(control),
+				((InetSocketAddress) control.getChannel().getLocalAddress()).getAddress());
+		try {
+			InetAddress a = client.isUnresolved() ? null : client.getAddress();
+			clientAddress = a == null || a.isAnyLocalAddress()
+					? ((InetSocketAddress) control.getChannel().getRemoteAddress()).getAddress()
+					: a;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		clientPort = client.getPort();
+		if (clientPort != 0) {
+			this.client = new InetSocketAddress(clientAddress, clientPort);
+		}
+	}
+
+	/**
+	 * Binds a relay on the given address, to be {@linkplain #open()}ed.
+	 *
+	 * @param context
+	 * @param loop the loop to poll the relay, or null for any
+	 * @param local the address to bind, or null for the wildcard address
+	 * @throws IOException
+	 */
+	protected SocksUdpRelay(Context context, SelectorLoop loop, InetAddress local) throws IOException {
+		this.context = context;
+		timeout = TimeUnit.MILLISECONDS.toNanos(context.getConfiguration().getUdpTimeout());
+		this.loop = loop != null ? loop : context.getService(SelectorLoopGroup.class).next();
+		channel = DatagramChannel.open();
+		try {
+			channel.configureBlocking(false);
+			channel.bind(new InetSocketAddress(local, 0));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the selector loop polling the given connection, null if none.
+	 *
+	 * @param handler
+	 * @return see above
+	 */
+	protected static SelectorLoop loopOf(Object handler) {
+		return NioConnection.loopOf(handler);
+	}
+
+	/**
+	 * Starts receiving datagrams, the relay is closed if it fails.
+	 *
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		try {
+			in = BufferPool.acquire(BufferPool.MAX_SIZE);
+			interest = loop.interest(loop.register(channel, SelectionKey.OP_READ, this));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			BufferPool.release(in);
+			throw e;
+		}
+		expiry = context.getService(HashedWheelTimer.class).schedule(this::scheduleExpire, timeout,
+				TimeUnit.NANOSECONDS);
+		loop.start();
+		loop.wakeup();
+	}
+
+	/**
+	 * Returns the address to which the client should send datagrams.
+	 *
+	 * @return see above
+	 * @throws IOException
+	 */
+	public InetSocketAddress getAddress() throws IOException {
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	/**
+	 * Returns true if no datagram has been relayed for {@linkplain Configuration#getUdpTimeout()}.
+	 *
+	 * @return see above
+	 */
+	public boolean isIdle() {
+		return System.nanoTime() - lastActive > timeout;
+	}
+
+	@Override
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public Context getContext() {
+		return context;
+	}
+
+	@Override
+	public boolean isInline() {
+		return true; // datagrams are forwarded as they are
+	}
+
+	@Override
+	public int handle(int ops) throws IOException {
+		if (closed) {
+			return -1;
+		}
+		long now = System.nanoTime();
+		try {
+			SocketAddress from;
+			for (int i = 0; i < BATCH && (from = channel.receive(in.clear().position(HEADROOM))) != null; i++) {
+				in.flip().position(HEADROOM);
+				InetSocketAddress f = (InetSocketAddress) from;
+				try {
+					if (isClient(f)) {
+						fromClient(in, now);
+					} else {
+						fromDestination(f, now);
+					}
+				} catch (IOException | RuntimeException e) { // e.g. unreachable, the next datagram may do
+					log.debug("Error relaying a datagram from {}: {}", f, e.toString());
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Error receiving datagrams on {}: {}", channel, e.toString());
+		}
+		lastActive = now;
+		interest.or(SelectionKey.OP_READ);
+		return 0;
+	}
+
+	/**
+	 * Returns true if the given sender is the client, rather than a destination.
+	 *
+	 * @param from
+	 * @return see above
+	 */
+	protected boolean isClient(InetSocketAddress from) {
+		if (from.equals(client)) {
+			return true;
+		}
+		if (clientPort == 0 && from.getAddress().equals(clientAddress)) {
+			client = from; // the first datagram from the client
+			clientPort = from.getPort();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Forwards a datagram of the client, header included, to its destination, on the loop.
+	 *
+	 * @param datagram
+	 * @param now
+	 * @throws IOException
+	 */
+	protected void fromClient(ByteBuffer datagram, long now) throws IOException {
+		Mapping m = destination(datagram, now);
+		if (m == null || m.address == null || m.refused) {
+			return;
+		}
+		m.lastActive = now;
+		channel.send(datagram, m.address); // dropped if there's no room
+	}
+
+	private void fromDestination(InetSocketAddress from, long now) throws IOException {
+		Mapping m = mappings.get(from);
+		if (m == null || m.refused) {
+			return; // not sent to by the client
+		}
+		m.lastActive = now;
+		int p = in.position() - m.header.length;
+		in.put(p, m.header).position(p);
+		toClient(in);
+	}
+
+	/**
+	 * Returns a datagram, header included, to the client, dropped if the client is yet to be known. The datagram is
+	 * not released.
+	 *
+	 * @param datagram
+	 * @throws IOException
+	 */
+	protected void toClient(ByteBuffer datagram) throws IOException {
+		InetSocketAddress c = client;
+		if (c != null) {
+			channel.send(datagram, c);
+		}
+	}
+
+	// parses the header of a datagram from the client, positioning the buffer at its data
+	private Mapping destination(ByteBuffer in, long now) throws IOException {
+		int p = in.position();
+		int len = headerLength(in);
+		if (len < 0 || in.get(p + 2) != 0) {
+			return null; // malformed, or a fragment which isn't supported
+		}
+		if (last != null && isLastHeader(in, p, len)) {
+			in.position(p + len);
+			return last;
+		}
+		in.position(p + 2); // as the request, FRAG taking the place of RSV
+		InetSocketAddress a = SocksConnectCommand.getTargetAddress(in, false);
+		Mapping m;
+		if (a.isUnresolved()) {
+			m = names.get(a);
+			if (m == null) {
+				m = resolve(a, now);
+			}
+		} else {
+			m = map(a, now);
+		}
+		if (m != null) {
+			in.get(p, lastHeader, 0, len);
+			lastHeaderLength = len;
+			last = m;
+		}
+		return m;
+	}
+
+	private boolean isLastHeader(ByteBuffer in, int p, int len) {
+		if (len != lastHeaderLength) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (in.get(p + i) != lastHeader[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Mapping map(InetSocketAddress a, long now) {
+		Mapping m = mappings.get(a);
+		if (m == null && mappings.size() < MAX_MAPPINGS) {
+			m = new Mapping(a, now);
+			if (!getContext().getService(Ruleset.class).allows(a.getAddress(), a.getPort())) {
+				log.debug("Sending to {} not allowed", a);
+				m.refused = true;
+			}
+			mappings.put(a, m);
+		}
+		return m;
+	}
+
+	private Mapping resolve(InetSocketAddress a, long now) {
+		if (names.size() >= MAX_MAPPINGS) {
+			return null;
+		}
+		Mapping m = new Mapping(null, now);
+		names.put(a, m);
+		Ruleset rules = getContext().getService(Ruleset.class);
+		Boolean allowed = rules.allows(a.getHostString(), a.getPort());
+		if (Boolean.FALSE.equals(allowed)) {
+			log.debug("Sending to {} not allowed", a);
+			m.refused = true; // until it expires
+			return m;
+		}
+		getContext().getService(Resolver.class).resolve(a.getHostString()).whenComplete((r, e) -> loop.execute(() -> {
+			if (e != null) {
+				log.debug("Unable to resolve {}: {}", a.getHostString(), e.toString());
+				names.remove(a, m); // tried again by the next datagram
+				return;
+			}
+			if (r.isEmpty()) {
+				names.remove(a, m);
+				return;
+			}
+			// up to the addresses if no domain rule has decided
+			List<InetAddress> ok = allowed == null ? rules.allowed(r, a.getPort()) : r;
+			if (ok.isEmpty()) {
+				log.debug("Sending to {} at {} not allowed", a, r);
+				m.refused = true;
+				return;
+			}
+			InetSocketAddress resolved = new InetSocketAddress(ok.get(0), a.getPort());
+			m.resolved(resolved);
+			mappings.putIfAbsent(resolved, m);
+		}));
+		return m;
+	}
+
+	// returns -1 if the header is incomplete
+	protected static int headerLength(ByteBuffer b) {
+		if (b.remaining() < 5) {
+			return -1;
+		}
+		int p = b.position();
+		int len;
+		switch (b.get(p + 3)) {
+		case SocksConnectCommand.IPV4:
+			len = 10;
+			break;
+		case SocksConnectCommand.IPV6:
+			len = 22;
+			break;
+		case SocksConnectCommand.DN:
+			len = 7 + (b.get(p + 4) & 0xFF);
+			break;
+		default:
+			return -1;
+		}
+		return b.remaining() < len ? -1 : len;
+	}
+
+	private void scheduleExpire() {
+		if (!closed) {
+			loop.execute(this::expire);
+		}
+	}
+
+	/**
+	 * Forgets the destinations idle for {@linkplain Configuration#getUdpTimeout()}, on the loop.
+	 */
+	protected void expire() {
+		if (closed) {
+			return;
+		}
+		long now = System.nanoTime();
+		expire(mappings, now);
+		expire(names, now);
+		expiry = getContext().getService(HashedWheelTimer.class).schedule(this::scheduleExpire, timeout,
+				TimeUnit.NANOSECONDS);
+	}
+
+	private void expire(Map<InetSocketAddress, Mapping> map, long now) {
+		for (Iterator<Mapping> i = map.values().iterator(); i.hasNext();) {
+			Mapping m = i.next();
+			if (now - m.lastActive > timeout) {
+				i.remove();
+				if (m == last) {
+					last = null;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (expiry != null) {
+			expiry.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Error closing udp relay {}", channel, e);
+		}
+		loop.deregistered();
+		loop.execute(() -> { // not to be received into any more
+			BufferPool.release(in);
+			in = null;
+		});
+	}
+
+}
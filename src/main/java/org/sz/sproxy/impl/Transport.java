@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.impl;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The io engine underneath a {@linkplain NioConnection}, it moves bytes between the connection and its channel and
+ * delivers readiness events to the connection, with the semantics of a non-blocking channel registered with a
+ * selector, i.e. interest ops, level triggered readiness, and reads/writes that may transfer fewer bytes than
+ * requested.
+ *
+ * @author Sam Zheng
+ *
+ */
+public interface Transport {
+
+	/**
+	 * Starts delivering readiness events, called once the connection is fully constructed.
+	 */
+	void start();
+
+	int read(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Pushes back the given bytes, which are read before anything else from the channel. They make the channel
+	 * readable, i.e. {@linkplain java.nio.channels.SelectionKey#OP_READ} is delivered whenever reading is of interest
+	 * until they're all read. The buffer is owned by this transport from then on.
+	 *
+	 * @param buffer
+	 */
+	void unread(ByteBuffer buffer);
+
+	int write(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Gathering write, see {@linkplain java.nio.channels.GatheringByteChannel#write(ByteBuffer[], int, int)}.
+	 *
+	 * @param buffers
+	 * @param offset
+	 * @param length
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	long write(ByteBuffer[] buffers, int offset, int length) throws IOException;
+
+	/**
+	 * Initiates connecting the channel to the given address, {@linkplain java.nio.channels.SelectionKey#OP_CONNECT}
+	 * is delivered once it finishes.
+	 *
+	 * @param address
+	 * @throws IOException
+	 */
+	void connect(SocketAddress address) throws IOException;
+
+	/**
+	 * Delivers the readiness events from now on to the given handler, which takes over the channel.
+	 *
+	 * @param handler
+	 */
+	void setHandler(NioChannelHandler<?> handler);
+
+	int interestOps();
+
+	void interestOpsOr(int ops);
+
+	void interestOpsAnd(int ops);
+
+	boolean isValid();
+
+	/**
+	 * Makes sure changed interest ops are taken into account.
+	 */
+	void wakeup();
+
+	void close() throws IOException;
+
+}
@@ -16,9 +16,17 @@
 package org.sz.sproxy.impl;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.sz.sproxy.Configuration;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.Readable;
 import org.sz.sproxy.SocksException;
@@ -62,18 +70,90 @@ public final class Utils {
 		};
 	};
 	
-	public static WR pump(Context context, Readable source, Writable to, Runnable onClose) throws IOException {
+	/**
+	 * Logs the given statistics with the given logger every {@linkplain Configuration#getStatsInterval()} seconds, if
+	 * changed since last logged.
+	 * 
+	 * @param context
+	 * @param stats whose string is logged
+	 * @param logger
+	 */
+	public static void logStats(Context context, Object stats, Logger logger) {
+		int interval = context.getConfiguration().getStatsInterval();
+		if (interval > 0) {
+			logStats(context.getService(HashedWheelTimer.class), stats, logger, interval, stats.toString());
+		}
+	}
+
+	private static void logStats(HashedWheelTimer timer, Object stats, Logger logger, int interval, String last) {
+		timer.schedule(() -> {
+			String s = stats.toString();
+			if (!s.equals(last)) {
+				logger.info("{}", s);
+			}
+			logStats(timer, stats, logger, interval, s);
+		}, interval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Returns the socket addresses of the given addresses at the given port, in the same order.
+	 * 
+	 * @param addresses
+	 * @param port
+	 * @return see above
+	 */
+	public static List<InetSocketAddress> withPort(List<InetAddress> addresses, int port) {
+		return addresses.stream().map(a -> new InetSocketAddress(a, port)).collect(Collectors.toList());
+	}
+	
+	/**
+	 * Returns a factory of virtual threads, or null if virtual threads are not supported by the running jvm, it's
+	 * looked up reflectively so that this class still compiles and runs on java 17.
+	 * 
+	 * @return see above
+	 */
+	public static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			log.debug("virtual threads not supported: {}", e.toString());
+			return null;
+		}
+	}
+	
+	/**
+	 * Relays from the source to the writable until there's nothing more to read or the writable is jammed, with
+	 * buffers sized by the given {@linkplain AdaptiveBufferSize} of the source.
+	 * 
+	 * @param context
+	 * @param source
+	 * @param to
+	 * @param onClose called once the source reaches the end of stream
+	 * @param size
+	 * @return {@linkplain WR#AGAIN} if jammed
+	 * @throws IOException
+	 */
+	public static WR pump(Context context, Readable source, Writable to, Runnable onClose, AdaptiveBufferSize size)
+			throws IOException {
 		if (to.flush() == WR.AGAIN) {
 			if (log.isDebugEnabled()) {
 				log.debug("unable to flush {}, network jam", to);
 			}
 			return WR.AGAIN;
 		}
-		int bufSize = context.getConfiguration().getPacketBufferSize();
-		ByteBuffer b = ByteBuffer.allocate(bufSize);
 		while (true) {
-			int n = source.read(b);
+			int bufSize = size.next();
+			ByteBuffer b = BufferPool.acquire(bufSize);
+			int n;
+			try {
+				n = source.read(b);
+			} catch (IOException | RuntimeException e) {
+				BufferPool.release(b);
+				throw e;
+			}
 			if (n == -1) {
+				BufferPool.release(b);
 				log.debug("connection closed: {}", source);
 				if (onClose != null) {
 					onClose.run();
@@ -82,11 +162,12 @@ public final class Utils {
 			}
 			b.flip();
 			if (b.remaining() > 0) {
-				if (to.write(b) == WR.AGAIN) {
+				size.record(n, bufSize);
+				if (to.write(b) == WR.AGAIN) { // b is owned by the writable from now on
 					return WR.AGAIN;
 				}
-				b.clear();
 			} else {
+				BufferPool.release(b);
 				return WR.DONE;
 			}
 		}
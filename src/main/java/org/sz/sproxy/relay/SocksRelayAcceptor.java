@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.io.IOException;
+
+import org.sz.sproxy.Server;
+import org.sz.sproxy.SocksException;
+import org.sz.sproxy.impl.AcceptorImpl;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Listens on the forwarded ports as well as on the SOCKS port.
+ * 
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksRelayAcceptor extends AcceptorImpl {
+
+	public SocksRelayAcceptor(Server server) {
+		super(server);
+	}
+
+	@Override
+	public void startAccepting() throws IOException {
+		super.startAccepting();
+		for (SocksRelayForward f : ((SocksRelayContext) getContext()).getForwards()) {
+			listen(f.getAddress(), (context, channel) -> {
+				try {
+					return new SocksRelayForwardConnection(context, channel, f);
+				} catch (IOException e) {
+					throw new SocksException(e);
+				}
+			});
+			log.info("forwarding {}", f);
+		}
+	}
+
+}
@@ -17,7 +17,6 @@ package org.sz.sproxy.relay;
 
 import org.sz.sproxy.Context;
 import org.sz.sproxy.ContextConfiguration;
-import org.sz.sproxy.impl.AcceptorFactoryImpl;
 import org.sz.sproxy.tunnel.client.TunnelClientConfiguration;
 
 /**
@@ -28,6 +27,6 @@ public class SocksRelayConfiguration extends TunnelClientConfiguration implement
 
 	@Override
 	public Context createContext() {
-		return new SocksRelayContext(new AcceptorFactoryImpl(), this);
+		return new SocksRelayContext(SocksRelayAcceptor::new, this);
 	}
 }
@@ -16,11 +16,17 @@
 package org.sz.sproxy.relay;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.Writable;
 import org.sz.sproxy.impl.SocksConnectCommand;
+import org.sz.sproxy.relay.SocksRelayRoutes.Route;
 import org.sz.sproxy.tunnel.client.TunnelClientConnection;
 
 /**
@@ -40,9 +46,25 @@ public class SocksRelayConnectCmd extends SocksConnectCommand {
 //	    | X'00' |  1   | Variable |    2     |
 //	    +-------+------+----------+----------+
 		SocksRelayConnection conn = (SocksRelayConnection)connection;
-		conn.connectRemote(null, null, null);
+		SocksRelayContext context = (SocksRelayContext) conn.getContext();
+		Route route = context.getRoutes().route(getAddress(buffer.duplicate()));
+		conn.setRoute(route);
+		if (route == Route.DIRECT) {
+			super.connect(buffer, connection, onFinish, ctx);
+			return;
+		}
+		conn.connectRemote((InetSocketAddress) null, null, null);
 		TunnelClientConnection tunnel = (TunnelClientConnection) conn.getRemote();
 		tunnel.connect(conn, buffer, getConnectedCallback(connection, onFinish, ctx));
 	}
+
+	@Override
+	protected BiConsumer<ChannelHandler<SocketChannel>, Writable> getConnectedCallback(SocksConnection connection,
+			Consumer<Object> onFinish, Object ctx) {
+		if (((SocksRelayConnection) connection).getRoute() == Route.DIRECT) {
+			return connectedCallback(connection, SocksRelayStateDirect.NAME, onFinish, ctx);
+		}
+		return super.getConnectedCallback(connection, onFinish, ctx);
+	}
 	
 }
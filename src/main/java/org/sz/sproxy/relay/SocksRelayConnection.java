@@ -17,14 +17,19 @@ package org.sz.sproxy.relay;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.StateManager;
 import org.sz.sproxy.Writable;
+import org.sz.sproxy.Writable.WR;
 import org.sz.sproxy.impl.SocksConnectionImpl;
+import org.sz.sproxy.impl.SocksUdpRelay;
+import org.sz.sproxy.relay.SocksRelayRoutes.Route;
 import org.sz.sproxy.tunnel.client.RelayedConnection;
 import org.sz.sproxy.tunnel.client.TunnelClient;
 
@@ -41,6 +46,11 @@ public class SocksRelayConnection extends SocksConnectionImpl implements Relayed
 	@Setter
 	int id;
 
+	// decided once connecting, null for UDP associations which go through the tunnel
+	@Getter
+	@Setter
+	volatile Route route;
+
 	public SocksRelayConnection(Context context, SocketChannel channel) throws IOException {
 		super(context, channel);
 	}
@@ -50,19 +60,78 @@ public class SocksRelayConnection extends SocksConnectionImpl implements Relayed
 		return new SocksRelayStateManager();
 	}
 
+	@Override
+	public int read(ByteBuffer buffer) throws IOException {
+		int n = super.read(buffer);
+		Route r = route;
+		if (n > 0 && r != null) {
+			routes().sent(r, n);
+		}
+		return n;
+	}
+
+	@Override
+	public WR write(ByteBuffer buffer) throws IOException {
+		int n = buffer.remaining();
+		WR wr = super.write(buffer);
+		Route r = route;
+		if (r != null) {
+			routes().received(r, n);
+		}
+		return wr;
+	}
+
+	private SocksRelayRoutes routes() {
+		return ((SocksRelayContext) getContext()).getRoutes();
+	}
+
 	@Override
 	public void connectRemote(InetSocketAddress address,
 			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected, Object ctx) throws IOException {
+		if (route == Route.DIRECT) {
+			super.connectRemote(address, connected, ctx);
+			return;
+		}
 		SocksRelayContext context = (SocksRelayContext) getContext();
 		TunnelClient t = context.getPool().tunnel(this);
 		remote = t;
 
 	}
 
+	@Override
+	public void connectRemote(List<InetSocketAddress> addresses,
+			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected, Object ctx) throws IOException {
+		if (route == Route.DIRECT) {
+			super.connectRemote(addresses, connected, ctx);
+			return;
+		}
+		connectRemote(addresses.get(0), connected, ctx); // the tunnel server resolves and connects
+	}
+
+	@Override
+	protected SocksUdpRelay createUdpRelay(InetSocketAddress client) throws IOException {
+		// the channel of this connection carries the datagrams, closing it closes the association on the server
+		connectRemote((InetSocketAddress) null, null, null);
+		return new SocksRelayUdpRelay(this, client, (TunnelClient) remote);
+	}
+
+	@Override
+	public void receive(ByteBuffer datagram) throws IOException {
+		SocksUdpRelay relay = udpRelay;
+		if (relay != null) {
+			((SocksRelayUdpRelay) relay).fromTunnel(datagram);
+		}
+	}
+
 	@Override
 	protected void closeInternal() throws IOException {
-		if (remote != null) {
+		if (remote instanceof TunnelClient) {
 			((TunnelClient) remote).close(this);
+		} else if (remote != null) {
+			remote.close();
+		}
+		if (udpRelay != null) {
+			udpRelay.close();
 		}
 	}
 }
@@ -15,6 +15,9 @@
  */
 package org.sz.sproxy.relay;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.sz.sproxy.AcceptorFactory;
 import org.sz.sproxy.ChannelHandlerFactory;
 import org.sz.sproxy.SocksCommandFactory;
@@ -50,12 +53,24 @@ public class SocksRelayContext extends ContextImpl implements TunnelContext {
 	@Getter
 	SecretManager secretManager;
 	
+	@Getter
+	SocksRelayRoutes routes;
+	
+	@Getter
+	List<SocksRelayForward> forwards;
+	
 	public SocksRelayContext(AcceptorFactory acceptorFactory, TunnelClientConfiguration config) {
 		super(acceptorFactory, config);
 		keyManager = new KeyManagerImpl(config);
 		authManager = new AuthManagerImpl(keyManager);
 		secretManager = new SecretManagerImpl();
 		pool = new TunnelPoolImpl(this);
+		forwards = SocksRelayForward.parse(config.getForwards(), config.getHost());
+		try {
+			routes = new SocksRelayRoutes(this);
+		} catch (IOException e) {
+			throw new RuntimeException(e); // fatal
+		}
 	}
 	
 	@Override
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.sz.sproxy.impl.SocksConnectCommand;
+
+import lombok.Getter;
+
+/**
+ * A local port forwarded to a fixed destination through the tunnel, as of <code>ssh -L</code>, specified as
+ * <code>[bind_address:]port:host:hostport</code>, IPv6 addresses in brackets.
+ *
+ * @author Sam Zheng
+ *
+ */
+public class SocksRelayForward {
+
+	@Getter
+	private final InetSocketAddress address;
+
+	@Getter
+	private final String host;
+
+	@Getter
+	private final int port;
+
+	// the connect request sent for every connection, from RSV
+	private final byte[] request;
+
+	public SocksRelayForward(InetSocketAddress address, String host, int port) {
+		this.address = address;
+		this.host = host;
+		this.port = port;
+		ByteBuffer r = SocksConnectCommand.request(host, port);
+		request = new byte[r.remaining()];
+		r.get(request);
+	}
+
+	/**
+	 * Returns the request to connect to the destination.
+	 * 
+	 * @return see above
+	 */
+	public ByteBuffer request() {
+		return ByteBuffer.wrap(request);
+	}
+
+	/**
+	 * Parses the given comma separated forwards.
+	 * 
+	 * @param forwards
+	 * @param defaultHost at which ports are listened to if there's no bind address
+	 * @return see above
+	 * @throws IllegalArgumentException if a forward is not valid
+	 */
+	public static List<SocksRelayForward> parse(String forwards, String defaultHost) {
+		List<SocksRelayForward> r = new ArrayList<>();
+		for (String f : forwards.split(",")) {
+			f = f.trim();
+			if (f.isEmpty()) {
+				continue;
+			}
+			List<String> t = split(f);
+			if (t.size() != 3 && t.size() != 4) {
+				throw new IllegalArgumentException("Invalid forward: " + f);
+			}
+			int i = t.size() - 3;
+			r.add(new SocksRelayForward(new InetSocketAddress(i == 0 ? defaultHost : t.get(0), port(t.get(i), f)),
+					t.get(i + 1), port(t.get(i + 2), f)));
+		}
+		return r;
+	}
+
+	// splits by colons outside of brackets, which are removed
+	private static List<String> split(String f) {
+		List<String> t = new ArrayList<>();
+		int start = 0;
+		boolean bracket = false;
+		for (int i = 0; i <= f.length(); i++) {
+			char c = i < f.length() ? f.charAt(i) : ':';
+			if (c == '[') {
+				bracket = true;
+			} else if (c == ']') {
+				bracket = false;
+			} else if (c == ':' && !bracket) {
+				String s = f.substring(start, i);
+				t.add(s.startsWith("[") && s.endsWith("]") ? s.substring(1, s.length() - 1) : s);
+				start = i + 1;
+			}
+		}
+		return t;
+	}
+
+	private static int port(String s, String forward) {
+		try {
+			int p = Integer.parseInt(s);
+			if (p >= 0 && p <= 0xFFFF) {
+				return p;
+			}
+		} catch (NumberFormatException e) {
+			// invalid
+		}
+		throw new IllegalArgumentException("Invalid port " + s + " of forward: " + forward);
+	}
+
+	@Override
+	public String toString() {
+		return address + " -> " + host + ":" + port;
+	}
+
+}
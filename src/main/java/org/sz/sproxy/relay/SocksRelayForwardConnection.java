@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+import org.sz.sproxy.Context;
+import org.sz.sproxy.StateManager;
+import org.sz.sproxy.impl.SocksConnectCommand;
+import org.sz.sproxy.impl.SocksStateConnected;
+import org.sz.sproxy.tunnel.client.TunnelClientConnection;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A connection accepted on a forwarded port, connected to the destination of the forward through the tunnel right
+ * away, with no SOCKS handshake.
+ * 
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksRelayForwardConnection extends SocksRelayConnection {
+
+	private final SocksRelayForward forward;
+
+	public SocksRelayForwardConnection(Context context, SocketChannel channel, SocksRelayForward forward)
+			throws IOException {
+		super(context, channel);
+		this.forward = forward;
+	}
+
+	@Override
+	protected StateManager createStateManager() {
+		return new SocksRelayStateManager(SocksRelayStateForward.NAME);
+	}
+
+	@Override
+	public void start() {
+		super.start();
+		// a tunnel may have to be established first
+		getContext().getTaskExecutor().execute(this::forward);
+	}
+
+	private void forward() {
+		try {
+			connectRemote((InetSocketAddress) null, null, null);
+			TunnelClientConnection tunnel = (TunnelClientConnection) getRemote();
+			tunnel.connect(this, forward.request(),
+					SocksConnectCommand.connectedCallback(this, SocksStateConnected.NAME, null, null));
+		} catch (IOException | RuntimeException e) {
+			log.debug("Error forwarding to {}", forward, e);
+			close();
+		}
+	}
+
+}
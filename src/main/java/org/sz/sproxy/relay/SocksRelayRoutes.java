@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.sz.sproxy.Context;
+import org.sz.sproxy.Ruleset;
+import org.sz.sproxy.impl.CompiledRuleset;
+import org.sz.sproxy.impl.FileRuleset;
+import org.sz.sproxy.impl.Utils;
+import org.sz.sproxy.tunnel.client.TunnelClientConfiguration;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Routes destinations of the relay either directly or through the tunnel, by a table of
+ * {@linkplain TunnelClientConfiguration#getRoutesFile()} such as
+ * 
+ * <pre>
+ * direct 192.168.0.0/16
+ * direct 10.0.0.0/8
+ * direct corp.example.com
+ * direct *.internal 80,443
+ * tunnel vpn.corp.example.com
+ * </pre>
+ * 
+ * in the format of {@linkplain CompiledRuleset} with <code>direct</code> and <code>tunnel</code> for the actions, any
+ * other destination going through the tunnel unless there's a <code>default direct</code>. Host names are routed by
+ * the domain rules, without resolving them here, address rules apply to address destinations.
+ * <p>
+ * The connections and bytes relayed are counted per route, and logged every
+ * {@linkplain org.sz.sproxy.Configuration#getStatsInterval()} seconds.
+ *
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksRelayRoutes {
+
+	public enum Route {
+		DIRECT, TUNNEL
+	}
+
+	private final Ruleset table;
+
+	private final LongAdder[] connections = adders();
+
+	private final LongAdder[] bytesSent = adders();
+
+	private final LongAdder[] bytesReceived = adders();
+
+	/**
+	 * Compiles the routes of the configured file, if any.
+	 *
+	 * @param context
+	 * @throws IOException if the file can't be read
+	 * @throws IllegalArgumentException if it's not valid
+	 */
+	public SocksRelayRoutes(Context context) throws IOException {
+		TunnelClientConfiguration config = (TunnelClientConfiguration) context.getConfiguration();
+		String file = config.getRoutesFile();
+		table = file.isEmpty() ? null
+				: new FileRuleset(context, file, config.getRulesReloadInterval(),
+						lines -> CompiledRuleset.compile(lines, "direct", "tunnel", false));
+		Utils.logStats(context, this, log);
+	}
+
+	private static LongAdder[] adders() {
+		LongAdder[] a = new LongAdder[Route.values().length];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = new LongAdder();
+		}
+		return a;
+	}
+
+	/**
+	 * Returns the route of a connection to the given destination, which is counted in.
+	 * 
+	 * @param destination
+	 * @return see above
+	 */
+	public Route route(InetSocketAddress destination) {
+		Route r = Route.TUNNEL;
+		if (table != null) {
+			boolean direct;
+			if (destination.isUnresolved()) {
+				Boolean d = table.allows(destination.getHostString(), destination.getPort());
+				direct = d == null ? table.allowsByDefault() : d;
+			} else {
+				direct = table.allows(destination.getAddress(), destination.getPort());
+			}
+			r = direct ? Route.DIRECT : Route.TUNNEL;
+		}
+		connections[r.ordinal()].increment();
+		log.debug("route {} {}", destination, r);
+		return r;
+	}
+
+	void sent(Route route, int bytes) {
+		bytesSent[route.ordinal()].add(bytes);
+	}
+
+	void received(Route route, int bytes) {
+		bytesReceived[route.ordinal()].add(bytes);
+	}
+
+	/**
+	 * Returns the number of connections routed by the given route.
+	 * 
+	 * @param route
+	 * @return see above
+	 */
+	public long getConnections(Route route) {
+		return connections[route.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the bytes sent by clients to destinations of the given route.
+	 * 
+	 * @param route
+	 * @return see above
+	 */
+	public long getBytesSent(Route route) {
+		return bytesSent[route.ordinal()].sum();
+	}
+
+	/**
+	 * Returns the bytes received by clients from destinations of the given route.
+	 * 
+	 * @param route
+	 * @return see above
+	 */
+	public long getBytesReceived(Route route) {
+		return bytesReceived[route.ordinal()].sum();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("routes");
+		for (Route r : Route.values()) {
+			sb.append(r.ordinal() == 0 ? " " : ", ").append(r.name().toLowerCase()).append(": ")
+					.append(getConnections(r)).append(" connections, ").append(getBytesSent(r)).append(" bytes sent, ")
+					.append(getBytesReceived(r)).append(" bytes received");
+		}
+		return sb.toString();
+	}
+
+}
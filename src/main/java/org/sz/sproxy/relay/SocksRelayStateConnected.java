@@ -21,6 +21,7 @@ import org.sz.sproxy.SocksConnection;
 import org.sz.sproxy.SocksException;
 import org.sz.sproxy.Writable.WR;
 import org.sz.sproxy.impl.SocksStateConnected;
+import org.sz.sproxy.tunnel.Tunnel;
 import org.sz.sproxy.tunnel.client.TunnelClient;
 
 /**
@@ -29,12 +30,19 @@ import org.sz.sproxy.tunnel.client.TunnelClient;
  */
 public class SocksRelayStateConnected extends SocksStateConnected {
 	
+	@Override
+	public SocksStateConnected init(SocksConnection handler, Object info) throws IOException {
+		super.init(handler, info);
+		relayBufferSize.limit(Tunnel.MAX_DATA_SIZE);
+		return this;
+	}
+
 	@Override
 	public WR process(SocksConnection handler) {
 		SocksRelayConnection conn = (SocksRelayConnection)handler;
 		TunnelClient tunnel = (TunnelClient) handler.getRemote();
 		try {
-			return tunnel.pump(conn);
+			return tunnel.pump(conn, relayBufferSize);
 		} catch (IOException e) {
 			throw new SocksException(e);
 		}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import org.sz.sproxy.impl.SocksStateConnected;
+
+/**
+ * Relays a connection routed directly to its destination, as in standalone mode.
+ * 
+ * @author Sam Zheng
+ *
+ */
+public class SocksRelayStateDirect extends SocksStateConnected {
+
+	public static final String NAME = "DIRECT";
+
+	public SocksRelayStateDirect() {
+		super(NAME);
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.sz.sproxy.SocksConnection;
+import org.sz.sproxy.Writable.WR;
+import org.sz.sproxy.impl.SocksState;
+
+/**
+ * The state of a forwarded connection until its destination is connected, in which nothing is read.
+ * 
+ * @author Sam Zheng
+ *
+ */
+public class SocksRelayStateForward extends SocksState {
+
+	public static final String NAME = "FORWARD";
+
+	public SocksRelayStateForward() {
+		super(NAME);
+	}
+
+	@Override
+	public boolean isBlocking() {
+		return true; // waiting for a tunnel
+	}
+
+	@Override
+	public WR process(SocksConnection handler) {
+		return null; // reading resumes once connected
+	}
+
+	@Override
+	public ByteBuffer connectedReply(InetSocketAddress bound) {
+		return null; // nothing to tell the client
+	}
+
+}
@@ -15,6 +15,7 @@
  */
 package org.sz.sproxy.relay;
 
+import org.sz.sproxy.impl.SocksStateAuth;
 import org.sz.sproxy.impl.SocksStateConnected;
 import org.sz.sproxy.impl.SocksStateManager;
 
@@ -24,8 +25,22 @@ import org.sz.sproxy.impl.SocksStateManager;
  */
 public class SocksRelayStateManager extends SocksStateManager {
 
+	private final String initState;
+
 	public SocksRelayStateManager() {
+		this(SocksStateAuth.NAME);
+	}
+
+	public SocksRelayStateManager(String initState) {
 		super();
+		this.initState = initState;
 		addState(SocksStateConnected.NAME, SocksRelayStateConnected::new);
+		addState(SocksRelayStateDirect.NAME, SocksRelayStateDirect::new);
+		addState(SocksRelayStateForward.NAME, SocksRelayStateForward::new);
+	}
+
+	@Override
+	public String getInitState() {
+		return initState;
 	}
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.relay;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.sz.sproxy.impl.SocksUdpRelay;
+import org.sz.sproxy.tunnel.Tunnel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The relay of a UDP association through a tunnel, which sends the datagrams of the client as they are, header
+ * included, in DATAGRAM frames of the channel of the control connection, for the tunnel server to send them to their
+ * destinations. Datagrams are dropped rather than queued if the tunnel can't take them right away.
+ * 
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class SocksRelayUdpRelay extends SocksUdpRelay {
+
+	private final SocksRelayConnection control;
+
+	private final Tunnel tunnel;
+
+	public SocksRelayUdpRelay(SocksRelayConnection control, InetSocketAddress client, Tunnel tunnel)
+			throws IOException {
+		super(control, client);
+		this.control = control;
+		this.tunnel = tunnel;
+	}
+
+	@Override
+	protected void fromClient(ByteBuffer datagram, long now) throws IOException {
+		if (headerLength(datagram) < 0) {
+			return; // malformed
+		}
+		if (!tunnel.writeDatagram(control.getId(), datagram) && log.isTraceEnabled()) {
+			log.trace("datagram of channel {} dropped", control.getId());
+		}
+	}
+
+	/**
+	 * Returns a datagram from the tunnel to the client.
+	 * 
+	 * @param datagram
+	 * @throws IOException
+	 */
+	void fromTunnel(ByteBuffer datagram) throws IOException {
+		if (!closed) {
+			lastActive = System.nanoTime();
+			toClient(datagram);
+		}
+	}
+}
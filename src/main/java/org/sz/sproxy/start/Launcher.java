@@ -120,7 +120,10 @@ public class Launcher {
 				"-p", new Opt(Configuration.SERVER_PORT),
 				"-H", new Opt(TunnelClientConfiguration.TUNNEL_SERVER_HOST),
 				"-P", new Opt(TunnelClientConfiguration.TUNNEL_SERVER_PORT),
-				"-k", new Opt(KeyManager.KEY_STORE)), config);
+				"-k", new Opt(KeyManager.KEY_STORE),
+				"-e", new Opt(Configuration.IO_ENGINE),
+				"-w", new Opt(Configuration.WRITE_HIGH_WATERMARK),
+				"-L", new Opt(TunnelClientConfiguration.TUNNEL_CLIENT_FORWARDS)), config);
 		ServerImpl.create(config).start();
 	}
 	
@@ -131,7 +134,11 @@ public class Launcher {
 				"-p", new Opt(Configuration.SERVER_PORT),
 				"-6", new Opt(Configuration.SERVER_IPV6, false),
 				"-k", new Opt(TunnelServerConfiguration.KEY_STORE, false),
-				"-a", new Opt(TunnelServerConfiguration.AUTHORIZED_KEYS_FILE)), config);
+				"-a", new Opt(TunnelServerConfiguration.AUTHORIZED_KEYS_FILE),
+				"-e", new Opt(Configuration.IO_ENGINE),
+				"-w", new Opt(Configuration.WRITE_HIGH_WATERMARK),
+				"-A", new Opt(Configuration.SERVER_ACCEPTORS),
+				"-R", new Opt(Configuration.SERVER_REUSEPORT, false)), config);
 		ServerImpl.create(config).start();
 	}
 	
@@ -174,7 +181,9 @@ public class Launcher {
 		SocksContextConfiguration config = new SocksContextConfiguration();
 		parseOpts(args, Map.of(
 				"-h", new Opt(Configuration.SERVER_HOST),
-				"-p", new Opt(Configuration.SERVER_PORT)), config);
+				"-p", new Opt(Configuration.SERVER_PORT),
+				"-e", new Opt(Configuration.IO_ENGINE),
+				"-w", new Opt(Configuration.WRITE_HIGH_WATERMARK)), config);
 		ServerImpl.create(config).start();
 	}
 	
@@ -189,10 +198,17 @@ public class Launcher {
 			.append("    -H <host> - remote address at which the tunnel server is listening\n")
 			.append("    -P <port> - remote port on which the tunnel server is listening\n")
 			.append("    -k <keystore file> - keystore file(pkcs12) that contains the key to be used by the tunnel client to authenticate with the tunnel server\n")
+			.append("    -e <nio|blocking> - io engine, non-blocking channels polled by selectors(default) or blocking channels with a thread per direction\n")
+			.append("    -w <bytes> - bytes queued for writing on a connection beyond which the peer stops reading until half of it drains, 65536 by default\n")
+			.append("    -L <[bind_address:]port:host:hostport,...> - local ports forwarded to fixed destinations through the tunnel, with no SOCKS handshake\n")
 			.append("  server - run as a tunnel server\n")
 			.append("    -h <host> - address at which the tunnel server will be listening\n")
 			.append("    -p <port> - port on which the tunnel server will be listening\n")
 			.append("    -a <authorized key file> - file that contains the public keys that are authorized to connect to this tunnel server\n")
+			.append("    -e <nio|blocking> - io engine, see above\n")
+			.append("    -w <bytes> - write watermark, see above\n")
+			.append("    -A <n> - number of sockets listening on the port with SO_REUSEPORT, each with a selector loop of its own, 1 by default\n")
+			.append("    -R - listen with SO_REUSEPORT, so that more server processes can listen on the same port\n")
 			.append("  genKey - generate a key pair(RSA) for tunnel client and server respectively for mutual authentication, generated files are:\n")
 			.append("    tc.p12 - tunnel client key store\n")
 			.append("    tc_authorized_keys - this file contains public key of the tunnel server that the tunnel client trusts, more public keys can be added with the addAuthKey command\n")
@@ -204,7 +220,9 @@ public class Launcher {
 			.append("    -a <authorized key file> - file to store(append) the extracted public key\n")
 			.append("  standalone - run as a standalone proxy that provides no authentication or encryption\n")
 			.append("    -h <host> - address at which the proxy will be listening\n")
-			.append("    -p <port> - port on which the proxy will be listening\n");
+			.append("    -p <port> - port on which the proxy will be listening\n")
+			.append("    -e <nio|blocking> - io engine, see above\n")
+			.append("    -w <bytes> - write watermark, see above\n");
 		
 		out.println(sb.toString());
 	}
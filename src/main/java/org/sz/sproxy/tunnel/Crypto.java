@@ -15,7 +15,12 @@
  */
 package org.sz.sproxy.tunnel;
 
+import java.nio.ByteBuffer;
+
 /**
+ * Encrypts and decrypts the records of a tunnel. The encrypting and the decrypting side each are used by one thread at
+ * a time, such as the writer holding the lock of the tunnel and the reading handler, an implementation doesn't lock.
+ * 
  * @author Sam Zheng
  *
  */
@@ -25,4 +30,82 @@ public interface Crypto {
 	
 	byte[] decrypt(byte[] encrypted, byte[] iv);
 
+	/**
+	 * Decrypts the remaining bytes of <code>encrypted</code>, which are consumed, straight into <code>plain</code>,
+	 * heap or direct, which must have {@linkplain #decryptedSize(int)} bytes remaining.
+	 * 
+	 * @param encrypted
+	 * @param iv
+	 * @param plain
+	 * @return the number of bytes decrypted
+	 */
+	int decrypt(ByteBuffer encrypted, byte[] iv, ByteBuffer plain);
+
+	/**
+	 * Returns the number of bytes the given number of encrypted bytes decrypt to.
+	 * 
+	 * @param encryptedSize
+	 * @return see above
+	 */
+	int decryptedSize(int encryptedSize);
+
+	/**
+	 * Encrypts the given buffers as one message into a pooled buffer, after <code>headroom</code> bytes left for the
+	 * caller to fill. The given buffers are consumed, not released.
+	 * 
+	 * @param plain
+	 * @param iv
+	 * @param headroom
+	 * @return the buffer, from 0 to the end of the encrypted bytes
+	 */
+	default ByteBuffer encrypt(ByteBuffer[] plain, byte[] iv, int headroom) {
+		int n = 0;
+		for (ByteBuffer b : plain) {
+			n += b.remaining();
+		}
+		Encryption e = encryption(iv, n, headroom);
+		for (ByteBuffer b : plain) {
+			e.update(b);
+		}
+		return e.seal();
+	}
+
+	/**
+	 * Starts encrypting a message of up to <code>size</code> bytes into a pooled buffer, after <code>headroom</code>
+	 * bytes left for the caller to fill. The encrypting cipher is taken until the message is sealed or released, it's
+	 * up to the caller not to encrypt anything else meanwhile.
+	 * 
+	 * @param iv
+	 * @param size
+	 * @param headroom
+	 * @return see above
+	 */
+	Encryption encryption(byte[] iv, int size, int headroom);
+
+	/**
+	 * A message being encrypted as its bytes are added.
+	 */
+	interface Encryption {
+
+		/**
+		 * Encrypts the given bytes, which are consumed, not released.
+		 * 
+		 * @param plain
+		 */
+		void update(ByteBuffer plain);
+
+		/**
+		 * Finishes the message.
+		 * 
+		 * @return the buffer, from 0 to the end of the encrypted bytes
+		 */
+		ByteBuffer seal();
+
+		/**
+		 * Drops the message, releasing its buffer.
+		 */
+		void release();
+
+	}
+
 }
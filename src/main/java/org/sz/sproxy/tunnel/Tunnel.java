@@ -24,6 +24,9 @@ import org.sz.sproxy.Flushable;
 import org.sz.sproxy.Readable;
 import org.sz.sproxy.SocksException;
 import org.sz.sproxy.Writable;
+import org.sz.sproxy.Writable.WR;
+import org.sz.sproxy.impl.BufferPool;
+import org.sz.sproxy.impl.Utils;
 
 /**
  * @author Sam Zheng
@@ -59,12 +62,19 @@ public interface Tunnel extends ContextAccess, Writable, Readable, Identifiable,
 	byte CONNECTRP = 0x12;
 	byte DATA = 0x13;
 	byte CLOSE = 0x14;
+	// a datagram of the UDP association of a channel, opened by the first one and closed with the channel
+	byte DATAGRAM = 0x15;
 
 	// reserved
 	byte RESERVED = 0x0;
 
 	int HEADER_LEN = 3;
 	
+	/**
+	 * The max payload of a DATA frame, so that the frame, once encrypted, is still a plausible packet to the peer.
+	 */
+	int MAX_DATA_SIZE = 2 * Utils.PAGE_SIZE - 128;
+	
 	TunneledConnection getTunneledConnection(int id);
 	
 	default void closeChannel(int id) {
@@ -75,18 +85,98 @@ public interface Tunnel extends ContextAccess, Writable, Readable, Identifiable,
 		};
 	}
 	
+	/**
+	 * Closes the UDP association of the given channel if any.
+	 * 
+	 * @param id
+	 * @return true if there was one
+	 */
+	default boolean dissociate(int id) {
+		return false;
+	}
+	
+	/**
+	 * Returns true if bytes are queued for writing as the socket can't take them yet.
+	 * 
+	 * @return see above
+	 */
+	boolean isWriteQueued();
+	
+	/**
+	 * Writes a DATAGRAM frame of the given channel, or drops the datagram if it's larger than
+	 * {@linkplain #MAX_DATA_SIZE}, or if writes are queued, so that datagrams are never held up behind stream data.
+	 * The datagram is copied, not released.
+	 * 
+	 * @param id
+	 * @param datagram
+	 * @return false if dropped
+	 * @throws IOException
+	 */
+	default boolean writeDatagram(int id, ByteBuffer datagram) throws IOException {
+		int n = datagram.remaining();
+		if (n > MAX_DATA_SIZE || isWriteQueued()) {
+			return false;
+		}
+		ByteBuffer buf = prepareBuffer(8 + n, DATAGRAM);
+		buf.putInt(id);
+		buf.putInt(n);
+		buf.put(datagram);
+		buf.flip();
+		write(buf);
+		return true;
+	}
+	
 	default Writable getDataWriter(int id, Writable to) {
 		return getWriter(id, DATA, to);
 	}
 	
-	// TODO: optimize the buffer allocation
+	/**
+	 * Writes a frame of the given header and payload, which are owned by this tunnel from then on, without copying
+	 * them into one buffer.
+	 * 
+	 * @param header
+	 * @param payload
+	 * @return see {@linkplain Writable#write(ByteBuffer)}
+	 * @throws IOException
+	 */
+	WR writeFrame(ByteBuffer header, ByteBuffer payload) throws IOException;
+
+	/**
+	 * Returns true if there are bytes read from the channel pending to be read, such as the rest of a record of
+	 * several frames.
+	 * 
+	 * @return see above
+	 */
+	default boolean isReadPending() {
+		return false;
+	}
+
+	/**
+	 * Returns a writer of frames of the given channel and command to the given writable, the payload is framed
+	 * without being copied if it's this tunnel.
+	 * 
+	 * @param id
+	 * @param cmd
+	 * @param to
+	 * @return see above
+	 */
 	default Writable getWriter(int id, byte cmd, Writable to) {
+		if (to == this) {
+			return (b) -> {
+				ByteBuffer header = BufferPool.acquire(HEADER_LEN + 8);
+				prepareHeader(header, cmd);
+				header.putInt(id);
+				header.putInt(b.remaining());
+				return writeFrame(header.flip(), b);
+			};
+		}
 		return (b) -> {
 			ByteBuffer buf = prepareBuffer(8 + b.remaining(), cmd);
 			buf.putInt(id);
 			buf.putInt(b.remaining());
 			buf.put(b);
 			buf.flip();
+			BufferPool.release(b);
 			return to.write(buf);
 		};
 	}
@@ -97,6 +187,7 @@ public interface Tunnel extends ContextAccess, Writable, Readable, Identifiable,
 			buf.putInt(b.remaining());
 			buf.put(b);
 			buf.flip();
+			BufferPool.release(b);
 			return to.write(buf);
 		};
 	}
@@ -107,8 +198,15 @@ public interface Tunnel extends ContextAccess, Writable, Readable, Identifiable,
 		return getWriter(client.getId(), cmd, to);
 	}
 
+	/**
+	 * Returns a pooled buffer of the given payload size with the header prepared.
+	 * 
+	 * @param size
+	 * @param cmd
+	 * @return see above
+	 */
 	default ByteBuffer prepareBuffer(int size, byte cmd) {
-		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LEN + size);
+		ByteBuffer buffer = BufferPool.acquire(HEADER_LEN + size);
 		prepareHeader(buffer, cmd);
 		return buffer;
 	}
@@ -38,6 +38,9 @@ public class TunnelCmdClose implements TunnelCmd {
 		int channelId = reader.getChannelId();
 		TunneledConnection tunneled = tunnel.getTunneledConnection(channelId);
 		if (tunneled == null) {
+			if (tunnel.dissociate(channelId)) {
+				return WR.DONE;
+			}
 			log.debug("closing a non-existent connection {}, probably closed already", channelId);
 		} else {
 			tunnel.execCatchAll(tunneled::close, e -> log.debug("Error closing connection", e));
@@ -46,7 +46,7 @@ public class TunnelCmdData implements TunnelCmd {
 					tunnel.closeChannel(channelId);
 				});
 			} else {
-				return tunneled.write(reader.getPayload());
+				return tunneled.write(reader.detachPayload()); // zero copy, released once written
 			}
 		} catch (IOException e1) {
 			log.debug("error forwarding packet");
@@ -65,20 +65,30 @@ public abstract class TunnelCmdState<C extends ByteChannel & NetworkChannel, T e
 
 	@Override
 	public WR process(T handler) throws IOException {
+		WR wr = WR.DONE;
 		while (true) {
+			if (wr == WR.AGAIN && !((Tunnel) handler).isReadPending()) {
+				return wr;
+			}
 			if (reader.read(handler)) {
 				try {
+					// the rest of a record is processed anyway, nothing tells to read it later but the channel
 					if (processPacket(handler, reader) == WR.AGAIN) {
 						if (log.isDebugEnabled()) {
 							log.debug("unable to write once, try at next poll");
 						}
-						return WR.AGAIN;
+						wr = WR.AGAIN;
 					}
 				} finally {
 					reader.reset();
 				}
+				State<C, T> next = handler.getState();
+				if (next != this && next != null) {
+					// moved on, the packets following belong to the next state
+					return next.process(handler);
+				}
 			} else {
-				return WR.DONE;
+				return wr;
 			}
 		}
 	}
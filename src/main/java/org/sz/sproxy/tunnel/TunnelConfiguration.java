@@ -37,6 +37,8 @@ public abstract class TunnelConfiguration extends PropertiesConfiguration {
 	
 	public static final String AUTHORIZED_KEYS_FILE = "tunnel.auth.authorized_keys";
 	
+	public static final String COALESCE_SIZE = "tunnel.coalesce.size";
+	
 	
 	public TunnelConfiguration() {
 		
@@ -78,6 +80,17 @@ public abstract class TunnelConfiguration extends PropertiesConfiguration {
 		return get(AUTHORIZED_KEYS_FILE, getDefaultAuthorizedKeyFile());
 	}
 	
+	/**
+	 * Returns the bytes of frames up to which frames written in a round of the selector loop are sealed into one
+	 * encrypted record, 4096 by default, 0 to seal every frame on its own. It's at most
+	 * {@linkplain Tunnel#MAX_DATA_SIZE}, larger records being rejected by the peer.
+	 * 
+	 * @return
+	 */
+	public int getCoalesceSize() {
+		return Math.max(0, Math.min(getInt(COALESCE_SIZE, 4096), Tunnel.MAX_DATA_SIZE));
+	}
+	
 	public abstract String getDefaultAuthorizedKeyFile();
 	
 	public abstract String getDefaultKeyStore();
@@ -105,6 +105,19 @@ public class TunnelPacketReader {
 		return payload;
 	}
 	
+	/**
+	 * Hands over the payload to the caller, who is then responsible for releasing it to the
+	 * {@linkplain org.sz.sproxy.impl.BufferPool}.
+	 * 
+	 * @return the payload
+	 * @throws IOException
+	 */
+	public ByteBuffer detachPayload() throws IOException {
+		ByteBuffer b = payloadReader.detach();
+		payload = null;
+		return b;
+	}
+	
 	public boolean read(Readable channel) throws IOException {
 		while (reader.read(channel)) {
 			if (reader instanceof CmdReader) {
@@ -15,6 +15,8 @@
  */
 package org.sz.sproxy.tunnel;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 
 import org.sz.sproxy.ChannelHandler;
@@ -29,4 +31,12 @@ import org.sz.sproxy.Writable;
 public interface TunneledConnection
 		extends ContextAccess, ChannelHandler<SocketChannel>, Writable, Readable, Identifiable {
 
+	/**
+	 * Receives a datagram of the UDP association of this connection, which is not to be retained, dropped by default.
+	 * 
+	 * @param datagram
+	 * @throws IOException
+	 */
+	default void receive(ByteBuffer datagram) throws IOException {
+	}
 }
@@ -20,6 +20,7 @@ import java.nio.channels.SocketChannel;
 
 import org.sz.sproxy.Attachable;
 import org.sz.sproxy.ChannelHandler;
+import org.sz.sproxy.impl.AdaptiveBufferSize;
 import org.sz.sproxy.tunnel.Tunnel;
 
 /**
@@ -34,7 +35,7 @@ public interface TunnelClient extends Tunnel, ChannelHandler<SocketChannel> , At
 	
 	void close(RelayedConnection conn);
 	
-	WR pump(RelayedConnection conn) throws IOException;
+	WR pump(RelayedConnection conn, AdaptiveBufferSize size) throws IOException;
 	
 	boolean isConnected();
 
@@ -57,6 +57,11 @@ public class TunnelClientAuthState extends TunnelCmdState<SocketChannel, TunnelC
 		return false;
 	}
 
+	@Override
+	public boolean isBlocking() {
+		return true; // key store loading and signing
+	}
+
 	@Override
 	public WR execute(Tunnel tunnel, TunnelPacketReader reader, Consumer<Object> onFinish, Object ctx) {
 		ByteBuffer buf = reader.getPayload();
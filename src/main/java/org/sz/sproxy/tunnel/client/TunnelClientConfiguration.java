@@ -34,6 +34,10 @@ public class TunnelClientConfiguration extends TunnelConfiguration {
 	
 	public static final String TUNNEL_POOL_MAX = "tunnel.client.pool.connections.max";
 	
+	public static final String TUNNEL_CLIENT_ROUTES = "tunnel.client.routes.file";
+	
+	public static final String TUNNEL_CLIENT_FORWARDS = "tunnel.client.forwards";
+	
 	public static final int TUNNEL_SERVER_PORT_DEF = 9999;
 	
 	public TunnelClientConfiguration() {
@@ -74,4 +78,26 @@ public class TunnelClientConfiguration extends TunnelConfiguration {
 		return getInt(TUNNEL_POOL_MAX, def);
 	}
 	
+	/**
+	 * Returns the file of the routes deciding which destinations are connected directly rather than through the
+	 * tunnel, see {@linkplain org.sz.sproxy.relay.SocksRelayRoutes} for its format, none by default to tunnel any
+	 * destination. It's reloaded as the rules file is once changed.
+	 * 
+	 * @return
+	 */
+	public String getRoutesFile() {
+		return get(TUNNEL_CLIENT_ROUTES, "");
+	}
+	
+	/**
+	 * Returns the local ports forwarded to fixed destinations through the tunnel, comma separated
+	 * <code>[bind_address:]port:host:hostport</code>, none by default, see
+	 * {@linkplain org.sz.sproxy.relay.SocksRelayForward}.
+	 * 
+	 * @return
+	 */
+	public String getForwards() {
+		return get(TUNNEL_CLIENT_FORWARDS, "");
+	}
+	
 }
@@ -40,6 +40,7 @@ public class TunnelClientConnectedState extends TunnelCmdState<SocketChannel, Tu
 		addHandler(Byte.valueOf(Tunnel.CONNECTRP), new TunnelCmdConnectReply());
 		addHandler(Byte.valueOf(Tunnel.CLOSE), new TunnelCmdClose());
 		addHandler(Byte.valueOf(Tunnel.DATA), new TunnelCmdData());
+		addHandler(Byte.valueOf(Tunnel.DATAGRAM), new TunnelCmdDatagramReply());
 	}
 
 	@Override
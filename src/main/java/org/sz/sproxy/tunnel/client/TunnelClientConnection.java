@@ -18,13 +18,13 @@ package org.sz.sproxy.tunnel.client;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
@@ -34,6 +34,9 @@ import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.StateManager;
 import org.sz.sproxy.Writable;
+import org.sz.sproxy.impl.AdaptiveBufferSize;
+import org.sz.sproxy.impl.BufferPool;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
 import org.sz.sproxy.impl.NioConnection;
 import org.sz.sproxy.impl.Utils;
 import org.sz.sproxy.tunnel.Crypto;
@@ -53,6 +56,8 @@ import lombok.extern.slf4j.Slf4j;
 public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelClientConnection>
 		implements TunnelClient, Tunnel, Attachable {
 	
+	private static final long CLEANUP_INTERVAL = 5000;
+	
 	SecuredConnectionHelper helper;
 
 	Map<Integer, TunneledConnection> proxied;
@@ -71,19 +76,22 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 	int id;
 	
 	private volatile boolean connected;
+	
+	private volatile Timeout cleanup;
 
 	public TunnelClientConnection(Context context, TunnelClientCallback callback) throws IOException {
 		super(context, SocketChannel.open());
 		TunnelClientConfiguration config = (TunnelClientConfiguration) context.getConfiguration();
-		key.interestOpsOr(SelectionKey.OP_CONNECT);
 		channelId = new AtomicInteger(new Random().nextInt());
 		this.callback = callback;
-		helper = new SecuredConnectionHelper(channel::read, context);
+		helper = new SecuredConnectionHelper(this::readChannel, context);
+		if (loop != null) { // sealed after the current round of the loop, in which more frames may be written
+			helper.setSealer(() -> loop.execute(this::sealRecord));
+		}
 		proxied = new ConcurrentHashMap<>();
 		addr = new InetSocketAddress(config.getServerHost(), config.getServerPort());
 		log.debug("starting tunnel connection: {}", channel);
-		channel.connect(addr);
-		selector.wakeup();
+		connect(addr);
 	}
 	
 	@Override
@@ -112,6 +120,16 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 	void connected() {
 		callback.connected(this);
 		connected = true;
+		scheduleCleanup();
+	}
+	
+	private void scheduleCleanup() {
+		cleanup = getTimer().schedule(() -> {
+			if (!isClosing()) {
+				cleanupOrphaned();
+				scheduleCleanup();
+			}
+		}, CLEANUP_INTERVAL, TimeUnit.MILLISECONDS);
 	}
 	
 	@Override
@@ -119,6 +137,11 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 		return connected;
 	}
 
+	@Override
+	protected boolean isBlocking() {
+		return !connected || super.isBlocking(); // the handshake starts right after connecting
+	}
+
 	@Override
 	public RelayedConnection tunnel(RelayedConnection connection) {
 		int id = this.channelId.getAndIncrement();
@@ -130,8 +153,8 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 		return connection;
 	}
 	
-	private synchronized WR internalWrite(ByteBuffer buffer) throws IOException {
-		return super.write(buffer);
+	private synchronized WR internalWrite(ByteBuffer[] buffers) throws IOException {
+		return super.write(buffers);
 	}
 
 	@Override
@@ -142,11 +165,31 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 	@Override
 	public synchronized WR write(ByteBuffer buffer) throws IOException {
 		if (buffer.remaining() == 0) {
+			BufferPool.release(buffer);
 			return WR.DONE;
 		}
 		return helper.write(buffer, this::internalWrite);
 	}
 
+	@Override
+	public synchronized WR writeFrame(ByteBuffer header, ByteBuffer payload) throws IOException {
+		return helper.writeFrame(header, payload, this::internalWrite);
+	}
+
+	private synchronized void sealRecord() {
+		try {
+			helper.seal(this::internalWrite);
+		} catch (IOException | RuntimeException e) {
+			log.debug("Error writing to tunnel {}", getChannel(), e);
+			close();
+		}
+	}
+
+	@Override
+	public boolean isReadPending() {
+		return helper.isPending();
+	}
+
 	@Override
 	public Writable getPlainWriter() {
 		return super::write;
@@ -160,9 +203,16 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 	@Override
 	protected void closeInternal() throws IOException {
 		log.info("closing tunnel client");
+		Timeout t = cleanup;
+		if (t != null) {
+			t.cancel();
+		}
 		List<TunneledConnection> list = new ArrayList<>(proxied.values());
 		proxied.clear();
 		list.forEach(TunneledConnection::close);
+		synchronized (this) {
+			helper.release();
+		}
 		log.info("tunnel client closed");
 	}
 
@@ -197,8 +247,8 @@ public class TunnelClientConnection extends NioConnection<SocketChannel, TunnelC
 	}
 
 	@Override
-	public WR pump(RelayedConnection client) throws IOException {
-		return Utils.pump(context, client, getDataWriter(client.getId(), this::write), client::close);
+	public WR pump(RelayedConnection client, AdaptiveBufferSize size) throws IOException {
+		return Utils.pump(context, client, getDataWriter(client.getId(), this), client::close, size);
 	}
 
 	public void connect(RelayedConnection client, ByteBuffer connInfo,
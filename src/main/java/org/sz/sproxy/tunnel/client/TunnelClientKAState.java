@@ -64,6 +64,11 @@ public class TunnelClientKAState extends TunnelCmdState<SocketChannel, TunnelCli
 		return false;
 	}
 
+	@Override
+	public boolean isBlocking() {
+		return true; // key agreement
+	}
+
 	@Override
 	public WR execute(Tunnel tunnel, TunnelPacketReader reader, Consumer<Object> onFinish, Object ctx) {
 		ByteBuffer packet = reader.getPayload();
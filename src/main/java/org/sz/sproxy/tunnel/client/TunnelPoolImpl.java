@@ -17,13 +17,17 @@ package org.sz.sproxy.tunnel.client;
 
 import java.io.IOException;
 import java.util.HashSet;
-import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.sz.sproxy.Context;
 import org.sz.sproxy.SocksException;
+import org.sz.sproxy.impl.HashedWheelTimer;
+import org.sz.sproxy.impl.HashedWheelTimer.Timeout;
 import org.sz.sproxy.tunnel.TunneledConnection;
 
 import lombok.extern.slf4j.Slf4j;
@@ -33,17 +37,20 @@ import lombok.extern.slf4j.Slf4j;
  *
  */
 @Slf4j
-public class TunnelPoolImpl implements TunnelPool, Runnable {
+public class TunnelPoolImpl implements TunnelPool {
 	private static final int TUN_IDLE_TIME = 1 * 60 * 1000;
 
 	private static final int MAX_CONN = 20;
 
+	private static final int TUN_CONNECT_TIMEOUT = 15 * 1000;
+
 	private static final int RELAY_THRESHOLD = 1;
 
 	private static class TunnelInfo {
 		@SuppressWarnings("unused")
 		volatile long connected;
-		volatile long idle = Long.MAX_VALUE;
+		// closes the tunnel once it's been relaying nothing for the pool idle time, guarded by the pool
+		Timeout idle;
 
 		TunnelInfo(long t) {
 			connected = t;
@@ -60,6 +67,8 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 
 	TunnelClientConfiguration config;
 	
+	HashedWheelTimer timer;
+	
 	public TunnelPoolImpl(Context context) {
 		this(context, ((TunnelClientConfiguration) context.getConfiguration()).getMaxConnections(MAX_CONN));
 	}
@@ -70,38 +79,43 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 		config = (TunnelClientConfiguration) context.getConfiguration();
 		connections = new PriorityQueue<>(size, (o1, o2) -> o1.getRelayedCount() - o2.getRelayedCount());
 		pendingConnections = new HashSet<>();
-		Thread t = new Thread(this);
-		t.setName("tunnel_pool_house_keeping");
-		t.setDaemon(true);
-		t.start();
+		timer = context.getService(HashedWheelTimer.class);
 	}
-	private void houseKeeping() {
 
-		log.debug("active connections: {}, relayed:\n{}", connections.size(), 
-				connections.stream().map(c -> String.valueOf(c.getRelayedCount())).collect(Collectors.joining(",\n")));
-		long t = System.currentTimeMillis();
-		int to = config.getPoolIdleTime(TUN_IDLE_TIME);
+	private synchronized void idle(TunnelClient tunnel) {
+		TunnelInfo i = (TunnelInfo) tunnel.getAttachment();
+		if (i == null || tunnel.getRelayedCount() > 0) {
+			return;
+		}
+		if (i.idle != null) {
+			i.idle.cancel();
+		}
+		i.idle = timer.schedule(() -> closeIdle(tunnel), config.getPoolIdleTime(TUN_IDLE_TIME), TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void busy(TunnelClient tunnel) {
+		TunnelInfo i = (TunnelInfo) tunnel.getAttachment();
+		if (i != null && i.idle != null) {
+			i.idle.cancel();
+			i.idle = null;
+		}
+	}
+
+	private void closeIdle(TunnelClient tunnel) {
 		synchronized (this) {
-			
-			List<TunnelClientConnection> toClose = connections.stream()
-					.map(c -> (TunnelClientConnection)c)
-					.map(c -> {c.cleanupOrphaned(); return c;})
-					.filter(c -> t - ((TunnelInfo) c.getAttachment()).idle > to)
-					.toList();
-			
-			log.debug("closing idle connections: {}", toClose.size());
-			toClose.forEach(c -> {
-				// close tunnel that's idle for too long
-				log.debug("closing idle tunnel: {}", c);
-				c.close();
-			});
+			if (tunnel.getRelayedCount() > 0) {
+				return; // taken meanwhile
+			}
+			connections.remove(tunnel); // not to be handed out while closing
 		}
-		
+		log.debug("closing idle tunnel: {}", tunnel);
+		tunnel.close();
 	}
 	
 	private static class ConnState {
 		RelayedConnection tunneled;
-		volatile boolean error;
+		// completed with true once connected, false on error
+		CompletableFuture<Boolean> done = new CompletableFuture<>();
 		ConnState(RelayedConnection tunneled) {
 			this.tunneled = tunneled;
 		}
@@ -116,9 +130,7 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 		public void connected(TunnelClient tunnel) {
 			tunnel.attach(new TunnelInfo(System.currentTimeMillis()));
 			tunnel.tunnel(state.tunneled);
-			synchronized (tunnel) {
-				tunnel.notifyAll();
-			}
+			state.done.complete(true);
 			add(tunnel);
 			log.debug("Tunnel connection created: {}", tunnel);
 		}
@@ -126,51 +138,29 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 		@Override
 		public void connectError(TunnelClient tunnel) {
 			log.error("tunnel connect error");
-			state.error = true;
-			synchronized (tunnel) {
-				tunnel.notifyAll();
-			}
+			state.done.complete(false);
 		}
 
 		@Override
 		public void closing(TunnelClient tunnel) {
+			state.done.complete(false); // no-op if already connected
 			remove(tunnel);
 		}
 
 		@Override
 		public void channelClosed(TunnelClient tunnel, RelayedConnection tunneled) {
 			reposition(tunnel);
-			if (tunnel.getRelayedCount() == 0) {
-				TunnelInfo i = (TunnelInfo) tunnel.getAttachment();
-				i.idle = System.currentTimeMillis();
-			}
-
+			idle(tunnel);
 		}
 
 		@Override
 		public void channelAdded(TunnelClient tunnel, RelayedConnection tunneled) {
 			reposition(tunnel);
-			TunnelInfo i = (TunnelInfo) tunnel.getAttachment();
-			i.idle = Long.MAX_VALUE;
+			busy(tunnel);
 		}
 
 	}
 
-	@Override
-	public void run() {
-		while (true) {
-			synchronized (this) {
-				houseKeeping();
-			}
-			try {
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-				log.debug(e.getMessage(), e);
-			}
-		}
-	}
-
 	private synchronized void add(TunnelClient t) {
 		pendingConnections.remove(t);
 		connections.add(t);
@@ -198,7 +188,6 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 		synchronized (this) {
 			c = connections.peek();
 			if (c != null && c.getRelayedCount() < RELAY_THRESHOLD) {
-				((TunnelInfo)c.getAttachment()).idle = Long.MAX_VALUE;
 				log.debug("found idle tunnel: {}, {}", c.getChannel(), c.getRelayedCount());
 				c.tunnel((RelayedConnection)tunneled);
 				return c;
@@ -213,7 +202,6 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 					throw new SocksException("error creating tunnel", e);
 				}
 			} else {
-				((TunnelInfo)c.getAttachment()).idle = Long.MAX_VALUE;
 				log.debug("max connections reached, reusing tunnel: {}, {}", c.getChannel(), c.getRelayedCount());
 				c.tunnel((RelayedConnection)tunneled);
 				return c;
@@ -223,20 +211,19 @@ public class TunnelPoolImpl implements TunnelPool, Runnable {
 	}
 
 	private TunnelClient waitForNewTunnel(TunnelClientConnection c, ConnState st) {
+		boolean connected = false;
 		try {
-			
-			synchronized (c) {
-				for (int i = 0; i < 3 && !c.isConnected() && !st.error; i++) {
-					c.wait(5000);
-				}
-			}
-			if (!c.isConnected()) {
-				throw new SocksException("unable to create tunnel");
-			}
-			return c;
+			// parks rather than waiting on a monitor, so that a virtual thread releases its carrier meanwhile
+			connected = st.done.get(TUN_CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 			throw new SocksException(e);
+		} catch (ExecutionException | TimeoutException e) {
+			log.debug("error waiting for tunnel {}: {}", c, e.toString());
+		}
+		if (!connected) {
+			throw new SocksException("unable to create tunnel");
 		}
+		return c;
 	}
 }
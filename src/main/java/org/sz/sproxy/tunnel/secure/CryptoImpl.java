@@ -15,6 +15,8 @@
  */
 package org.sz.sproxy.tunnel.secure;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 
@@ -24,15 +26,20 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.sz.sproxy.SocksException;
+import org.sz.sproxy.impl.BufferPool;
 import org.sz.sproxy.tunnel.Crypto;
 import org.sz.sproxy.tunnel.SecretManager;
 
 /**
+ * AES-GCM {@linkplain Crypto} of a cipher per direction, confined as the interface tells, so that neither is locked.
+ * 
  * @author Sam Zheng
  *
  */
 public class CryptoImpl implements Crypto {
 
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
 	Cipher enc;
 	Cipher dec;
 	SecretKeySpec key;
@@ -49,10 +56,8 @@ public class CryptoImpl implements Crypto {
 	@Override
 	public byte[] encrypt(byte[] plain, byte[] iv) {
 		try {
-			synchronized (enc) {
-				enc.init(Cipher.ENCRYPT_MODE, key, mgr.getCipherParamSpec(iv));
-				return enc.doFinal(plain);
-			}
+			enc.init(Cipher.ENCRYPT_MODE, key, mgr.getCipherParamSpec(iv));
+			return enc.doFinal(plain);
 		} catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException
 				| InvalidAlgorithmParameterException e) {
 			throw new SocksException(e);
@@ -60,16 +65,68 @@ public class CryptoImpl implements Crypto {
 	}
 
 	@Override
-	public byte[] decrypt(byte[] encrypted, byte[] iv) {
+	public Encryption encryption(byte[] iv, int size, int headroom) {
+		ByteBuffer out;
 		try {
-			synchronized (dec) {
-				dec.init(Cipher.DECRYPT_MODE, key, mgr.getCipherParamSpec(iv));
-				return dec.doFinal(encrypted);
+			enc.init(Cipher.ENCRYPT_MODE, key, mgr.getCipherParamSpec(iv));
+			out = BufferPool.acquire(headroom + enc.getOutputSize(size));
+		} catch (GeneralSecurityException e) {
+			throw new SocksException(e);
+		}
+		out.position(headroom);
+		return new Encryption() {
+
+			@Override
+			public void update(ByteBuffer plain) {
+				try {
+					enc.update(plain, out);
+				} catch (GeneralSecurityException e) {
+					throw new SocksException(e);
+				}
 			}
+
+			@Override
+			public ByteBuffer seal() {
+				try {
+					enc.doFinal(EMPTY, out);
+				} catch (GeneralSecurityException e) {
+					release();
+					throw new SocksException(e);
+				}
+				return out.flip();
+			}
+
+			@Override
+			public void release() {
+				BufferPool.release(out);
+			}
+		};
+	}
+
+	@Override
+	public byte[] decrypt(byte[] encrypted, byte[] iv) {
+		try {
+			dec.init(Cipher.DECRYPT_MODE, key, mgr.getCipherParamSpec(iv));
+			return dec.doFinal(encrypted);
 		} catch (IllegalBlockSizeException | BadPaddingException | InvalidKeyException
 				| InvalidAlgorithmParameterException e) {
 			throw new SocksException(e);
 		}
 	}
 
+	@Override
+	public int decrypt(ByteBuffer encrypted, byte[] iv, ByteBuffer plain) {
+		try {
+			dec.init(Cipher.DECRYPT_MODE, key, mgr.getCipherParamSpec(iv));
+			return dec.doFinal(encrypted, plain);
+		} catch (GeneralSecurityException e) {
+			throw new SocksException(e);
+		}
+	}
+
+	@Override
+	public int decryptedSize(int encryptedSize) {
+		return Math.max(0, encryptedSize - SecretManagerImpl.TAG_SIZE);
+	}
+
 }
@@ -55,6 +55,8 @@ public class SecretManagerImpl implements SecretManager {
 	
 	static final int IV_SIZE = 12;
 
+	static final int TAG_SIZE = 16;
+
 	private SecureRandom random = new SecureRandom();
 
 	@Override
@@ -119,7 +121,7 @@ public class SecretManagerImpl implements SecretManager {
 		if (iv.length != IV_SIZE) {
 			throw new IllegalArgumentException("Invalid IV");
 		}
-		return new GCMParameterSpec(128, iv);
+		return new GCMParameterSpec(TAG_SIZE << 3, iv);
 	}
 	
 	@Override
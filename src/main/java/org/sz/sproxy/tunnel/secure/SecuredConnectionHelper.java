@@ -22,9 +22,11 @@ import org.sz.sproxy.Context;
 import org.sz.sproxy.Readable;
 import org.sz.sproxy.Writable;
 import org.sz.sproxy.Writable.WR;
+import org.sz.sproxy.impl.BufferPool;
 import org.sz.sproxy.impl.PacketReader;
 import org.sz.sproxy.tunnel.Crypto;
 import org.sz.sproxy.tunnel.SecretManager;
+import org.sz.sproxy.tunnel.TunnelConfiguration;
 import org.sz.sproxy.tunnel.TunnelContext;
 
 import lombok.Getter;
@@ -40,13 +42,46 @@ public class SecuredConnectionHelper implements Readable {
 	private Crypto crypto;
 	@Setter
 	private Readable channel;
-	private PacketReader reader;
+	private PacketReader reader = new PacketReader();
 	private ByteBuffer pending;
 	SecretManager secretManager;
+
+	private static final ByteBuffer[] NONE = new ByteBuffer[0];
+
+	// the record frames are coalesced into, sealed once full or by the sealer, whichever comes first
+	private final int coalesceSize;
+
+	private Runnable sealer;
+
+	private Crypto.Encryption record;
+
+	private byte[] recordIv;
+
+	private int recordSize;
 	
 	public SecuredConnectionHelper(Readable readable, Context context) {
 		this.channel = readable;
 		this.secretManager = ((TunnelContext)context).getSecretManager();
+		this.coalesceSize = ((TunnelConfiguration) context.getConfiguration()).getCoalesceSize();
+	}
+
+	/**
+	 * Sets the task, run as a record is started, that has {@linkplain #seal(Sink)} called a bit later so that frames
+	 * written meanwhile are coalesced into the record, none by default, for every frame to be sealed on its own.
+	 * 
+	 * @param sealer
+	 */
+	public void setSealer(Runnable sealer) {
+		this.sealer = sealer;
+	}
+
+	/**
+	 * Returns true if decrypted bytes are pending to be read.
+	 * 
+	 * @return see above
+	 */
+	public boolean isPending() {
+		return pending != null && pending.hasRemaining();
 	}
 
 	private int readPending(ByteBuffer buffer) {
@@ -54,6 +89,10 @@ public class SecuredConnectionHelper implements Readable {
 		buffer.put(buffer.position(), pending, pending.position(), n);
 		buffer.position(buffer.position() + n);
 		pending.position(pending.position() + n);
+		if (!pending.hasRemaining()) {
+			BufferPool.release(pending);
+			pending = null;
+		}
 		return n;
 	}
 
@@ -65,43 +104,156 @@ public class SecuredConnectionHelper implements Readable {
 		if (pending != null && pending.remaining() > 0) {
 			return readPending(buffer);
 		}
-		if (reader == null) {
-			reader = new PacketReader();
-		}
 		if (reader.read(channel)) {
 			ByteBuffer packet = reader.getPacket();
 			int i = packet.get();
 			byte[] iv = new byte[i];
 			packet.get(iv);
 			int n = packet.getInt();
-			byte[] data = new byte[n];
-			packet.get(data);
-		    byte[] buf = crypto.decrypt(data, iv);
-			pending = ByteBuffer.wrap(buf);
-			reader = null;
+			ByteBuffer data = packet.slice(packet.position(), n);
+			int size = crypto.decryptedSize(n);
+			try {
+				if (buffer.remaining() >= size) { // the whole record fits, no need to go through pending
+					return crypto.decrypt(data, iv, buffer);
+				}
+				ByteBuffer bf = BufferPool.acquire(size);
+				try {
+					crypto.decrypt(data, iv, bf);
+				} catch (RuntimeException e) {
+					BufferPool.release(bf);
+					throw e;
+				}
+				pending = bf.flip();
+			} finally {
+				reader.reset(); // releases the packet
+			}
 			return readPending(buffer);
 		}
 		return 0;
 	}
 	
-	public WR write(ByteBuffer buffer, Writable sink) throws IOException {
+	/**
+	 * Writes buffers with a gathering write.
+	 */
+	@FunctionalInterface
+	public interface Sink {
+
+		WR write(ByteBuffer[] buffers) throws IOException;
+
+	}
+
+	public WR write(ByteBuffer buffer, Sink sink) throws IOException {
+		return write(new ByteBuffer[] { buffer }, sink);
+	}
+
+	/**
+	 * Writes the given buffers as one record, encrypted straight from them into a single pooled buffer headed by the
+	 * record header, or as they are with a gathering write before the crypto is set. The buffers are owned by this
+	 * helper from then on.
+	 * 
+	 * @param buffers
+	 * @param sink
+	 * @return see {@linkplain Writable#write(ByteBuffer)}
+	 * @throws IOException
+	 */
+	public WR write(ByteBuffer[] buffers, Sink sink) throws IOException {
 		if (crypto == null) {
-			return sink.write(buffer);
+			return sink.write(buffers);
 		}
-		byte[] buf = new byte[buffer.remaining()];
-		buffer.get(buf);
+		seal(sink); // frames coalesced go first
 		byte[] iv = secretManager.getIV();
-		buf = crypto.encrypt(buf, iv);
-		int len = 4 + iv.length + 1 + buf.length;
-	    ByteBuffer bf = ByteBuffer.allocate(4 + len);
-	    bf.putInt(len);
-	    bf.put((byte)iv.length);
-	    bf.put(iv);
-	    // |--|--|--|--|-----------------------
-	    // | length    | data
-	    bf.putInt(buf.length);
-	    bf.put(buf);
-	    bf.flip();
-		return sink.write(bf);
+		ByteBuffer bf;
+		try {
+			bf = crypto.encrypt(buffers, iv, headroom(iv));
+		} finally {
+			release(buffers);
+		}
+		return sink.write(new ByteBuffer[] { header(bf, iv) });
+	}
+
+	/**
+	 * Writes a frame of the given header and payload, which is coalesced with the frames written after it into one
+	 * record if there's a sealer and the frame is small enough, see {@linkplain #write(ByteBuffer[], Sink)}.
+	 * 
+	 * @param header
+	 * @param payload
+	 * @param sink
+	 * @return see {@linkplain Writable#write(ByteBuffer)}
+	 * @throws IOException
+	 */
+	public WR writeFrame(ByteBuffer header, ByteBuffer payload, Sink sink) throws IOException {
+		int n = header.remaining() + payload.remaining();
+		if (crypto == null || sealer == null || n > coalesceSize) {
+			return write(new ByteBuffer[] { header, payload }, sink);
+		}
+		if (record != null && recordSize + n > coalesceSize) {
+			seal(sink);
+		}
+		if (record == null) {
+			recordIv = secretManager.getIV();
+			record = crypto.encryption(recordIv, coalesceSize, headroom(recordIv));
+			recordSize = 0;
+			sealer.run();
+		}
+		try {
+			record.update(header);
+			record.update(payload);
+			recordSize += n;
+		} finally {
+			BufferPool.release(header);
+			BufferPool.release(payload);
+		}
+		return sink.write(NONE); // as the buffered bytes stand
+	}
+
+	/**
+	 * Seals the record frames are coalesced into and writes it, if any.
+	 * 
+	 * @param sink
+	 * @return see {@linkplain Writable#write(ByteBuffer)}
+	 * @throws IOException
+	 */
+	public WR seal(Sink sink) throws IOException {
+		Crypto.Encryption r = record;
+		if (r == null) {
+			return WR.DONE;
+		}
+		record = null;
+		return sink.write(new ByteBuffer[] { header(r.seal(), recordIv) });
+	}
+
+	/**
+	 * Releases the pooled buffers held, i.e. the record frames are coalesced into, the decrypted bytes pending and the
+	 * packet being read, once the connection is closed with no handler in flight.
+	 */
+	public void release() {
+		if (record != null) {
+			record.release();
+			record = null;
+		}
+		BufferPool.release(pending);
+		pending = null;
+		reader.reset();
+	}
+
+	private static int headroom(byte[] iv) {
+		return 4 + 1 + iv.length + 4;
+	}
+
+	// fills the record header into the headroom
+	private static ByteBuffer header(ByteBuffer bf, byte[] iv) {
+		bf.putInt(0, bf.remaining() - 4);
+		bf.put(4, (byte) iv.length);
+		bf.put(5, iv);
+		// |--|--|--|--|-----------------------
+		// | length    | data
+		bf.putInt(5 + iv.length, bf.remaining() - headroom(iv));
+		return bf;
+	}
+
+	private static void release(ByteBuffer[] buffers) {
+		for (ByteBuffer b : buffers) {
+			BufferPool.release(b);
+		}
 	}
 }
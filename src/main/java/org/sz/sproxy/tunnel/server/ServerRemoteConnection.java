@@ -19,12 +19,15 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.BiConsumer;
 
 import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.StateManager;
 import org.sz.sproxy.Writable;
+import org.sz.sproxy.impl.AdaptiveBufferSize;
 import org.sz.sproxy.impl.NioConnection;
 import org.sz.sproxy.impl.Utils;
 import org.sz.sproxy.tunnel.Tunnel;
@@ -48,15 +51,24 @@ public class ServerRemoteConnection extends NioConnection<SocketChannel, ServerR
 
 	BiConsumer<ChannelHandler<SocketChannel>, Writable> connected;
 
+	AdaptiveBufferSize relayBufferSize;
+
 	public ServerRemoteConnection(Context context, Tunnel tunnel,
 			InetSocketAddress address, BiConsumer<ChannelHandler<SocketChannel>, Writable> connected,
 			int id) throws IOException {
-		super(context, SocketChannel.open());
+		this(context, tunnel, Collections.singletonList(address), connected, id);
+	}
+
+	public ServerRemoteConnection(Context context, Tunnel tunnel,
+			List<InetSocketAddress> addresses, BiConsumer<ChannelHandler<SocketChannel>, Writable> connected,
+			int id) throws IOException {
+		super(context, SocketChannel.open(), loopOf(tunnel)); // pinned to the loop of the tunnel
 		this.id = id;
 		this.tunnel = tunnel;
 		this.connected = connected;
-		key.interestOpsOr(SelectionKey.OP_CONNECT);
-		channel.connect(address);
+		relayBufferSize = new AdaptiveBufferSize(context.getConfiguration());
+		relayBufferSize.limit(Tunnel.MAX_DATA_SIZE);
+		connect(addresses);
 	}
 	
 	@Override
@@ -68,7 +80,7 @@ public class ServerRemoteConnection extends NioConnection<SocketChannel, ServerR
 	protected void handleConnect() throws IOException {
 		if (channel.finishConnect()) {
 			log.debug("Remote connected: {}", channel);
-			key.interestOpsAnd(~SelectionKey.OP_CONNECT);
+			transport.interestOpsAnd(~SelectionKey.OP_CONNECT);
 			connected.accept(this, tunnel);
 		} else {
 			throw new ConnectionNotFinished();
@@ -77,7 +89,7 @@ public class ServerRemoteConnection extends NioConnection<SocketChannel, ServerR
 
 	@Override
 	protected WR handleRead(int ops) throws IOException {
-		return Utils.pump(context, this, tunnel.getDataWriter(getId(), tunnel), this::close);
+		return Utils.pump(context, this, tunnel.getDataWriter(getId(), tunnel), this::close, relayBufferSize);
 	}
 
 	@Override
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.tunnel.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.sz.sproxy.impl.BufferPool;
+import org.sz.sproxy.impl.SocksUdpRelay;
+import org.sz.sproxy.tunnel.Tunnel;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The UDP association of a tunneled channel, which sends the datagrams of the client, tunneled as they are, to their
+ * destinations and returns datagrams from them through the tunnel. It's closed with the channel, or once idle for
+ * {@linkplain org.sz.sproxy.Configuration#getUdpTimeout()}, to be opened again by the next datagram.
+ * 
+ * @author Sam Zheng
+ *
+ */
+@Slf4j
+public class ServerUdpRelay extends SocksUdpRelay {
+
+	@Getter
+	private final int id;
+
+	private final TunnelServerConnection tunnel;
+
+	public ServerUdpRelay(TunnelServerConnection tunnel, int id) throws IOException {
+		super(tunnel.getContext(), loopOf(tunnel), null); // pinned to the loop of the tunnel
+		this.tunnel = tunnel;
+		this.id = id;
+	}
+
+	/**
+	 * Sends a datagram received from the tunnel, which is released once sent.
+	 * 
+	 * @param datagram
+	 */
+	public void fromTunnel(ByteBuffer datagram) {
+		if (loop.inLoop()) {
+			send(datagram);
+		} else {
+			loop.execute(() -> send(datagram));
+		}
+	}
+
+	private void send(ByteBuffer datagram) {
+		try {
+			if (!closed) {
+				long now = System.nanoTime();
+				lastActive = now;
+				fromClient(datagram, now);
+			}
+		} catch (IOException | RuntimeException e) {
+			log.debug("Error relaying a datagram of channel {}: {}", id, e.toString());
+		} finally {
+			BufferPool.release(datagram);
+		}
+	}
+
+	@Override
+	protected boolean isClient(InetSocketAddress from) {
+		return false; // the client is on the other end of the tunnel
+	}
+
+	@Override
+	protected void toClient(ByteBuffer datagram) throws IOException {
+		if (!tunnel.writeDatagram(id, datagram) && log.isTraceEnabled()) {
+			log.trace("datagram of channel {} dropped", id);
+		}
+	}
+
+	@Override
+	protected void expire() {
+		if (!closed && isIdle()) {
+			tunnel.dissociated(this);
+			close();
+			return;
+		}
+		super.expire();
+	}
+}
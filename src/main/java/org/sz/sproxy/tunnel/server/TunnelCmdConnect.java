@@ -16,26 +16,34 @@
 package org.sz.sproxy.tunnel.server;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.sz.sproxy.ChannelHandler;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.Ruleset;
 import org.sz.sproxy.SocksException;
 import org.sz.sproxy.Writable;
 import org.sz.sproxy.Writable.WR;
 import org.sz.sproxy.impl.SocksConnectCommand;
+import org.sz.sproxy.impl.Utils;
 import org.sz.sproxy.tunnel.Tunnel;
 import org.sz.sproxy.tunnel.TunnelCmd;
 import org.sz.sproxy.tunnel.TunnelPacketReader;
 import org.sz.sproxy.tunnel.TunneledConnection;
 
+import lombok.extern.slf4j.Slf4j;
+
 /**
  * @author Sam Zheng
  *
  */
+@Slf4j
 public class TunnelCmdConnect implements TunnelCmd {
 	
 	@Override
@@ -46,13 +54,49 @@ public class TunnelCmdConnect implements TunnelCmd {
 	@Override
 	public WR execute(Tunnel tunnel, TunnelPacketReader reader, Consumer<Object> onFinish, Object ctx) {
 		int channelId = reader.getChannelId();
-		TunneledConnection tunneled = tunnel.getTunneledConnection(channelId);
+		TunnelServerConnection server = (TunnelServerConnection) tunnel;
 		try {
-			InetSocketAddress addr = SocksConnectCommand.getTargetAddress(reader.getPayload());
-			TunnelServerConnection server = (TunnelServerConnection) tunnel;
-			server.connectRemote(addr, getConnectedCallback(server, onFinish, ctx), ctx);
+			InetSocketAddress addr = SocksConnectCommand.getTargetAddress(reader.getPayload(), false);
+			Ruleset rules = server.getContext().getService(Ruleset.class);
+			if (addr.isUnresolved()) {
+				Boolean allowed = rules.allows(addr.getHostString(), addr.getPort());
+				if (Boolean.FALSE.equals(allowed)) {
+					log.debug("Connecting {} not allowed for channel {}", addr, channelId);
+					server.refuse(channelId);
+					return WR.DONE;
+				}
+				// the other channels of the tunnel go on while the name is being resolved
+				server.getContext().getService(Resolver.class).resolve(addr.getHostString()).whenComplete((r, e) -> {
+					if (server.isClosing()) {
+						return;
+					}
+					try {
+						if (e != null) {
+							throw new SocksException("Unable to resolve " + addr.getHostString(), e);
+						}
+						// up to the addresses if no domain rule has decided
+						List<InetAddress> a = allowed == null ? rules.allowed(r, addr.getPort()) : r;
+						if (a.isEmpty()) {
+							log.debug("Connecting {} at {} not allowed for channel {}", addr, r, channelId);
+							server.refuse(channelId);
+							return;
+						}
+						server.connectRemote(Utils.withPort(a, addr.getPort()),
+								getConnectedCallback(server, onFinish, ctx), ctx);
+					} catch (Exception ex) {
+						log.debug("Error connecting {} for channel {}", addr, channelId, ex);
+						server.refuse(channelId);
+					}
+				});
+			} else if (!rules.allows(addr.getAddress(), addr.getPort())) {
+				log.debug("Connecting {} not allowed for channel {}", addr, channelId);
+				server.refuse(channelId);
+			} else {
+				server.connectRemote(addr, getConnectedCallback(server, onFinish, ctx), ctx);
+			}
 		} catch (IOException e) {
-			tunneled.close();
+			log.debug("Error connecting for channel {}", channelId, e);
+			server.refuse(channelId); // not a remote of the tunnel until connected
 		}
 		return WR.DONE;
 	}
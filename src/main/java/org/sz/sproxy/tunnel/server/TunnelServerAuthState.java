@@ -117,4 +117,9 @@ public class TunnelServerAuthState extends TunnelCmdState<SocketChannel, TunnelS
 	public boolean isChannelCmd() {
 		return false;
 	}
+
+	@Override
+	public boolean isBlocking() {
+		return true; // key store loading and signing
+	}
 }
@@ -31,6 +31,7 @@ import org.sz.sproxy.ChannelHandler;
 import org.sz.sproxy.Context;
 import org.sz.sproxy.StateManager;
 import org.sz.sproxy.Writable;
+import org.sz.sproxy.impl.BufferPool;
 import org.sz.sproxy.impl.NioConnection;
 import org.sz.sproxy.tunnel.Crypto;
 import org.sz.sproxy.tunnel.Tunnel;
@@ -47,26 +48,31 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class TunnelServerConnection extends NioConnection<SocketChannel, TunnelServerConnection> implements Tunnel {
 	
+	static final String MAX_IDLE_TIME = "max_idle_time";
+	
+	static final int DEF_MAX_IDLE_TIME = 5 * 60 * 1000;
+	
 	private static final AtomicInteger ID = new AtomicInteger(new Random().nextInt());
 	
 	SecuredConnectionHelper helper;
 
 	Map<Integer, TunneledConnection> remotes;
 	
-	private volatile long lastActive;
-	
-	private int maxIdle;
+	// udp associations by channel
+	Map<Integer, ServerUdpRelay> associations;
 	
 	@Getter
 	private int id;
 	
 	public TunnelServerConnection(Context context, SocketChannel channel) throws IOException {
 		super(context, channel);
-		helper = new SecuredConnectionHelper(channel::read, context);
+		helper = new SecuredConnectionHelper(this::readChannel, context);
+		if (loop != null) { // sealed after the current round of the loop, in which more frames may be written
+			helper.setSealer(() -> loop.execute(this::sealRecord));
+		}
 		remotes = new ConcurrentHashMap<>();
+		associations = new ConcurrentHashMap<>();
 		id = ID.getAndIncrement();
-		lastActive = System.currentTimeMillis();
-		maxIdle = getContext().getConfiguration().getInt("max_idle_time", 5 * 60 * 1000); // 30 sec idle
 		context.getConnectionListeners().forEach(l -> l.connectionEstablished(this));
 		moveTo(getStateManager().getInitState(), null);
 	}
@@ -82,23 +88,49 @@ public class TunnelServerConnection extends NioConnection<SocketChannel, TunnelS
 
 	@Override
 	public int read(ByteBuffer buffer) throws IOException {
-		int r = helper.read(buffer);
-		lastActive = System.currentTimeMillis();
-		return r;
+		return helper.read(buffer);
 	}
 	
-	private synchronized WR internalWrite(ByteBuffer buffer) throws IOException {
-		return super.write(buffer);
+	private synchronized WR internalWrite(ByteBuffer[] buffers) throws IOException {
+		return super.write(buffers);
 	}
 	
 	@Override
 	public synchronized WR write(ByteBuffer buffer) throws IOException {
 		if (buffer.remaining() == 0) {
+			BufferPool.release(buffer);
 			return WR.DONE;
 		}
-		WR ret = helper.write(buffer, this::internalWrite);
-		lastActive = System.currentTimeMillis();
-		return ret;
+		return helper.write(buffer, this::internalWrite);
+	}
+
+	@Override
+	public synchronized WR writeFrame(ByteBuffer header, ByteBuffer payload) throws IOException {
+		return helper.writeFrame(header, payload, this::internalWrite);
+	}
+
+	private synchronized void sealRecord() {
+		try {
+			helper.seal(this::internalWrite);
+		} catch (IOException | RuntimeException e) {
+			log.debug("Error writing to tunnel {}", getChannel(), e);
+			close();
+		}
+	}
+
+	@Override
+	public boolean isReadPending() {
+		return helper.isPending();
+	}
+	
+	@Override
+	protected long getIdleTimeout() {
+		return context.getConfiguration().getInt(MAX_IDLE_TIME, DEF_MAX_IDLE_TIME);
+	}
+	
+	@Override
+	protected boolean isIdle() {
+		return remotes.isEmpty() && associations.isEmpty(); // quiet tunneled connections are left to their own ends
 	}
 	
 	@Override
@@ -110,7 +142,16 @@ public class TunnelServerConnection extends NioConnection<SocketChannel, TunnelS
 		log.debug("remote connected: {}", remote.getId());
 		remotes.put(remote.getId(), remote);
 		addWN(remote);
-		getWriter(remote, CONNECTRP, this::write).write(ByteBuffer.wrap(new byte[0]));
+		getWriter(remote, CONNECTRP, this).write(ByteBuffer.wrap(new byte[0]));
+	}
+	
+	/**
+	 * Closes a channel which has not connected, e.g. as its destination is not allowed.
+	 * 
+	 * @param id
+	 */
+	void refuse(int id) {
+		Tunnel.super.closeChannel(id);
 	}
 	
 	@Override
@@ -132,6 +173,43 @@ public class TunnelServerConnection extends NioConnection<SocketChannel, TunnelS
 		}
 	}
 	
+	/**
+	 * Returns the udp association of the given channel, opened if there's none, only called by the reader of the
+	 * tunnel.
+	 * 
+	 * @param id
+	 * @return see above
+	 * @throws IOException
+	 */
+	ServerUdpRelay associate(int id) throws IOException {
+		ServerUdpRelay relay = associations.get(id);
+		if (relay == null) {
+			log.debug("udp association opened, id: {}", id);
+			relay = new ServerUdpRelay(this, id);
+			relay.open();
+			associations.put(id, relay);
+			if (isClosing()) { // closed meanwhile
+				dissociate(id);
+			}
+		}
+		return relay;
+	}
+	
+	void dissociated(ServerUdpRelay relay) {
+		associations.remove(relay.getId(), relay);
+	}
+	
+	@Override
+	public boolean dissociate(int id) {
+		ServerUdpRelay relay = associations.remove(id);
+		if (relay == null) {
+			return false;
+		}
+		log.debug("udp association closed, id: {}", id);
+		relay.close();
+		return true;
+	}
+	
 	@Override
 	public void close() {
 		context.getConnectionListeners().forEach(l -> l.connectionClosing(this));
@@ -150,20 +228,25 @@ public class TunnelServerConnection extends NioConnection<SocketChannel, TunnelS
 		new ServerRemoteConnection(context, this, address, connected, channelId);
 	}
 
+	public void connectRemote(List<InetSocketAddress> addresses,
+			BiConsumer<ChannelHandler<SocketChannel>, Writable> connected, Object ctx) throws IOException {
+		int channelId = (int) ctx;
+		log.debug("connecting remote, id: {}, addresses: {}", channelId, addresses);
+		new ServerRemoteConnection(context, this, addresses, connected, channelId);
+	}
+
 	@Override
 	public void closeInternal() {
 		log.info("closing tunnel server connection");
 		List<TunneledConnection> list = new ArrayList<>(remotes.values());
 		remotes.clear();
 		list.forEach(TunneledConnection::close);
+		List<ServerUdpRelay> relays = new ArrayList<>(associations.values());
+		associations.clear();
+		relays.forEach(ServerUdpRelay::close);
+		synchronized (this) {
+			helper.release();
+		}
 		log.info("tunnel server connection closed");
 	}
-
-	boolean isAlive() {
-		long t = System.currentTimeMillis();
-//		log.debug("checking liveness, last active: {}, now: {}", new Date(lastActive), new Date(t));
-		boolean r = t - lastActive <= maxIdle;
-//		log.debug("still active: {}", r);
-		return r;
-	}
 }
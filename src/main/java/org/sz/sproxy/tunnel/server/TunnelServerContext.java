@@ -56,26 +56,6 @@ public class TunnelServerContext extends ContextImpl implements TunnelContext {
 		keyManager = new KeyManagerImpl(config);
 		authManager = new AuthManagerImpl(keyManager);
 		secretManager = new SecretManagerImpl();
-		Thread watcher = new Thread(() -> {
-			while (true) {
-				try {
-					log.debug("tunnel connections: {}", connections.size());
-//					int[] removed = new int[] {0};
-//					connections.values().stream().filter(Predicate.not(TunnelServerConnection::isAlive)).forEach(c -> {
-//						c.close();
-//						removed[0]++;
-//					});
-//					log.debug("idle connections removed: {}", removed);
-					Thread.sleep(10000);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					log.debug("tunnel server watcher interrupted", e);
-				}
-			}
-		});
-		watcher.setDaemon(true);
-		watcher.setName("tunnel_conn_watcher");
-		watcher.start();
 	}
 	
 	@Override
@@ -55,6 +55,11 @@ public class TunnelServerKAState extends TunnelCmdState<SocketChannel, TunnelSer
 		return false;
 	}
 
+	@Override
+	public boolean isBlocking() {
+		return true; // key agreement
+	}
+
 	@Override
 	public WR execute(Tunnel tunnel, TunnelPacketReader reader, Consumer<Object> onFinish, Object ctx) {
 		try {
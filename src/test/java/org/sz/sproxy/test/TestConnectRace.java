@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Context;
+import org.sz.sproxy.StateManager;
+import org.sz.sproxy.impl.ContextImpl;
+import org.sz.sproxy.impl.NioConnection;
+import org.sz.sproxy.impl.PropertiesConfiguration;
+import org.sz.sproxy.impl.SelectorLoopGroup;
+
+/**
+ * Races connecting to addresses on the loopback, one of which never answers as its backlog is full.
+ */
+public class TestConnectRace {
+
+	static ServerSocketChannel live;
+
+	static ServerSocketChannel full;
+
+	static List<SocketChannel> backlog = new ArrayList<>();
+
+	static SocketAddress closed;
+
+	static SocketAddress closed2;
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		InetAddress lo = InetAddress.getLoopbackAddress();
+		live = ServerSocketChannel.open().bind(new InetSocketAddress(lo, 0));
+		full = ServerSocketChannel.open().bind(new InetSocketAddress(lo, 0), 1);
+		for (int i = 0; i < 8; i++) { // never accepted
+			SocketChannel c = SocketChannel.open();
+			c.configureBlocking(false);
+			c.connect(full.getLocalAddress());
+			backlog.add(c);
+		}
+		closed = unbound();
+		closed2 = unbound();
+	}
+
+	@AfterAll
+	public static void tearDown() throws IOException {
+		for (SocketChannel c : backlog) {
+			c.close();
+		}
+		live.close();
+		full.close();
+	}
+
+	@Test
+	public void testSlowFirst() throws Exception {
+		Probe p = new Probe(context(100), full.getLocalAddress(), live.getLocalAddress());
+		Assertions.assertEquals(live.getLocalAddress(), p.connected.get(3, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testFailedFirst() throws Exception {
+		// the next address is connected to right away rather than after the delay
+		Probe p = new Probe(context(60000), closed, live.getLocalAddress());
+		Assertions.assertEquals(live.getLocalAddress(), p.connected.get(3, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testAllFailed() throws Exception {
+		CompletableFuture<SocketAddress> f;
+		try {
+			f = new Probe(context(100), closed, closed2).connected;
+		} catch (IOException e) {
+			return; // failed right away
+		}
+		Assertions.assertThrows(ExecutionException.class, () -> f.get(3, TimeUnit.SECONDS));
+	}
+
+	private static SocketAddress unbound() throws IOException {
+		try (ServerSocketChannel s = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+			return s.getLocalAddress();
+		}
+	}
+
+	private static Context context(int delay) {
+		Properties props = new Properties();
+		props.setProperty(Configuration.CONNECT_ATTEMPT_DELAY, String.valueOf(delay));
+		props.setProperty(Configuration.CONNECT_TIMEOUT, "5000");
+		ContextImpl context = new ContextImpl(null, new PropertiesConfiguration(props));
+		context.getService(SelectorLoopGroup.class).start();
+		return context;
+	}
+
+	static class Probe extends NioConnection<SocketChannel, Probe> {
+
+		CompletableFuture<SocketAddress> connected = new CompletableFuture<>();
+
+		Probe(Context context, SocketAddress... addresses) throws IOException {
+			super(context, SocketChannel.open());
+			connect(Arrays.asList(addresses));
+		}
+
+		@Override
+		protected StateManager createStateManager() {
+			return null;
+		}
+
+		@Override
+		protected void handleConnect() throws IOException {
+			if (channel.finishConnect()) {
+				connected.complete(channel.getRemoteAddress());
+			}
+		}
+
+		@Override
+		protected void closeInternal() throws IOException {
+			connected.completeExceptionally(new IOException("closed"));
+		}
+
+	}
+
+}
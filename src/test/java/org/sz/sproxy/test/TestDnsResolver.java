@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Resolver;
+import org.sz.sproxy.impl.CachingResolver;
+import org.sz.sproxy.impl.ContextImpl;
+import org.sz.sproxy.impl.PropertiesConfiguration;
+
+/**
+ * Resolves names against a stub dns server on the loopback.
+ */
+public class TestDnsResolver {
+
+	static final int A = 1;
+
+	static final int AAAA = 28;
+
+	static final int CNAME = 5;
+
+	static DatagramSocket stub;
+
+	static Map<String, AtomicInteger> queries = new ConcurrentHashMap<>();
+
+	static Resolver resolver;
+
+	// a small cache with short ttls
+	static CachingResolver cache;
+
+	@BeforeAll
+	public static void setup() throws Exception {
+		stub = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread t = new Thread(TestDnsResolver::serve);
+		t.setDaemon(true);
+		t.start();
+		Properties props = new Properties();
+		props.setProperty(Configuration.DNS_SERVERS, "127.0.0.1:" + stub.getLocalPort());
+		props.setProperty(Configuration.DNS_TIMEOUT, "200");
+		props.setProperty(Configuration.DNS_ATTEMPTS, "2");
+		props.setProperty(Configuration.DNS_CACHE_SIZE, "0");
+		resolver = new ContextImpl(null, new PropertiesConfiguration(props)).getService(Resolver.class);
+		props.setProperty(Configuration.DNS_CACHE_SIZE, "8");
+		props.setProperty(Configuration.DNS_CACHE_MIN_TTL, "1");
+		props.setProperty(Configuration.DNS_CACHE_MAX_TTL, "1");
+		props.setProperty(Configuration.DNS_CACHE_NEGATIVE_TTL, "1");
+		cache = (CachingResolver) new ContextImpl(null, new PropertiesConfiguration(props)).getService(Resolver.class);
+	}
+
+	@AfterAll
+	public static void tearDown() {
+		stub.close();
+	}
+
+	@Test
+	public void testBothFamilies() throws Exception {
+		List<InetAddress> r = resolve("host.test");
+		Assertions.assertEquals(Arrays.asList(InetAddress.getByName("10.0.0.1"), InetAddress.getByName("fd00::1")), r);
+	}
+
+	@Test
+	public void testRetry() throws Exception {
+		Assertions.assertEquals(Arrays.asList(InetAddress.getByName("10.0.0.2")), resolve("slow.test"));
+		Assertions.assertEquals(2, queries.get("slow.test/" + A).get());
+	}
+
+	@Test
+	public void testUnknownHost() {
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> resolve("missing.test"));
+		Assertions.assertTrue(e.getCause() instanceof UnknownHostException, e.toString());
+	}
+
+	@Test
+	public void testInFlightShared() throws Exception {
+		CompletableFuture<List<InetAddress>> f1 = resolver.resolve("shared.test");
+		CompletableFuture<List<InetAddress>> f2 = resolver.resolve("Shared.Test");
+		Assertions.assertEquals(f1.get(5, TimeUnit.SECONDS), f2.get(5, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, queries.get("shared.test/" + A).get());
+	}
+
+	@Test
+	public void testNoQuery() throws Exception {
+		Assertions.assertEquals(Arrays.asList(InetAddress.getByName("192.0.2.1")), resolve("192.0.2.1"));
+		Assertions.assertEquals(Arrays.asList(InetAddress.getByName("::1")), resolve("::1"));
+		Assertions.assertTrue(resolve("localhost").get(0).isLoopbackAddress());
+		Assertions.assertFalse(queries.keySet().stream().anyMatch(k -> k.startsWith("localhost")));
+	}
+
+	@Test
+	public void testCacheHit() throws Exception {
+		long hits = cache.getHits();
+		Assertions.assertEquals(resolve(cache, "hit.ok.test"), resolve(cache, "Hit.Ok.Test."));
+		Assertions.assertEquals(1, queries.get("hit.ok.test/" + A).get());
+		Assertions.assertEquals(hits + 1, cache.getHits());
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> resolve(cache, "gone.test"));
+			Assertions.assertTrue(e.getCause() instanceof UnknownHostException, e.toString());
+		}
+		Assertions.assertEquals(1, queries.get("gone.test/" + A).get());
+		Thread.sleep(1200); // expired
+		Assertions.assertThrows(ExecutionException.class, () -> resolve(cache, "gone.test"));
+		Assertions.assertEquals(2, queries.get("gone.test/" + A).get());
+	}
+
+	@Test
+	public void testRefreshAhead() throws Exception {
+		long refreshes = cache.getRefreshes();
+		resolve(cache, "hot.ok.test");
+		resolve(cache, "cold.ok.test");
+		Thread.sleep(500);
+		resolve(cache, "hot.ok.test"); // in use
+		Thread.sleep(1000); // past the first ttl, refreshed before
+		long misses = cache.getMisses();
+		resolve(cache, "hot.ok.test");
+		resolve(cache, "cold.ok.test");
+		Assertions.assertEquals(misses + 1, cache.getMisses()); // only the cold one
+		Assertions.assertTrue(cache.getRefreshes() > refreshes, cache.toString());
+		Assertions.assertEquals(2, queries.get("hot.ok.test/" + A).get());
+		Assertions.assertEquals(2, queries.get("cold.ok.test/" + A).get());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		long evictions = cache.getEvictions();
+		for (int i = 0; i < 10; i++) {
+			resolve(cache, "e" + i + ".ok.test");
+		}
+		Assertions.assertTrue(cache.size() <= 8, cache.toString());
+		Assertions.assertTrue(cache.getEvictions() >= evictions + 2, cache.toString());
+	}
+
+	private static List<InetAddress> resolve(String name) throws Exception {
+		return resolve(resolver, name);
+	}
+
+	private static List<InetAddress> resolve(Resolver resolver, String name) throws Exception {
+		return resolver.resolve(name).get(5, TimeUnit.SECONDS);
+	}
+
+	private static void serve() {
+		byte[] b = new byte[512];
+		while (!stub.isClosed()) {
+			try {
+				DatagramPacket p = new DatagramPacket(b, b.length);
+				stub.receive(p);
+				ByteBuffer q = ByteBuffer.wrap(Arrays.copyOf(p.getData(), p.getLength()));
+				int id = q.getShort() & 0xFFFF;
+				q.position(12);
+				StringBuilder name = new StringBuilder();
+				for (int len; (len = q.get()) != 0;) {
+					byte[] l = new byte[len];
+					q.get(l);
+					name.append(name.length() > 0 ? "." : "").append(new String(l, "US-ASCII"));
+				}
+				int type = q.getShort() & 0xFFFF;
+				String n = name.toString();
+				int count = queries.computeIfAbsent(n + "/" + type, k -> new AtomicInteger()).incrementAndGet();
+				byte[] answer = answer(id, n, type, count);
+				if (answer != null) {
+					DatagramPacket r = new DatagramPacket(answer, answer.length, p.getSocketAddress());
+					if (n.equals("shared.test")) { // held back until the second lookup is made
+						new Thread(() -> {
+							try {
+								Thread.sleep(100); // within the dns timeout
+								stub.send(r);
+							} catch (Exception e) {
+								// test over
+							}
+						}).start();
+					} else {
+						stub.send(r);
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	private static byte[] answer(int id, String name, int type, int count) throws IOException {
+		byte[] addr = null;
+		int rcode = 0;
+		boolean alias = false;
+		switch (name) {
+		case "host.test":
+			addr = InetAddress.getByName(type == A ? "10.0.0.1" : "fd00::1").getAddress();
+			alias = true;
+			break;
+		case "slow.test":
+			if (count == 1) {
+				return null; // dropped
+			}
+			addr = type == A ? InetAddress.getByName("10.0.0.2").getAddress() : null;
+			break;
+		case "shared.test":
+			addr = type == A ? InetAddress.getByName("10.0.0.3").getAddress() : null;
+			break;
+		default:
+			if (name.endsWith(".ok.test")) {
+				addr = type == A ? InetAddress.getByName("10.0.0.4").getAddress() : null;
+				break;
+			}
+			rcode = 3; // NXDOMAIN
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeShort(id);
+		out.writeShort(0x8180 | rcode);
+		out.writeShort(1);
+		out.writeShort(addr == null ? 0 : alias ? 2 : 1);
+		out.writeShort(0);
+		out.writeShort(0);
+		writeName(out, name);
+		out.writeShort(type);
+		out.writeShort(1);
+		int owner = 0xC00C; // the question name
+		if (addr != null && alias) {
+			out.writeShort(owner);
+			out.writeShort(CNAME);
+			out.writeShort(1);
+			out.writeInt(60);
+			out.writeShort(name.length() + 8);
+			owner = 0xC000 | out.size(); // the alias
+			writeName(out, "alias." + name);
+		}
+		if (addr != null) {
+			out.writeShort(owner);
+			out.writeShort(type);
+			out.writeShort(1);
+			out.writeInt(60);
+			out.writeShort(addr.length);
+			out.write(addr);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		for (String l : name.split("\\.")) {
+			out.writeByte(l.length());
+			out.writeBytes(l);
+		}
+		out.writeByte(0);
+	}
+
+}
@@ -1,18 +1,30 @@
 package org.sz.sproxy.test;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.sz.sproxy.Configuration;
 import org.sz.sproxy.start.Launcher;
+import org.sz.sproxy.tunnel.client.TunnelClientConfiguration;
 
 public class TestProxy {
 	
@@ -20,6 +32,10 @@ public class TestProxy {
 	
 	static int cp;
 	
+	static int dp;
+	
+	static int fp;
+	
 	static int serverPort;
 	
 	private static int getAvailablePort() throws IOException {
@@ -36,17 +52,24 @@ public class TestProxy {
 			while (true) {
 				try {
 					Socket s = ss.accept();
-					BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
-					String l = r.readLine() + "\n";
-					s.getOutputStream().write(l.getBytes(StandardCharsets.UTF_8));
-					s.close();
-					ss.close();
-					break;
+					new Thread(() -> {
+						try (s) {
+							BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+							String l = r.readLine() + "\n";
+							s.getOutputStream().write(l.getBytes(StandardCharsets.UTF_8));
+							while (r.read() != -1) {
+								// closed by the client, not to race the reply in flight
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}).start();
 				} catch (IOException e) {
 					throw new RuntimeException(e);
 				}
 			}
 		});
+		t.setDaemon(true);
 		t.start();
 	}
 	
@@ -56,12 +79,26 @@ public class TestProxy {
 		// generate keys
 		sp = getAvailablePort();
 		cp = getAvailablePort();
+		dp = getAvailablePort();
+		fp = getAvailablePort();
+		Path rules = Files.createTempFile("rules", ".txt");
+		rules.toFile().deleteOnExit();
+		Files.write(rules, "deny blocked.example\ndeny 127.0.0.3\n".getBytes(StandardCharsets.UTF_8));
+		System.setProperty(Configuration.RULES_FILE, rules.toString());
+		Path routes = Files.createTempFile("routes", ".txt");
+		routes.toFile().deleteOnExit();
+		Files.write(routes, "direct 127.0.0.2\n".getBytes(StandardCharsets.UTF_8));
+		System.setProperty(TunnelClientConfiguration.TUNNEL_CLIENT_ROUTES, routes.toString());
 		Launcher.main(new String[] {"genKey"});
 		new Thread(() -> {
 			Launcher.main(new String[] {"server", "-6", "-h", "::1", "-p", String.valueOf(sp)});
 		}).start();
 		new Thread(() -> {
-			Launcher.main(new String[] {"client", "-h", "localhost", "-p", String.valueOf(cp), "-H", "::1", "-P", String.valueOf(sp)});
+			Launcher.main(new String[] {"client", "-h", "localhost", "-p", String.valueOf(cp), "-H", "::1", "-P", String.valueOf(sp),
+					"-L", fp + ":localhost:" + serverPort});
+		}).start();
+		new Thread(() -> {
+			Launcher.main(new String[] {"standalone", "-h", "localhost", "-p", String.valueOf(dp)});
 		}).start();
 		
 		Thread.sleep(2000); // wait a bit while servers are starting.
@@ -80,4 +117,250 @@ public class TestProxy {
 		s.close();
 	}
 	
+	@Test
+	public void testDirectRoute() throws IOException {
+		Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("localhost", cp));
+		try (Socket s = new Socket(proxy)) {
+			s.connect(new InetSocketAddress("127.0.0.2", serverPort)); // bypassing the tunnel
+			s.getOutputStream().write("direct\n".getBytes(StandardCharsets.UTF_8));
+			BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			Assertions.assertEquals("direct", r.readLine());
+		}
+	}
+	
+	@Test
+	public void testForward() throws IOException {
+		for (int i = 0; i < 2; i++) {
+			try (Socket s = new Socket("localhost", fp)) {
+				s.getOutputStream().write("forwarded\n".getBytes(StandardCharsets.UTF_8));
+				BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+				Assertions.assertEquals("forwarded", r.readLine());
+			}
+		}
+	}
+	
+	@Test
+	public void testLargePayload() throws IOException {
+		// many frames each way, some larger than the records
+		char[] c = new char[1 << 20];
+		for (int i = 0; i < c.length; i++) {
+			c[i] = (char) ('a' + i % 26);
+		}
+		String line = new String(c);
+		for (int port : new int[] { cp, dp }) {
+			Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("localhost", port));
+			try (Socket s = new Socket(proxy)) {
+				s.connect(new InetSocketAddress("localhost", serverPort));
+				s.getOutputStream().write((line + "\n").getBytes(StandardCharsets.UTF_8));
+				BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+				Assertions.assertEquals(line, r.readLine());
+			}
+		}
+	}
+	
+	@Test
+	public void testManyChannels() throws IOException {
+		// small frames of many channels, coalesced into records
+		Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("localhost", cp));
+		Socket[] sockets = new Socket[8];
+		try {
+			for (int i = 0; i < sockets.length; i++) {
+				sockets[i] = new Socket(proxy);
+				sockets[i].connect(new InetSocketAddress("localhost", serverPort));
+			}
+			for (int i = 0; i < sockets.length; i++) {
+				sockets[i].getOutputStream().write(("line " + i + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			for (int i = 0; i < sockets.length; i++) {
+				BufferedReader r = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+				Assertions.assertEquals("line " + i, r.readLine());
+			}
+		} finally {
+			for (Socket s : sockets) {
+				if (s != null) {
+					s.close();
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testPipelined() throws IOException {
+		for (int port : new int[] { cp, dp }) {
+			try (Socket s = new Socket("localhost", port)) {
+				// greeting, request and early data in one go
+				s.getOutputStream().write(handshake("pipelined"));
+				Assertions.assertEquals("pipelined", readReply(s));
+			}
+		}
+	}
+	
+	@Test
+	public void testFragmented() throws IOException {
+		for (int port : new int[] { cp, dp }) {
+			try (Socket s = new Socket("localhost", port)) {
+				s.setTcpNoDelay(true);
+				OutputStream out = s.getOutputStream();
+				for (byte b : handshake("fragmented")) {
+					out.write(b);
+					out.flush();
+				}
+				Assertions.assertEquals("fragmented", readReply(s));
+			}
+		}
+	}
+	
+	@Test
+	public void testHttpConnect() throws IOException {
+		for (int port : new int[] { cp, dp }) {
+			try (Socket s = new Socket("localhost", port)) {
+				// early data right after the header
+				s.getOutputStream().write(("CONNECT localhost:" + serverPort + " HTTP/1.1\r\nHost: localhost:"
+						+ serverPort + "\r\nUser-Agent: test\r\n\r\nhttp\n").getBytes(StandardCharsets.UTF_8));
+				BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				Assertions.assertTrue(r.readLine().startsWith("HTTP/1.1 200 "));
+				Assertions.assertEquals("", r.readLine());
+				Assertions.assertEquals("http", r.readLine());
+			}
+			try (Socket s = new Socket("localhost", port)) {
+				s.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+				BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+				Assertions.assertTrue(r.readLine().startsWith("HTTP/1.1 405 "));
+			}
+		}
+	}
+	
+	@Test
+	public void testNotAllowed() throws IOException {
+		byte[] host = "blocked.example".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[] { 5, 1, 0, 5, 1, 0, 3, (byte) host.length });
+		b.write(host);
+		b.write(new byte[] { 0, 80 });
+		try (Socket s = new Socket("localhost", dp)) {
+			s.getOutputStream().write(b.toByteArray());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			in.skipNBytes(2);
+			Assertions.assertEquals(5, in.readByte());
+			Assertions.assertEquals(2, in.readByte()); // not allowed by ruleset
+		}
+		try (Socket s = new Socket("localhost", dp)) {
+			s.getOutputStream().write("CONNECT blocked.example:443 HTTP/1.1\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+			BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			Assertions.assertTrue(r.readLine().startsWith("HTTP/1.1 403 "));
+		}
+		try (Socket s = new Socket("localhost", cp)) {
+			// refused by the tunnel server, which closes the channel
+			s.setSoTimeout(5000);
+			s.getOutputStream().write(b.toByteArray());
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			in.skipNBytes(2);
+			Assertions.assertEquals(-1, in.read());
+		}
+	}
+	
+	@Test
+	public void testUdpAssociate() throws IOException {
+		try (DatagramSocket echo = echo(InetAddress.getLoopbackAddress())) {
+			for (int port : new int[] { dp, cp }) {
+				udpAssociate(port, null, echo.getLocalPort());
+			}
+		}
+	}
+	
+	@Test
+	public void testUdpNotAllowed() throws IOException {
+		try (DatagramSocket echo = echo(InetAddress.getLoopbackAddress());
+				DatagramSocket blocked = echo(InetAddress.getByName("127.0.0.3"))) {
+			for (int port : new int[] { dp, cp }) {
+				udpAssociate(port, (InetSocketAddress) blocked.getLocalSocketAddress(), echo.getLocalPort());
+			}
+		}
+	}
+	
+	private static DatagramSocket echo(InetAddress address) throws IOException {
+		DatagramSocket echo = new DatagramSocket(0, address);
+		Thread t = new Thread(() -> {
+			DatagramPacket p = new DatagramPacket(new byte[512], 512);
+			try {
+				while (true) {
+					echo.receive(p);
+					echo.send(p);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+		return echo;
+	}
+	
+	// sends to the echo port of the loopback address, after a datagram to the denied destination, if any, is dropped
+	private static void udpAssociate(int port, InetSocketAddress denied, int echoPort) throws IOException {
+		try (DatagramSocket u = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+				Socket s = new Socket("localhost", port)) {
+			s.getOutputStream().write(new byte[] { 5, 1, 0, 5, 3, 0, 1, 0, 0, 0, 0, 0, 0 });
+			DataInputStream in = new DataInputStream(s.getInputStream());
+			in.skipNBytes(2);
+			Assertions.assertEquals(5, in.readByte());
+			Assertions.assertEquals(0, in.readByte());
+			in.readByte(); // RSV
+			Assertions.assertEquals(1, in.readByte());
+			byte[] a = new byte[4];
+			in.readFully(a);
+			InetSocketAddress relay = new InetSocketAddress(InetAddress.getByAddress(a), in.readUnsignedShort());
+			if (denied != null) {
+				ByteArrayOutputStream b = new ByteArrayOutputStream();
+				b.write(new byte[] { 0, 0, 0, 1 });
+				b.write(denied.getAddress().getAddress());
+				b.write(new byte[] { (byte) (denied.getPort() >> 8), (byte) denied.getPort() });
+				b.write("denied".getBytes(StandardCharsets.UTF_8));
+				byte[] d = b.toByteArray();
+				u.send(new DatagramPacket(d, d.length, relay));
+				u.setSoTimeout(1000);
+				Assertions.assertThrows(SocketTimeoutException.class,
+						() -> u.receive(new DatagramPacket(new byte[512], 512)));
+			}
+			u.setSoTimeout(3000);
+			for (int i = 0; i < 3; i++) {
+				String msg = "datagram " + i;
+				ByteArrayOutputStream b = new ByteArrayOutputStream();
+				b.write(new byte[] { 0, 0, 0, 1 });
+				b.write(InetAddress.getLoopbackAddress().getAddress());
+				b.write(new byte[] { (byte) (echoPort >> 8), (byte) echoPort });
+				b.write(msg.getBytes(StandardCharsets.UTF_8));
+				byte[] d = b.toByteArray();
+				u.send(new DatagramPacket(d, d.length, relay));
+				DatagramPacket p = new DatagramPacket(new byte[512], 512);
+				u.receive(p);
+				// returned with the same header, the source being the destination sent to
+				Assertions.assertArrayEquals(d, Arrays.copyOf(p.getData(), p.getLength()));
+			}
+		}
+	}
+	
+	private static byte[] handshake(String line) throws IOException {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(new byte[] { 5, 1, 0 }); // no auth
+		byte[] host = "localhost".getBytes(StandardCharsets.UTF_8);
+		b.write(new byte[] { 5, 1, 0, 3, (byte) host.length });
+		b.write(host);
+		b.write(new byte[] { (byte) (serverPort >> 8), (byte) serverPort });
+		b.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+		return b.toByteArray();
+	}
+	
+	// skips the greeting and request replies
+	private static String readReply(Socket s) throws IOException {
+		DataInputStream in = new DataInputStream(s.getInputStream());
+		Assertions.assertEquals(5, in.readByte());
+		Assertions.assertEquals(0, in.readByte());
+		Assertions.assertEquals(5, in.readByte());
+		Assertions.assertEquals(0, in.readByte());
+		in.readByte(); // RSV
+		in.skipNBytes(in.readByte() == 1 ? 6 : 18);
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).readLine();
+	}
+	
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2022 Sam Zheng                                            
+ *                                                                         
+ * Licensed under the Apache License, Version 2.0 (the "License");         
+ * you may not use this file except in compliance with the License.        
+ * You may obtain a copy of the License at                                 
+ *                                                                         
+ *     http://www.apache.org/licenses/LICENSE-2.0                          
+ *                                                                         
+ * Unless required by applicable law or agreed to in writing, software     
+ * distributed under the License is distributed on an "AS IS" BASIS,       
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and     
+ * limitations under the License.                                          
+ */
+package org.sz.sproxy.test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.sz.sproxy.Configuration;
+import org.sz.sproxy.Ruleset;
+import org.sz.sproxy.impl.CompiledRuleset;
+import org.sz.sproxy.impl.ContextImpl;
+import org.sz.sproxy.impl.FileRuleset;
+import org.sz.sproxy.impl.PropertiesConfiguration;
+import org.sz.sproxy.relay.SocksRelayRoutes;
+import org.sz.sproxy.relay.SocksRelayRoutes.Route;
+import org.sz.sproxy.tunnel.client.TunnelClientConfiguration;
+
+/**
+ * Evaluates destinations against compiled rules.
+ */
+public class TestRuleset {
+
+	private static CompiledRuleset compile(String... lines) {
+		return CompiledRuleset.compile(Arrays.asList(lines));
+	}
+
+	private static InetAddress ip(String a) throws IOException {
+		return InetAddress.getByName(a);
+	}
+
+	@Test
+	public void testAddresses() throws IOException {
+		CompiledRuleset r = compile("# comment", "default deny", "allow 10.0.0.0/8", "deny 10.1.0.0/16",
+				"allow 10.1.2.3 22 # ssh only", "allow 2001:db8::/32 443,8000-8999");
+		Assertions.assertEquals(4, r.size());
+		Assertions.assertTrue(r.allows(ip("10.9.9.9"), 80));
+		Assertions.assertFalse(r.allows(ip("10.1.9.9"), 80)); // the most specific wins
+		Assertions.assertTrue(r.allows(ip("10.1.2.3"), 22));
+		Assertions.assertFalse(r.allows(ip("10.1.2.3"), 80)); // the port decides, then the less specific
+		Assertions.assertFalse(r.allows(ip("192.168.0.1"), 80)); // by default
+		Assertions.assertTrue(r.allows(ip("2001:db8::1"), 443));
+		Assertions.assertTrue(r.allows(ip("2001:db8::1"), 8080));
+		Assertions.assertFalse(r.allows(ip("2001:db8::1"), 80));
+		Assertions.assertFalse(r.allows(ip("2001:db9::1"), 443));
+	}
+
+	@Test
+	public void testDomains() {
+		CompiledRuleset r = compile("deny example.com", "allow www.example.com 443", "deny *.ads.example.org",
+				"allow Example.NET.");
+		Assertions.assertEquals(Boolean.FALSE, r.allows("example.com", 80));
+		Assertions.assertEquals(Boolean.FALSE, r.allows("mail.example.com", 80));
+		Assertions.assertEquals(Boolean.TRUE, r.allows("www.example.com", 443));
+		Assertions.assertEquals(Boolean.TRUE, r.allows("a.www.EXAMPLE.com.", 443));
+		Assertions.assertEquals(Boolean.FALSE, r.allows("www.example.com", 80));
+		Assertions.assertEquals(Boolean.FALSE, r.allows("x.ads.example.org", 80));
+		Assertions.assertEquals(Boolean.FALSE, r.allows("ads.example.org", 80));
+		Assertions.assertNull(r.allows("example.org", 80)); // up to its addresses
+		Assertions.assertNull(r.allows("notexample.com", 80));
+		Assertions.assertEquals(Boolean.TRUE, r.allows("example.net", 80));
+		Assertions.assertEquals(Boolean.FALSE, compile("deny *").allows("anything", 1));
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String rule : new String[] { "permit 10.0.0.0/8", "allow 10.0.0.0/33", "allow 10.0.0.1 70000",
+				"allow example.com 90-80", "allow a..b", "default maybe", "allow" }) {
+			Assertions.assertThrows(IllegalArgumentException.class, () -> compile(rule), rule);
+		}
+	}
+
+	@Test
+	public void testManyRules() throws IOException {
+		String[] lines = new String[100000];
+		for (int i = 0; i < lines.length; i++) {
+			lines[i] = (i % 2 == 0 ? "deny " : "allow ") + (10 + (i >> 16)) + "." + ((i >> 8) & 0xFF) + "."
+					+ (i & 0xFF) + ".0/24";
+		}
+		CompiledRuleset r = compile(lines);
+		Assertions.assertFalse(r.allows(ip("10.0.2.7"), 80));
+		Assertions.assertTrue(r.allows(ip("10.0.3.7"), 80));
+		Assertions.assertTrue(r.allows(ip("11.134.159.1"), 80));
+		Assertions.assertTrue(r.allows(ip("12.0.0.1"), 80));
+	}
+
+	@Test
+	public void testRoutes() throws IOException {
+		Path file = Files.createTempFile("routes", ".txt");
+		try {
+			Files.write(file, "direct 192.168.0.0/16\ndirect corp.example 22,443\ntunnel vpn.corp.example\n"
+					.getBytes(StandardCharsets.UTF_8));
+			TunnelClientConfiguration config = new TunnelClientConfiguration();
+			config.set(TunnelClientConfiguration.TUNNEL_CLIENT_ROUTES, file.toString());
+			config.set(Configuration.RULES_RELOAD, "0");
+			SocksRelayRoutes routes = new SocksRelayRoutes(new ContextImpl(null, config));
+			Assertions.assertEquals(Route.DIRECT, routes.route(new InetSocketAddress(ip("192.168.1.1"), 80)));
+			Assertions.assertEquals(Route.TUNNEL, routes.route(new InetSocketAddress(ip("10.0.0.1"), 80)));
+			Assertions.assertEquals(Route.DIRECT, routes.route(InetSocketAddress.createUnresolved("git.corp.example", 22)));
+			Assertions.assertEquals(Route.TUNNEL, routes.route(InetSocketAddress.createUnresolved("git.corp.example", 80)));
+			Assertions.assertEquals(Route.TUNNEL, routes.route(InetSocketAddress.createUnresolved("vpn.corp.example", 443)));
+			Assertions.assertEquals(Route.TUNNEL, routes.route(InetSocketAddress.createUnresolved("example.com", 443)));
+			Assertions.assertEquals(2, routes.getConnections(Route.DIRECT));
+			Assertions.assertEquals(4, routes.getConnections(Route.TUNNEL));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	// as an editor would, so the file is never seen half written
+	private static void replace(Path file, String rules) throws IOException {
+		Path tmp = Files.createTempFile(file.getParent(), "rules", ".tmp");
+		Files.write(tmp, rules.getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		Path file = Files.createTempFile("rules", ".txt");
+		try {
+			Files.write(file, "deny 10.0.0.0/8\n".getBytes(StandardCharsets.UTF_8));
+			Properties props = new Properties();
+			props.setProperty(Configuration.RULES_FILE, file.toString());
+			props.setProperty(Configuration.RULES_RELOAD, "50");
+			FileRuleset r = (FileRuleset) new ContextImpl(null, new PropertiesConfiguration(props))
+					.getService(Ruleset.class);
+			try {
+				Assertions.assertFalse(r.allows(ip("10.0.0.1"), 80));
+				replace(file, "not a rule\n");
+				Thread.sleep(300);
+				Assertions.assertFalse(r.allows(ip("10.0.0.1"), 80)); // the old rules stay
+				replace(file, "allow 10.0.0.0/8\ndefault deny\n");
+				for (int i = 0; i < 60 && !r.allows(ip("10.0.0.1"), 80); i++) {
+					Thread.sleep(50);
+				}
+				Assertions.assertTrue(r.allows(ip("10.0.0.1"), 80));
+				Assertions.assertFalse(r.allows(ip("11.0.0.1"), 80));
+			} finally {
+				r.close(); // not to go on checking the file once deleted
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+}